@@ -0,0 +1,53 @@
+import java.util.function.Consumer;
+
+public interface AlmacenCuentas {
+    String TIPO = System.getProperty("almacen.cuentas", "objetos");
+
+    boolean contiene(int idCuenta);
+
+    Cuenta obtener(int idCuenta);
+
+    long saldo(int idCuenta);
+
+    default String tipo(int idCuenta) {
+        Cuenta cuenta = obtener(idCuenta);
+        return cuenta != null ? cuenta.getTipoCuenta() : null;
+    }
+
+    void ajustarSaldo(int idCuenta, long delta);
+
+    void fijarSaldo(int idCuenta, long saldo);
+
+    void poner(int idCuenta, int idCliente, long saldo, String tipoCuenta);
+
+    boolean ponerSiAusente(int idCuenta, int idCliente, long saldo, String tipoCuenta);
+
+    void limpiar();
+
+    int tamano();
+
+    long sumaSaldos();
+
+    void paraCada(Consumer<Cuenta> accion);
+
+    long bytesEnHeap();
+
+    long bytesFueraDeHeap();
+
+    String nombre();
+
+    default String resumen() {
+        int total = tamano();
+        long bytes = bytesEnHeap() + bytesFueraDeHeap();
+        return String.format("ALMACEN|%s|cuentas=%d|heap=%dKB|offheap=%dKB|bytesPorCuenta=%.1f", nombre(), total,
+                bytesEnHeap() / 1024, bytesFueraDeHeap() / 1024, total == 0 ? 0.0 : (double) bytes / total);
+    }
+
+    static AlmacenCuentas crear() {
+        return switch (TIPO) {
+            case "compacto" -> new AlmacenCuentasCompacto();
+            case "objetos" -> new AlmacenCuentasObjetos();
+            default -> throw new IllegalArgumentException("almacen.cuentas desconocido: " + TIPO);
+        };
+    }
+}
@@ -0,0 +1,218 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+public class AlmacenCuentasCompacto implements AlmacenCuentas {
+    private static final int VACIO = Integer.MIN_VALUE;
+    private static final int BYTES_POR_HUECO = 16;
+    private static final int DESPLAZAMIENTO_CLIENTE = 8;
+    private static final int DESPLAZAMIENTO_TIPO = 12;
+    private static final double CARGA_MAXIMA = 0.7;
+    private static final VarHandle SALDO = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final List<String> TIPOS = new CopyOnWriteArrayList<>(List.of("Ahorros", "Corriente"));
+
+    private int[] claves;
+    private ByteBuffer valores;
+    private int mascara;
+    private int tamano;
+
+    public AlmacenCuentasCompacto() {
+        this(1024);
+    }
+
+    public AlmacenCuentasCompacto(int capacidadInicial) {
+        reservar(Integer.highestOneBit(Math.max(16, capacidadInicial) - 1) << 1);
+    }
+
+    @Override
+    public boolean contiene(int idCuenta) {
+        return buscar(idCuenta) >= 0;
+    }
+
+    @Override
+    public Cuenta obtener(int idCuenta) {
+        int hueco = buscar(idCuenta);
+        if (hueco < 0)
+            return null;
+        int base = hueco * BYTES_POR_HUECO;
+        return new Cuenta(idCuenta, valores.getInt(base + DESPLAZAMIENTO_CLIENTE), leerSaldo(hueco),
+                TIPOS.get(valores.get(base + DESPLAZAMIENTO_TIPO)));
+    }
+
+    @Override
+    public long saldo(int idCuenta) {
+        return leerSaldo(buscar(idCuenta));
+    }
+
+    @Override
+    public String tipo(int idCuenta) {
+        int hueco = buscar(idCuenta);
+        return hueco < 0 ? null : TIPOS.get(valores.get(hueco * BYTES_POR_HUECO + DESPLAZAMIENTO_TIPO));
+    }
+
+    @Override
+    public void ajustarSaldo(int idCuenta, long delta) {
+        int hueco = buscar(idCuenta);
+        escribirSaldo(hueco, leerSaldo(hueco) + delta);
+    }
+
+    @Override
+    public void fijarSaldo(int idCuenta, long saldo) {
+        int hueco = buscar(idCuenta);
+        if (hueco >= 0) {
+            escribirSaldo(hueco, saldo);
+        }
+    }
+
+    @Override
+    public void poner(int idCuenta, int idCliente, long saldo, String tipoCuenta) {
+        int hueco = buscar(idCuenta);
+        if (hueco < 0) {
+            hueco = insertar(idCuenta);
+        }
+        int base = hueco * BYTES_POR_HUECO;
+        valores.putInt(base + DESPLAZAMIENTO_CLIENTE, idCliente);
+        valores.put(base + DESPLAZAMIENTO_TIPO, codigoTipo(tipoCuenta));
+        escribirSaldo(hueco, saldo);
+    }
+
+    @Override
+    public boolean ponerSiAusente(int idCuenta, int idCliente, long saldo, String tipoCuenta) {
+        if (contiene(idCuenta))
+            return false;
+        poner(idCuenta, idCliente, saldo, tipoCuenta);
+        return true;
+    }
+
+    @Override
+    public void limpiar() {
+        Arrays.fill(claves, VACIO);
+        tamano = 0;
+    }
+
+    @Override
+    public int tamano() {
+        return tamano;
+    }
+
+    @Override
+    public long sumaSaldos() {
+        long total = 0;
+        for (int hueco = 0; hueco < claves.length; hueco++) {
+            if (claves[hueco] != VACIO) {
+                total += leerSaldo(hueco);
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void paraCada(Consumer<Cuenta> accion) {
+        for (int hueco = 0; hueco < claves.length; hueco++) {
+            if (claves[hueco] != VACIO) {
+                accion.accept(obtener(claves[hueco]));
+            }
+        }
+    }
+
+    @Override
+    public long bytesEnHeap() {
+        return 16L + (long) claves.length * Integer.BYTES;
+    }
+
+    @Override
+    public long bytesFueraDeHeap() {
+        return valores.capacity();
+    }
+
+    private int buscar(int idCuenta) {
+        int hueco = dispersar(idCuenta) & mascara;
+        while (true) {
+            int clave = claves[hueco];
+            if (clave == idCuenta)
+                return hueco;
+            if (clave == VACIO)
+                return -1;
+            hueco = (hueco + 1) & mascara;
+        }
+    }
+
+    private int insertar(int idCuenta) {
+        if (tamano + 1 > claves.length * CARGA_MAXIMA) {
+            redimensionar();
+        }
+        int hueco = dispersar(idCuenta) & mascara;
+        while (claves[hueco] != VACIO) {
+            hueco = (hueco + 1) & mascara;
+        }
+        claves[hueco] = idCuenta;
+        tamano++;
+        return hueco;
+    }
+
+    private void redimensionar() {
+        int[] clavesAnteriores = claves;
+        ByteBuffer valoresAnteriores = valores;
+        reservar(clavesAnteriores.length * 2);
+        for (int anterior = 0; anterior < clavesAnteriores.length; anterior++) {
+            if (clavesAnteriores[anterior] == VACIO)
+                continue;
+            int hueco = dispersar(clavesAnteriores[anterior]) & mascara;
+            while (claves[hueco] != VACIO) {
+                hueco = (hueco + 1) & mascara;
+            }
+            claves[hueco] = clavesAnteriores[anterior];
+            valores.put(hueco * BYTES_POR_HUECO, valoresAnteriores, anterior * BYTES_POR_HUECO, BYTES_POR_HUECO);
+            tamano++;
+        }
+    }
+
+    private void reservar(int capacidad) {
+        claves = new int[capacidad];
+        Arrays.fill(claves, VACIO);
+        valores = ByteBuffer.allocateDirect(capacidad * BYTES_POR_HUECO).order(ByteOrder.nativeOrder());
+        mascara = capacidad - 1;
+        tamano = 0;
+    }
+
+    private long leerSaldo(int hueco) {
+        return (long) SALDO.getVolatile(valores, hueco * BYTES_POR_HUECO);
+    }
+
+    private void escribirSaldo(int hueco, long saldo) {
+        SALDO.setVolatile(valores, hueco * BYTES_POR_HUECO, saldo);
+    }
+
+    private static byte codigoTipo(String tipoCuenta) {
+        int codigo = TIPOS.indexOf(tipoCuenta);
+        if (codigo >= 0)
+            return (byte) codigo;
+        synchronized (TIPOS) {
+            codigo = TIPOS.indexOf(tipoCuenta);
+            if (codigo < 0) {
+                if (TIPOS.size() >= Byte.MAX_VALUE) {
+                    throw new IllegalStateException("Demasiados tipos de cuenta");
+                }
+                TIPOS.add(tipoCuenta);
+                codigo = TIPOS.size() - 1;
+            }
+            return (byte) codigo;
+        }
+    }
+
+    private static int dispersar(int idCuenta) {
+        int h = idCuenta * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String nombre() {
+        return "compacto";
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Envoltorio que mantiene la suma de saldos de la partición, en total y por tipo de cuenta, a medida que cambian.
+ * Las transferencias ajustan cuentas distintas en paralelo, así que los acumuladores son LongAdder; leídos con los
+ * bloqueos de todas las cuentas tomados dan un valor exacto sin recorrer el almacén.
+ */
+public class AlmacenCuentasConTotales implements AlmacenCuentas {
+    private final AlmacenCuentas almacen;
+    private final LongAdder total = new LongAdder();
+    private final Map<String, LongAdder> porTipo = new ConcurrentHashMap<>();
+    private long verificaciones;
+    private long desvios;
+    private long ultimoDesvio;
+
+    public AlmacenCuentasConTotales(AlmacenCuentas almacen) {
+        this.almacen = almacen;
+        almacen.paraCada(cuenta -> sumar(cuenta.getTipoCuenta(), cuenta.getSaldo()));
+    }
+
+    /**
+     * Parte de sumas ya conocidas (las de la cabecera de una instantánea) sin recorrer el almacén, que en el mapeado
+     * obligaría a tocar todas sus páginas. Si no cuadran, las corrige la verificación periódica.
+     */
+    public AlmacenCuentasConTotales(AlmacenCuentas almacen, Map<String, Long> sumasPorTipo) {
+        this.almacen = almacen;
+        sumasPorTipo.forEach(this::sumar);
+    }
+
+    @Override
+    public boolean contiene(int idCuenta) {
+        return almacen.contiene(idCuenta);
+    }
+
+    @Override
+    public Cuenta obtener(int idCuenta) {
+        return almacen.obtener(idCuenta);
+    }
+
+    @Override
+    public long saldo(int idCuenta) {
+        return almacen.saldo(idCuenta);
+    }
+
+    @Override
+    public String tipo(int idCuenta) {
+        return almacen.tipo(idCuenta);
+    }
+
+    @Override
+    public void ajustarSaldo(int idCuenta, long delta) {
+        almacen.ajustarSaldo(idCuenta, delta);
+        sumar(almacen.tipo(idCuenta), delta);
+    }
+
+    @Override
+    public void fijarSaldo(int idCuenta, long saldo) {
+        if (!almacen.contiene(idCuenta))
+            return;
+        long anterior = almacen.saldo(idCuenta);
+        almacen.fijarSaldo(idCuenta, saldo);
+        sumar(almacen.tipo(idCuenta), saldo - anterior);
+    }
+
+    @Override
+    public void poner(int idCuenta, int idCliente, long saldo, String tipoCuenta) {
+        if (almacen.contiene(idCuenta)) {
+            sumar(almacen.tipo(idCuenta), -almacen.saldo(idCuenta));
+        }
+        almacen.poner(idCuenta, idCliente, saldo, tipoCuenta);
+        sumar(tipoCuenta, saldo);
+    }
+
+    @Override
+    public boolean ponerSiAusente(int idCuenta, int idCliente, long saldo, String tipoCuenta) {
+        if (!almacen.ponerSiAusente(idCuenta, idCliente, saldo, tipoCuenta))
+            return false;
+        sumar(tipoCuenta, saldo);
+        return true;
+    }
+
+    @Override
+    public void limpiar() {
+        almacen.limpiar();
+        total.reset();
+        porTipo.clear();
+    }
+
+    @Override
+    public int tamano() {
+        return almacen.tamano();
+    }
+
+    @Override
+    public long sumaSaldos() {
+        return total.sum();
+    }
+
+    public Map<String, Long> sumaPorTipo() {
+        Map<String, Long> sumas = new TreeMap<>();
+        porTipo.forEach((tipo, suma) -> sumas.put(tipo, suma.sum()));
+        return sumas;
+    }
+
+    /**
+     * Recalcula las sumas recorriendo el almacén y, si no coinciden con las mantenidas, las corrige. Devuelve la
+     * diferencia del total (recalculado menos mantenido). Quien llama debe tener detenidas las escrituras.
+     */
+    public long verificar() {
+        Map<String, Long> recalculadas = new TreeMap<>();
+        almacen.paraCada(cuenta -> recalculadas.merge(cuenta.getTipoCuenta(), cuenta.getSaldo(), Long::sum));
+        long recalculado = recalculadas.values().stream().mapToLong(Long::longValue).sum();
+        long diferencia = recalculado - total.sum();
+
+        verificaciones++;
+        if (diferencia != 0 || !recalculadas.equals(sumaPorTipo())) {
+            desvios++;
+            ultimoDesvio = diferencia;
+            total.reset();
+            porTipo.clear();
+            recalculadas.forEach(this::sumar);
+        }
+        return diferencia;
+    }
+
+    @Override
+    public void paraCada(Consumer<Cuenta> accion) {
+        almacen.paraCada(accion);
+    }
+
+    @Override
+    public long bytesEnHeap() {
+        return almacen.bytesEnHeap();
+    }
+
+    @Override
+    public long bytesFueraDeHeap() {
+        return almacen.bytesFueraDeHeap();
+    }
+
+    @Override
+    public String nombre() {
+        return almacen.nombre();
+    }
+
+    public String resumenTotales(int particionId) {
+        StringBuilder sb = new StringBuilder("TOTALES|particion=").append(particionId).append("|total=");
+        Dinero.formatear(sb, total.sum());
+        sumaPorTipo().forEach((tipo, suma) -> Dinero.formatear(sb.append('|').append(tipo).append('='), suma));
+        return sb.append("|verificaciones=").append(verificaciones)
+                .append("|desvios=").append(desvios)
+                .append("|ultimoDesvio=").append(ultimoDesvio)
+                .toString();
+    }
+
+    private void sumar(String tipo, long delta) {
+        total.add(delta);
+        porTipo.computeIfAbsent(tipo, t -> new LongAdder()).add(delta);
+    }
+}
@@ -0,0 +1,161 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class AlmacenCuentasMapeado implements AlmacenCuentas {
+    private static final VarHandle SALDO = MethodHandles.byteBufferViewVarHandle(long[].class,
+            InstantaneaParticion.ORDEN);
+
+    private final ByteBuffer indice;
+    private final ByteBuffer registros;
+    private final List<String> tipos;
+    private final AlmacenCuentas nuevas = AlmacenCuentas.crear();
+    private int cuentas;
+
+    public AlmacenCuentasMapeado(ByteBuffer indice, ByteBuffer registros, int cuentas, List<String> tipos) {
+        this.indice = indice;
+        this.registros = registros;
+        this.cuentas = cuentas;
+        this.tipos = tipos;
+    }
+
+    @Override
+    public boolean contiene(int idCuenta) {
+        return buscar(idCuenta) >= 0 || nuevas.contiene(idCuenta);
+    }
+
+    @Override
+    public Cuenta obtener(int idCuenta) {
+        int posicion = buscar(idCuenta);
+        if (posicion < 0)
+            return nuevas.obtener(idCuenta);
+        int base = posicion * InstantaneaParticion.BYTES_POR_REGISTRO;
+        return new Cuenta(idCuenta, registros.getInt(base + InstantaneaParticion.DESPLAZAMIENTO_CLIENTE),
+                leerSaldo(posicion), tipos.get(registros.get(base + InstantaneaParticion.DESPLAZAMIENTO_TIPO)));
+    }
+
+    @Override
+    public long saldo(int idCuenta) {
+        int posicion = buscar(idCuenta);
+        return posicion >= 0 ? leerSaldo(posicion) : nuevas.saldo(idCuenta);
+    }
+
+    @Override
+    public String tipo(int idCuenta) {
+        int posicion = buscar(idCuenta);
+        return posicion >= 0
+                ? tipos.get(registros.get(posicion * InstantaneaParticion.BYTES_POR_REGISTRO
+                        + InstantaneaParticion.DESPLAZAMIENTO_TIPO))
+                : nuevas.tipo(idCuenta);
+    }
+
+    @Override
+    public void ajustarSaldo(int idCuenta, long delta) {
+        int posicion = buscar(idCuenta);
+        if (posicion >= 0) {
+            escribirSaldo(posicion, leerSaldo(posicion) + delta);
+        } else {
+            nuevas.ajustarSaldo(idCuenta, delta);
+        }
+    }
+
+    @Override
+    public void fijarSaldo(int idCuenta, long saldo) {
+        int posicion = buscar(idCuenta);
+        if (posicion >= 0) {
+            escribirSaldo(posicion, saldo);
+        } else {
+            nuevas.fijarSaldo(idCuenta, saldo);
+        }
+    }
+
+    @Override
+    public void poner(int idCuenta, int idCliente, long saldo, String tipoCuenta) {
+        int posicion = buscar(idCuenta);
+        int base = posicion * InstantaneaParticion.BYTES_POR_REGISTRO;
+        if (posicion >= 0 && registros.getInt(base + InstantaneaParticion.DESPLAZAMIENTO_CLIENTE) == idCliente
+                && tipoCuenta.equals(tipos.get(registros.get(base + InstantaneaParticion.DESPLAZAMIENTO_TIPO)))) {
+            escribirSaldo(posicion, saldo);
+        } else if (posicion >= 0) {
+            throw new IllegalStateException("La instantánea no admite cambiar cliente o tipo de la cuenta " + idCuenta);
+        } else {
+            nuevas.poner(idCuenta, idCliente, saldo, tipoCuenta);
+        }
+    }
+
+    @Override
+    public boolean ponerSiAusente(int idCuenta, int idCliente, long saldo, String tipoCuenta) {
+        return buscar(idCuenta) < 0 && nuevas.ponerSiAusente(idCuenta, idCliente, saldo, tipoCuenta);
+    }
+
+    @Override
+    public void limpiar() {
+        cuentas = 0;
+        nuevas.limpiar();
+    }
+
+    @Override
+    public int tamano() {
+        return cuentas + nuevas.tamano();
+    }
+
+    @Override
+    public long sumaSaldos() {
+        long total = nuevas.sumaSaldos();
+        for (int posicion = 0; posicion < cuentas; posicion++) {
+            total += leerSaldo(posicion);
+        }
+        return total;
+    }
+
+    @Override
+    public void paraCada(Consumer<Cuenta> accion) {
+        for (int posicion = 0; posicion < cuentas; posicion++) {
+            accion.accept(obtener(indice.getInt(posicion * Integer.BYTES)));
+        }
+        nuevas.paraCada(accion);
+    }
+
+    @Override
+    public long bytesEnHeap() {
+        return nuevas.bytesEnHeap();
+    }
+
+    @Override
+    public long bytesFueraDeHeap() {
+        return (long) cuentas * (Integer.BYTES + InstantaneaParticion.BYTES_POR_REGISTRO)
+                + nuevas.bytesFueraDeHeap();
+    }
+
+    @Override
+    public String nombre() {
+        return "mapeado";
+    }
+
+    private int buscar(int idCuenta) {
+        int bajo = 0;
+        int alto = cuentas - 1;
+        while (bajo <= alto) {
+            int medio = (bajo + alto) >>> 1;
+            int clave = indice.getInt(medio * Integer.BYTES);
+            if (clave < idCuenta) {
+                bajo = medio + 1;
+            } else if (clave > idCuenta) {
+                alto = medio - 1;
+            } else {
+                return medio;
+            }
+        }
+        return -1;
+    }
+
+    private long leerSaldo(int posicion) {
+        return (long) SALDO.getVolatile(registros, posicion * InstantaneaParticion.BYTES_POR_REGISTRO);
+    }
+
+    private void escribirSaldo(int posicion, long saldo) {
+        SALDO.setVolatile(registros, posicion * InstantaneaParticion.BYTES_POR_REGISTRO, saldo);
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public class AlmacenCuentasObjetos implements AlmacenCuentas {
+    // Estimación con oops comprimidos: nodo del HashMap (32), Integer (16), Cuenta (32) y hueco de la tabla (4).
+    private static final int BYTES_POR_CUENTA = 84;
+
+    private final Map<Integer, Cuenta> cuentas = new HashMap<>();
+
+    @Override
+    public boolean contiene(int idCuenta) {
+        return cuentas.containsKey(idCuenta);
+    }
+
+    @Override
+    public Cuenta obtener(int idCuenta) {
+        return cuentas.get(idCuenta);
+    }
+
+    @Override
+    public long saldo(int idCuenta) {
+        return cuentas.get(idCuenta).getSaldo();
+    }
+
+    @Override
+    public void ajustarSaldo(int idCuenta, long delta) {
+        Cuenta cuenta = cuentas.get(idCuenta);
+        if (delta < 0) {
+            cuenta.retirar(-delta);
+        } else {
+            cuenta.depositar(delta);
+        }
+    }
+
+    @Override
+    public void fijarSaldo(int idCuenta, long saldo) {
+        Cuenta cuenta = cuentas.get(idCuenta);
+        if (cuenta != null) {
+            cuentas.put(idCuenta, new Cuenta(idCuenta, cuenta.getIdCliente(), saldo, cuenta.getTipoCuenta()));
+        }
+    }
+
+    @Override
+    public void poner(int idCuenta, int idCliente, long saldo, String tipoCuenta) {
+        cuentas.put(idCuenta, new Cuenta(idCuenta, idCliente, saldo, tipoCuenta));
+    }
+
+    @Override
+    public boolean ponerSiAusente(int idCuenta, int idCliente, long saldo, String tipoCuenta) {
+        return cuentas.putIfAbsent(idCuenta, new Cuenta(idCuenta, idCliente, saldo, tipoCuenta)) == null;
+    }
+
+    @Override
+    public void limpiar() {
+        cuentas.clear();
+    }
+
+    @Override
+    public int tamano() {
+        return cuentas.size();
+    }
+
+    @Override
+    public long sumaSaldos() {
+        return cuentas.values().stream().mapToLong(Cuenta::getSaldo).sum();
+    }
+
+    @Override
+    public void paraCada(Consumer<Cuenta> accion) {
+        cuentas.values().forEach(accion);
+    }
+
+    @Override
+    public long bytesEnHeap() {
+        return (long) cuentas.size() * BYTES_POR_CUENTA;
+    }
+
+    @Override
+    public long bytesFueraDeHeap() {
+        return 0;
+    }
+
+    @Override
+    public String nombre() {
+        return "objetos";
+    }
+}
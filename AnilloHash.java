@@ -0,0 +1,177 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Anillo de hash consistente con nodos virtuales. Las cuentas se reparten en un número fijo de particiones y cada
+ * partición se coloca en el anillo; sus réplicas son los primeros nodos distintos que se encuentran en sentido
+ * horario. Es inmutable: cada alta de nodo produce una versión nueva que el servidor publica a los nodos.
+ */
+public final class AnilloHash {
+    public static final int PARTICIONES = Integer.getInteger("anillo.particiones", 3);
+    public static final int NODOS_VIRTUALES = Integer.getInteger("anillo.nodosVirtuales", 64);
+    public static final int REPLICAS = Integer.getInteger("anillo.replicas", 2);
+
+    private final long version;
+    private final int particiones;
+    private final int nodosVirtuales;
+    private final int replicas;
+    private final Map<Integer, String> direcciones;
+    private final TreeMap<Long, Integer> anillo = new TreeMap<>();
+    private final List<List<Integer>> ubicacion = new ArrayList<>();
+
+    private AnilloHash(long version, int particiones, int nodosVirtuales, int replicas,
+            Map<Integer, String> direcciones) {
+        this.version = version;
+        this.particiones = particiones;
+        this.nodosVirtuales = nodosVirtuales;
+        this.replicas = replicas;
+        this.direcciones = Collections.unmodifiableMap(new TreeMap<>(direcciones));
+
+        for (int nodo : this.direcciones.keySet()) {
+            for (int v = 0; v < nodosVirtuales; v++) {
+                anillo.putIfAbsent(hash("nodo-" + nodo + "#" + v), nodo);
+            }
+        }
+        for (int particion = 1; particion <= particiones; particion++) {
+            ubicacion.add(Collections.unmodifiableList(calcularReplicas(particion)));
+        }
+    }
+
+    public static AnilloHash vacio() {
+        return new AnilloHash(0, PARTICIONES, NODOS_VIRTUALES, REPLICAS, Map.of());
+    }
+
+    public AnilloHash conNodo(int nodoId, String direccion) {
+        if (direccion.equals(direcciones.get(nodoId)))
+            return this;
+        Map<Integer, String> nuevas = new TreeMap<>(direcciones);
+        nuevas.put(nodoId, direccion);
+        return new AnilloHash(version + 1, particiones, nodosVirtuales, replicas, nuevas);
+    }
+
+    public int particion(int idCuenta) {
+        return particion(idCuenta, particiones);
+    }
+
+    public static int particion(int idCuenta, int particiones) {
+        return (Math.abs(idCuenta - 100) % particiones) + 1;
+    }
+
+    public List<Integer> replicas(int particion) {
+        if (particion < 1 || particion > particiones)
+            return List.of();
+        return ubicacion.get(particion - 1);
+    }
+
+    public List<Integer> particionesDe(int nodoId) {
+        List<Integer> propias = new ArrayList<>();
+        for (int particion = 1; particion <= particiones; particion++) {
+            if (replicas(particion).contains(nodoId)) {
+                propias.add(particion);
+            }
+        }
+        return propias;
+    }
+
+    public int posicion(int particion, int nodoId) {
+        return replicas(particion).indexOf(nodoId);
+    }
+
+    public String direccion(int nodoId) {
+        return direcciones.get(nodoId);
+    }
+
+    public int getParticiones() {
+        return particiones;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    private List<Integer> calcularReplicas(int particion) {
+        List<Integer> nodos = new ArrayList<>(replicas);
+        if (anillo.isEmpty())
+            return nodos;
+
+        long clave = hash("particion-" + particion);
+        for (int nodo : anillo.tailMap(clave, true).values()) {
+            if (nodos.size() == replicas)
+                return nodos;
+            if (!nodos.contains(nodo))
+                nodos.add(nodo);
+        }
+        for (int nodo : anillo.headMap(clave, false).values()) {
+            if (nodos.size() == replicas)
+                return nodos;
+            if (!nodos.contains(nodo))
+                nodos.add(nodo);
+        }
+        return nodos;
+    }
+
+    // FNV-1a de 64 bits con el mezclado final de MurmurHash3; nodo.py reproduce el mismo cálculo.
+    static long hash(String clave) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : clave.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public String serializar() {
+        StringBuilder sb = new StringBuilder("ANILLO|").append(version)
+                .append('|').append(particiones)
+                .append('|').append(nodosVirtuales)
+                .append('|').append(replicas)
+                .append('|');
+        direcciones.forEach((nodo, direccion) -> {
+            if (sb.charAt(sb.length() - 1) != '|')
+                sb.append(',');
+            sb.append(nodo).append('@').append(direccion);
+        });
+        return sb.toString();
+    }
+
+    public static AnilloHash parsear(String mensaje) {
+        String[] partes = mensaje.split("\\|", -1);
+        if (partes.length < 6 || !"ANILLO".equals(partes[0])) {
+            throw new IllegalArgumentException("Anillo inválido: " + mensaje);
+        }
+        Map<Integer, String> direcciones = new TreeMap<>();
+        if (!partes[5].isEmpty()) {
+            for (String nodo : partes[5].split(",")) {
+                int arroba = nodo.indexOf('@');
+                direcciones.put(Integer.parseInt(nodo.substring(0, arroba)), nodo.substring(arroba + 1));
+            }
+        }
+        return new AnilloHash(Long.parseLong(partes[1]), Integer.parseInt(partes[2]), Integer.parseInt(partes[3]),
+                Integer.parseInt(partes[4]), direcciones);
+    }
+
+    public String resumen() {
+        StringBuilder sb = new StringBuilder("ANILLO|version=").append(version)
+                .append("|nodos=").append(direcciones.size())
+                .append("|particiones=").append(particiones)
+                .append("|virtuales=").append(nodosVirtuales)
+                .append("|replicas=").append(replicas);
+        for (int particion = 1; particion <= particiones; particion++) {
+            sb.append("|p").append(particion).append('=');
+            List<Integer> nodos = replicas(particion);
+            for (int i = 0; i < nodos.size(); i++) {
+                sb.append(i == 0 ? "" : ",").append(nodos.get(i));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+public class BenchmarkAlmacen {
+    private static final int CUENTAS = Integer.getInteger("bench.cuentas", 1_000_000);
+    private static final int OPERACIONES = Integer.getInteger("bench.operaciones", 5_000_000);
+
+    private static volatile long sumidero;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("cuentas=%d operaciones=%d%n", CUENTAS, OPERACIONES);
+        System.out.printf("%-10s %14s %14s %14s %14s %14s%n", "almacen", "heapMedido(MB)", "offheap(MB)",
+                "bytes/cuenta", "carga(ms)", "ajuste(ns/op)");
+        medir("objetos", AlmacenCuentasObjetos::new);
+        medir("compacto", AlmacenCuentasCompacto::new);
+    }
+
+    private static void medir(String nombre, Supplier<AlmacenCuentas> fabrica) throws Exception {
+        long antes = heapUsado();
+        long inicio = System.nanoTime();
+        AlmacenCuentas almacen = fabrica.get();
+        for (int i = 0; i < CUENTAS; i++) {
+            almacen.poner(100 + i, i / 2, 100_000L + i, (i & 1) == 0 ? "Ahorros" : "Corriente");
+        }
+        long carga = System.nanoTime() - inicio;
+        long heap = heapUsado() - antes;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        inicio = System.nanoTime();
+        for (int i = 0; i < OPERACIONES; i++) {
+            int origen = 100 + random.nextInt(CUENTAS);
+            int destino = 100 + random.nextInt(CUENTAS);
+            if (almacen.saldo(origen) >= 100) {
+                almacen.ajustarSaldo(origen, -100);
+                almacen.ajustarSaldo(destino, 100);
+            }
+        }
+        long ajuste = System.nanoTime() - inicio;
+        sumidero += almacen.sumaSaldos();
+
+        long offheap = almacen.bytesFueraDeHeap();
+        System.out.printf("%-10s %14.1f %14.1f %14.1f %14.1f %14.1f%n", nombre, heap / 1048576.0,
+                offheap / 1048576.0, (double) (heap + offheap) / CUENTAS, carga / 1e6, (double) ajuste / OPERACIONES);
+        System.out.println("  " + almacen.resumen());
+    }
+
+    private static long heapUsado() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class BenchmarkArranque {
+    private static final int CUENTAS = Integer.getInteger("bench.cuentas", 200_000);
+    private static final int TRANSACCIONES = Integer.getInteger("bench.transacciones", 1_000_000);
+    private static final int CONSULTAS = Integer.getInteger("bench.consultas", 10_000);
+    private static final int RONDAS = Integer.getInteger("bench.rondas", 3);
+
+    private static volatile long sumidero;
+
+    public static void main(String[] args) throws Exception {
+        Path directorio = Files.createTempDirectory("bench-arranque");
+        Path texto = directorio.resolve("texto/particion_1_rep1.dat");
+        Path mapeada = directorio.resolve("mapeada/particion_1_rep1.dat");
+        generar(texto, mapeada);
+
+        System.out.printf("cuentas=%d transacciones=%d texto=%dKB instantanea=%dKB%n", CUENTAS, TRANSACCIONES,
+                Files.size(texto) / 1024, Files.size(rutaInstantanea(mapeada)) / 1024);
+        System.out.printf("%-10s %14s %16s %14s%n", "formato", "arranque(ms)", "primeras(us/op)", "total(ms)");
+        for (int ronda = 0; ronda < RONDAS; ronda++) {
+            medir("texto", texto);
+            medir("mapeado", mapeada);
+        }
+        borrar(directorio);
+    }
+
+    private static void medir(String nombre, Path archivo) {
+        long inicio = System.nanoTime();
+        Particion particion = new Particion(archivo.toString());
+        long arranque = System.nanoTime() - inicio;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long consultas = System.nanoTime();
+        long suma = 0;
+        for (int i = 0; i < CONSULTAS; i++) {
+            suma += particion.getCuenta(100 + random.nextInt(CUENTAS)).getSaldo();
+        }
+        long fin = System.nanoTime();
+        sumidero += suma;
+
+        System.out.printf("%-10s %14.1f %16.2f %14.1f%n", nombre, arranque / 1e6,
+                (fin - consultas) / 1e3 / CONSULTAS, (fin - inicio) / 1e6);
+    }
+
+    private static void generar(Path texto, Path mapeada) throws IOException {
+        Files.createDirectories(texto.getParent());
+        Files.createDirectories(mapeada.getParent());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        AlmacenCuentas cuentas = new AlmacenCuentasObjetos();
+        List<String> historial = new ArrayList<>(TRANSACCIONES);
+        String fecha = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(texto)) {
+            writer.write("FORMATO|" + Particion.FORMATO + "\n");
+            for (int i = 0; i < CUENTAS; i++) {
+                long saldo = 100_000 + random.nextInt(900_000);
+                String tipo = (i & 1) == 0 ? "Ahorros" : "Corriente";
+                cuentas.poner(100 + i, i, saldo, tipo);
+                writer.write("CUENTA|" + (100 + i) + "|" + i + "|" + saldo + "|" + tipo + "\n");
+            }
+            for (int i = 1; i <= TRANSACCIONES; i++) {
+                String linea = "TRANSACCION|" + i + "|" + (100 + random.nextInt(CUENTAS)) + "|"
+                        + (100 + random.nextInt(CUENTAS)) + "|" + (1 + random.nextInt(10_000)) + "|" + fecha
+                        + "|CONFIRMADA";
+                historial.add(linea);
+                writer.write(linea + "\n");
+            }
+            writer.write("SECUENCIA|" + TRANSACCIONES + "\n");
+        }
+        InstantaneaParticion.escribir(rutaInstantanea(mapeada), cuentas, TRANSACCIONES, TRANSACCIONES, List.of(),
+                null, historial);
+    }
+
+    private static Path rutaInstantanea(Path archivo) {
+        return archivo.resolveSibling(archivo.getFileName().toString().replaceFirst("\\.dat$", "") + ".snap");
+    }
+
+    private static void borrar(Path directorio) throws IOException {
+        try (var rutas = Files.walk(directorio)) {
+            for (Path ruta : rutas.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(ruta);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class BenchmarkBloqueos {
+    private static final int CUENTAS = Integer.getInteger("bench.cuentas", 1024);
+    private static final long DURACION_MS = Long.getLong("bench.duracionMs", 2000);
+    private static final int MAXIMO_HILOS = Integer.getInteger("bench.hilos",
+            Runtime.getRuntime().availableProcessors() * 2);
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("wal.fsync") == null) {
+            System.setProperty("wal.fsync", "NUNCA");
+        }
+
+        System.out.printf("cuentas=%d duracion=%dms fsync=%s%n", CUENTAS, DURACION_MS,
+                System.getProperty("wal.fsync"));
+        System.out.printf("%-6s %16s %16s %8s%n", "hilos", "global(tx/s)", "franjas(tx/s)", "mejora");
+        for (int hilos = 1; hilos <= MAXIMO_HILOS; hilos *= 2) {
+            double global = medir(hilos, true);
+            double franjas = medir(hilos, false);
+            System.out.printf("%-6d %16.0f %16.0f %7.2fx%n", hilos, global, franjas, franjas / global);
+        }
+    }
+
+    private static double medir(int hilos, boolean bloqueoGlobal) throws Exception {
+        Path directorio = Files.createTempDirectory("bench-bloqueos");
+        Path archivo = directorio.resolve("particion_bench.dat");
+        List<String> lineas = new ArrayList<>();
+        lineas.add("FORMATO|2");
+        for (int i = 0; i < CUENTAS; i++) {
+            lineas.add("CUENTA|" + (100 + i) + "|" + i + "|100000000|Ahorros");
+        }
+        Files.write(archivo, lineas);
+
+        Particion particion = new Particion(archivo.toString());
+        long totalInicial = particion.arqueoLocal();
+        ReentrantLock global = new ReentrantLock();
+        LongAdder completadas = new LongAdder();
+        long fin = System.nanoTime() + DURACION_MS * 1_000_000;
+
+        List<Thread> trabajadores = new ArrayList<>();
+        for (int h = 0; h < hilos; h++) {
+            Thread t = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < fin) {
+                    int origen = 100 + random.nextInt(CUENTAS);
+                    int destino = 100 + random.nextInt(CUENTAS);
+                    if (bloqueoGlobal) {
+                        global.lock();
+                        try {
+                            particion.transferirSinConfirmar(origen, destino, 100);
+                        } finally {
+                            global.unlock();
+                        }
+                    } else {
+                        particion.transferirSinConfirmar(origen, destino, 100);
+                    }
+                    completadas.increment();
+                }
+            });
+            trabajadores.add(t);
+            t.start();
+        }
+        for (Thread t : trabajadores) {
+            t.join();
+        }
+
+        if (particion.arqueoLocal() != totalInicial) {
+            System.err.println("Arqueo descuadrado tras el benchmark");
+        }
+        borrar(directorio);
+        return completadas.sum() * 1000.0 / DURACION_MS;
+    }
+
+    private static void borrar(Path directorio) throws IOException {
+        try (var archivos = Files.list(directorio)) {
+            for (Path archivo : archivos.toList()) {
+                Files.delete(archivo);
+            }
+        }
+        Files.delete(directorio);
+    }
+}
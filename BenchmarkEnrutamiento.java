@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.LongStream;
+
+/**
+ * Compara estrategias de enrutamiento de lecturas sobre réplicas simuladas: cada réplica atiende un número fijo de
+ * lecturas a la vez con un tiempo de servicio exponencial, y una de ellas se detiene periódicamente (como una pausa
+ * de GC). Los clientes leen en bucle cerrado y se mide la latencia de extremo a extremo, incluida la cola.
+ */
+public class BenchmarkEnrutamiento {
+    private static final int REPLICAS = Integer.getInteger("bench.replicas", 3);
+    private static final int CLIENTES = Integer.getInteger("bench.clientes", 16);
+    private static final int CAPACIDAD = Integer.getInteger("bench.capacidad", 4);
+    private static final long DURACION_MS = Long.getLong("bench.duracionMs", 3000);
+    private static final double SERVICIO_MS = Double.parseDouble(System.getProperty("bench.servicioMs", "1.0"));
+    private static final long PERIODO_PAUSA_MS = Long.getLong("bench.periodoPausaMs", 500);
+    private static final long PAUSA_MS = Long.getLong("bench.pausaMs", 60);
+
+    interface Estrategia {
+        int elegir(List<Integer> candidatas, Replica[] replicas);
+
+        default long iniciar(int nodo) {
+            return 0;
+        }
+
+        default void finalizar(int nodo, long inicio) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("replicas=%d clientes=%d capacidad=%d servicio=%.1fms pausa=%dms cada %dms (réplica 1)%n",
+                REPLICAS, CLIENTES, CAPACIDAD, SERVICIO_MS, PAUSA_MS, PERIODO_PAUSA_MS);
+        System.out.printf("%-12s %10s %9s %9s %9s %9s%n", "estrategia", "lect/s", "p50", "p99", "p99.9", "max");
+
+        medir("primera", (candidatas, replicas) -> candidatas.get(0));
+        medir("aleatoria", (candidatas, replicas) -> candidatas
+                .get(ThreadLocalRandom.current().nextInt(candidatas.size())));
+        medir("menorCarga", (candidatas, replicas) -> candidatas.stream()
+                .min((a, b) -> Integer.compare(replicas[a].enCurso.get(), replicas[b].enCurso.get()))
+                .orElseThrow());
+
+        EnrutadorLecturas enrutador = new EnrutadorLecturas();
+        medir("p2c-ewma", new Estrategia() {
+            @Override
+            public int elegir(List<Integer> candidatas, Replica[] replicas) {
+                return enrutador.elegir(candidatas);
+            }
+
+            @Override
+            public long iniciar(int nodo) {
+                return enrutador.iniciar(nodo);
+            }
+
+            @Override
+            public void finalizar(int nodo, long inicio) {
+                enrutador.finalizar(nodo, inicio);
+            }
+        });
+        System.out.println(enrutador.resumen());
+    }
+
+    private static void medir(String nombre, Estrategia estrategia) throws InterruptedException {
+        Replica[] replicas = new Replica[REPLICAS];
+        List<Integer> candidatas = new ArrayList<>();
+        for (int i = 0; i < REPLICAS; i++) {
+            replicas[i] = new Replica(i == Math.min(1, REPLICAS - 1));
+            candidatas.add(i);
+        }
+
+        long inicio = System.nanoTime();
+        long fin = inicio + DURACION_MS * 1_000_000;
+        List<LongStream.Builder> muestras = new ArrayList<>();
+        List<Thread> clientes = new ArrayList<>();
+        for (int c = 0; c < CLIENTES; c++) {
+            LongStream.Builder latencias = LongStream.builder();
+            muestras.add(latencias);
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < fin) {
+                    long comienzo = System.nanoTime();
+                    int nodo = estrategia.elegir(candidatas, replicas);
+                    long ficha = estrategia.iniciar(nodo);
+                    replicas[nodo].servir(inicio);
+                    long latencia = System.nanoTime() - comienzo;
+                    estrategia.finalizar(nodo, ficha);
+                    latencias.add(latencia);
+                }
+            });
+            clientes.add(t);
+            t.start();
+        }
+        for (Thread t : clientes) {
+            t.join();
+        }
+
+        long[] todas = muestras.stream().flatMapToLong(LongStream.Builder::build).sorted().toArray();
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        System.out.printf("%-12s %10.0f %7.2fms %7.2fms %7.2fms %7.2fms%n", nombre, todas.length / segundos,
+                percentil(todas, 0.50), percentil(todas, 0.99), percentil(todas, 0.999),
+                todas[todas.length - 1] / 1e6);
+    }
+
+    private static double percentil(long[] ordenadas, double p) {
+        return ordenadas[Math.min(ordenadas.length - 1, (int) (ordenadas.length * p))] / 1e6;
+    }
+
+    static class Replica {
+        final Semaphore huecos = new Semaphore(CAPACIDAD, true);
+        final AtomicInteger enCurso = new AtomicInteger(0);
+        final boolean conPausas;
+
+        Replica(boolean conPausas) {
+            this.conPausas = conPausas;
+        }
+
+        void servir(long origen) {
+            enCurso.incrementAndGet();
+            huecos.acquireUninterruptibly();
+            try {
+                double u = ThreadLocalRandom.current().nextDouble();
+                long servicio = (long) (-Math.log(1 - u) * SERVICIO_MS * 1_000_000);
+                if (conPausas) {
+                    long enPeriodo = ((System.nanoTime() - origen) / 1_000_000) % PERIODO_PAUSA_MS;
+                    if (enPeriodo < PAUSA_MS) {
+                        servicio += (PAUSA_MS - enPeriodo) * 1_000_000;
+                    }
+                }
+                LockSupport.parkNanos(servicio);
+            } finally {
+                huecos.release();
+                enCurso.decrementAndGet();
+            }
+        }
+    }
+}
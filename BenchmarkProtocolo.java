@@ -0,0 +1,120 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BenchmarkProtocolo {
+    private static final int MENSAJES = Integer.getInteger("bench.mensajes", 200_000);
+    private static final int RONDAS = Integer.getInteger("bench.rondas", 5);
+    private static final int DELTAS_POR_LOTE = 32;
+
+    private static volatile long sumidero;
+
+    public static void main(String[] args) throws IOException {
+        String delta = "5021,103,106,250.75,2026-01-15T10:30:00.123456,CONFIRMADA,749.25,1250.75,5021";
+        List<String> lote = new ArrayList<>();
+        for (int i = 0; i < DELTAS_POR_LOTE; i++) {
+            lote.add(delta);
+        }
+
+        String[][] casos = {
+                { "CONSULTAR", "CONSULTAR|1234", "SALDO|15234.75" },
+                { "TRANSFERIR", "TRANSFERIR|1234|5678|250.75", "OK" },
+                { "ARQUEO", "ARQUEO", "ARQUEO|1523475.50" },
+                { "DELTA x" + DELTAS_POR_LOTE, "DELTA|2|" + String.join(";", lote), "ACK|2|5052" },
+        };
+
+        System.out.printf("%-12s %10s %10s %8s %15s %15s %8s%n", "mensaje", "texto(B)", "binario(B)", "ahorro",
+                "texto(ns/msg)", "binario(ns/msg)", "mejora");
+        for (String[] caso : casos) {
+            byte[] texto = tramaTexto(caso[1], caso[2]);
+            byte[] binario = tramaBinaria(caso[1], caso[2]);
+
+            double nsTexto = 0;
+            double nsBinario = 0;
+            for (int ronda = 0; ronda < RONDAS; ronda++) {
+                nsTexto = medirTexto(caso[1]);
+                nsBinario = medirBinario(caso[1]);
+            }
+
+            System.out.printf("%-12s %10d %10d %7.1f%% %15.1f %15.1f %7.2fx%n", caso[0], texto.length,
+                    binario.length, 100.0 * (texto.length - binario.length) / texto.length, nsTexto, nsBinario,
+                    nsTexto / nsBinario);
+        }
+    }
+
+    private static byte[] tramaTexto(String solicitud, String respuesta) {
+        return (solicitud + "\n" + respuesta + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] tramaBinaria(String solicitud, String respuesta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ProtocoloBinario.escribirSolicitud(out, solicitud);
+        if (respuesta.startsWith("SALDO|")) {
+            ProtocoloBinario.escribirSaldo(out, Dinero.parsear(respuesta.substring(6)));
+        } else if (respuesta.startsWith("ARQUEO|")) {
+            ProtocoloBinario.escribirArqueo(out, Dinero.parsear(respuesta.substring(7)));
+        } else if (respuesta.startsWith("ACK|")) {
+            String[] partes = respuesta.split("\\|");
+            ProtocoloBinario.escribirConfirmacion(out, true, Integer.parseInt(partes[1]), Long.parseLong(partes[2]));
+        } else {
+            ProtocoloBinario.escribirRespuesta(out, respuesta);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static double medirTexto(String solicitud) throws IOException {
+        StringBuilder flujo = new StringBuilder();
+        for (int i = 0; i < MENSAJES; i++) {
+            flujo.append(solicitud).append('\n');
+        }
+        BufferedReader in = new BufferedReader(new StringReader(flujo.toString()));
+
+        long inicio = System.nanoTime();
+        String linea;
+        while ((linea = in.readLine()) != null) {
+            String[] partes = linea.split("\\|");
+            switch (partes[0]) {
+                case "CONSULTAR" -> sumidero += Integer.parseInt(partes[1]);
+                case "TRANSFERIR" -> sumidero += Integer.parseInt(partes[1]) + Integer.parseInt(partes[2])
+                        + Dinero.parsear(partes[3]);
+                case "DELTA" -> {
+                    sumidero += Integer.parseInt(partes[1]);
+                    for (String d : partes[2].split(";")) {
+                        sumidero += d.length();
+                    }
+                }
+                default -> sumidero += partes.length;
+            }
+        }
+        return (System.nanoTime() - inicio) / (double) MENSAJES;
+    }
+
+    private static double medirBinario(String solicitud) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < MENSAJES; i++) {
+            ProtocoloBinario.escribirSolicitud(out, solicitud);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        ProtocoloBinario.Solicitud s = new ProtocoloBinario.Solicitud();
+
+        long inicio = System.nanoTime();
+        while (ProtocoloBinario.leerSolicitud(in, s)) {
+            switch (s.opcode) {
+                case ProtocoloBinario.CONSULTAR -> sumidero += s.cuenta;
+                case ProtocoloBinario.TRANSFERIR -> sumidero += s.cuenta + s.destino + s.monto;
+                case ProtocoloBinario.DELTA -> {
+                    sumidero += s.particion;
+                    for (String d : s.deltas) {
+                        sumidero += d.length();
+                    }
+                }
+                default -> sumidero += s.opcode;
+            }
+        }
+        return (System.nanoTime() - inicio) / (double) MENSAJES;
+    }
+}
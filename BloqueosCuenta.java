@@ -0,0 +1,77 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class BloqueosCuenta {
+    private static final int FRANJAS = Integer.getInteger("bloqueos.franjas", 256);
+
+    private final ReentrantLock[] franjas;
+    private final int mascara;
+    private final LongAdder adquisiciones = new LongAdder();
+    private final LongAdder contenciones = new LongAdder();
+
+    public BloqueosCuenta() {
+        this(FRANJAS);
+    }
+
+    public BloqueosCuenta(int cantidad) {
+        int potencia = Integer.highestOneBit(Math.max(2, cantidad) - 1) << 1;
+        this.franjas = new ReentrantLock[potencia];
+        for (int i = 0; i < potencia; i++) {
+            franjas[i] = new ReentrantLock();
+        }
+        this.mascara = potencia - 1;
+    }
+
+    public void bloquear(int idA, int idB) {
+        int a = franja(idA);
+        int b = franja(idB);
+        if (a == b) {
+            adquirir(franjas[a]);
+        } else {
+            adquirir(franjas[Math.min(a, b)]);
+            adquirir(franjas[Math.max(a, b)]);
+        }
+    }
+
+    public void desbloquear(int idA, int idB) {
+        int a = franja(idA);
+        int b = franja(idB);
+        if (a == b) {
+            franjas[a].unlock();
+        } else {
+            franjas[Math.max(a, b)].unlock();
+            franjas[Math.min(a, b)].unlock();
+        }
+    }
+
+    public void bloquearTodas() {
+        for (ReentrantLock franja : franjas) {
+            adquirir(franja);
+        }
+    }
+
+    public void desbloquearTodas() {
+        for (int i = franjas.length - 1; i >= 0; i--) {
+            franjas[i].unlock();
+        }
+    }
+
+    public String resumen() {
+        long total = adquisiciones.sum();
+        return String.format("BLOQUEOS|franjas=%d|adquisiciones=%d|contencion=%.2f%%", franjas.length, total,
+                total == 0 ? 0.0 : contenciones.sum() * 100.0 / total);
+    }
+
+    private void adquirir(ReentrantLock franja) {
+        adquisiciones.increment();
+        if (!franja.tryLock()) {
+            contenciones.increment();
+            franja.lock();
+        }
+    }
+
+    private int franja(int idCuenta) {
+        int h = idCuenta * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mascara;
+    }
+}
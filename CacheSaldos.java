@@ -0,0 +1,120 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caché de saldos del servidor, de lectura a través y con desalojo LRU por número de entradas. Cada transferencia
+ * invalida sus dos cuentas dejando una marca con un sello nuevo y la secuencia de la escritura: una lectura solo
+ * llena la entrada si la marca no ha cambiado desde que empezó, y la consulta pide al nodo al menos esa secuencia,
+ * así que ni una lectura cruzada con la escritura ni una réplica atrasada pueden dejar un saldo anterior. La
+ * caducidad por tiempo cubre los cambios que no pasan por el servidor.
+ */
+public class CacheSaldos {
+    private static final int MAXIMO = Integer.getInteger("cache.entradas", 10000);
+    private static final long TTL_MS = Long.getLong("cache.ttlMs", 5000);
+    private static final boolean DESHABILITADA = Boolean.getBoolean("cache.deshabilitada");
+
+    private final LinkedHashMap<String, Entrada> entradas = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entrada> mayor) {
+            if (size() <= MAXIMO)
+                return false;
+            desalojos++;
+            return true;
+        }
+    };
+    private long sellos;
+    private long aciertos;
+    private long fallos;
+    private long invalidaciones;
+    private long desalojos;
+    private long rechazadas;
+    private long edadTotalMs;
+    private long edadMaximaMs;
+
+    public static final class Entrada {
+        final long sello;
+        final int particion;
+        final long secuenciaMinima;
+        final String saldo;
+        final long instante;
+
+        Entrada(long sello, int particion, long secuenciaMinima, String saldo, long instante) {
+            this.sello = sello;
+            this.particion = particion;
+            this.secuenciaMinima = secuenciaMinima;
+            this.saldo = saldo;
+            this.instante = instante;
+        }
+
+        public long getSecuenciaMinima() {
+            return secuenciaMinima;
+        }
+    }
+
+    public synchronized String obtener(String idCuenta) {
+        if (DESHABILITADA)
+            return null;
+        Entrada entrada = entradas.get(idCuenta);
+        long edad = entrada != null ? System.currentTimeMillis() - entrada.instante : 0;
+        if (entrada == null || entrada.saldo == null || edad > TTL_MS) {
+            fallos++;
+            return null;
+        }
+        aciertos++;
+        edadTotalMs += edad;
+        edadMaximaMs = Math.max(edadMaximaMs, edad);
+        return entrada.saldo;
+    }
+
+    // Devuelve la marca que la lectura debe encontrar intacta al llenar la entrada.
+    public synchronized Entrada reservar(String idCuenta, int particion) {
+        Entrada entrada = entradas.get(idCuenta);
+        if (entrada == null) {
+            entrada = new Entrada(++sellos, particion, 0, null, 0);
+            entradas.put(idCuenta, entrada);
+        }
+        return entrada;
+    }
+
+    public synchronized void llenar(String idCuenta, Entrada reserva, String saldo) {
+        if (DESHABILITADA)
+            return;
+        Entrada actual = entradas.get(idCuenta);
+        if (actual == null || actual.sello != reserva.sello) {
+            rechazadas++;
+            return;
+        }
+        entradas.put(idCuenta, new Entrada(reserva.sello, reserva.particion, reserva.secuenciaMinima, saldo,
+                System.currentTimeMillis()));
+    }
+
+    public synchronized void invalidar(String idCuenta, int particion, long secuencia) {
+        Entrada anterior = entradas.get(idCuenta);
+        long minima = anterior != null ? Math.max(anterior.secuenciaMinima, secuencia) : secuencia;
+        entradas.put(idCuenta, new Entrada(++sellos, particion, minima, null, 0));
+        invalidaciones++;
+    }
+
+    public synchronized void invalidarParticion(int particion) {
+        for (Map.Entry<String, Entrada> e : entradas.entrySet()) {
+            Entrada anterior = e.getValue();
+            if (anterior.particion == particion) {
+                e.setValue(new Entrada(++sellos, particion, anterior.secuenciaMinima, null, 0));
+                invalidaciones++;
+            }
+        }
+    }
+
+    public synchronized void vaciar() {
+        invalidaciones += entradas.size();
+        entradas.clear();
+    }
+
+    public synchronized String resumen() {
+        long consultas = aciertos + fallos;
+        return String.format("CACHE|entradas=%d|aciertos=%d|fallos=%d|ratio=%.3f|invalidaciones=%d|desalojos=%d|"
+                + "rechazadas=%d|edadMedia=%dms|edadMaxima=%dms", entradas.size(), aciertos, fallos,
+                consultas == 0 ? 0.0 : (double) aciertos / consultas, invalidaciones, desalojos, rechazadas,
+                aciertos == 0 ? 0 : edadTotalMs / aciertos, edadMaximaMs);
+    }
+}
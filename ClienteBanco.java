@@ -12,11 +12,13 @@ public class ClienteBanco {
     private static final AtomicInteger transaccionesExitosas = new AtomicInteger();
     private static final String[] OPERACIONES = { "CONSULTAR_SALDO", "TRANSFERIR_FONDOS" };
     private static final Random rand = new Random();
+    private static final int CLIENTES = 1000;
+    private static final int OPERACIONES_POR_SESION = 5;
 
     public static void main(String[] args) {
         ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor();
 
-        for (int i = 0; i < 1000; i++) {
+        for (int i = 0; i < CLIENTES; i++) {
             final int clienteId = i;
             pool.execute(() -> {
                 try {
@@ -29,16 +31,21 @@ public class ClienteBanco {
                                 BufferedReader in = new BufferedReader(
                                         new InputStreamReader(socket.getInputStream()))) {
 
-                            String operacion = OPERACIONES[rand.nextInt(OPERACIONES.length)];
-                            String mensaje = generarMensaje(operacion);
-
-                            out.println(mensaje);
+                            for (int op = 0; op < OPERACIONES_POR_SESION; op++) {
+                                String operacion = OPERACIONES[rand.nextInt(OPERACIONES.length)];
+                                out.println("#" + op + "|" + generarMensaje(operacion));
+                            }
                             out.flush();
 
-                            String respuesta = in.readLine();
+                            for (int op = 0; op < OPERACIONES_POR_SESION; op++) {
+                                String respuesta = in.readLine();
+                                if (respuesta == null)
+                                    break;
 
-                            if (respuesta != null && !respuesta.startsWith("ERROR")) {
-                                transaccionesExitosas.incrementAndGet();
+                                String cuerpo = respuesta.substring(respuesta.indexOf('|') + 1);
+                                if (!cuerpo.startsWith("ERROR")) {
+                                    transaccionesExitosas.incrementAndGet();
+                                }
                             }
 
                             Thread.sleep(rand.nextInt(1000));
@@ -55,7 +62,8 @@ public class ClienteBanco {
             pool.awaitTermination(2, TimeUnit.MINUTES);
             System.out.println("\nResultados:");
             System.out.println("Transacciones exitosas: " + transaccionesExitosas.get());
-            System.out.println("Transacciones fallidas: " + (1000 - transaccionesExitosas.get()));
+            System.out.println("Transacciones fallidas: "
+                    + (CLIENTES * OPERACIONES_POR_SESION - transaccionesExitosas.get()));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
@@ -66,10 +74,8 @@ public class ClienteBanco {
         return switch (operacion) {
             case "CONSULTAR_SALDO" -> "CONSULTAR_SALDO|" + cuentaId;
             case "TRANSFERIR_FONDOS" ->
-                String.format("TRANSFERIR_FONDOS|%d|%d|%.2f",
-                        cuentaId,
-                        101 + rand.nextInt(1000),
-                        rand.nextDouble() * 1000);
+                "TRANSFERIR_FONDOS|" + cuentaId + "|" + (101 + rand.nextInt(1000)) + "|"
+                        + Dinero.formatear(1 + rand.nextInt(100_000));
             default -> throw new IllegalArgumentException();
         };
     }
@@ -0,0 +1,62 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Umbral y presupuesto de las lecturas cubiertas. El umbral es un percentil de las latencias de lectura recientes:
+ * una lectura que lo supera recibe una segunda consulta a otra réplica. Cada lectura aporta una fracción de crédito
+ * y cada cobertura gasta uno entero, así que durante una caída las coberturas no pasan de esa fracción del tráfico.
+ */
+public class CoberturaLecturas {
+    private static final double PERCENTIL = Integer.getInteger("lectura.percentilCobertura", 95) / 100.0;
+    private static final long MINIMO_NANOS = Long.getLong("lectura.coberturaMinimaMs", 2) * 1_000_000;
+    private static final long INICIAL_NANOS = Long.getLong("lectura.coberturaInicialMs", 20) * 1_000_000;
+    private static final double PRESUPUESTO = Integer.getInteger("lectura.presupuestoCobertura", 5) / 100.0;
+    private static final double MAXIMO_CREDITOS = 10;
+    private static final int MUESTRAS = 1024;
+    private static final int RECALCULAR_CADA = 128;
+
+    private final long[] muestras = new long[MUESTRAS];
+    private final AtomicInteger siguiente = new AtomicInteger(0);
+    private volatile long umbralNanos = INICIAL_NANOS;
+    private double creditos = MAXIMO_CREDITOS;
+    private final AtomicLong emitidas = new AtomicLong(0);
+    private final AtomicLong ganadas = new AtomicLong(0);
+    private final AtomicLong denegadas = new AtomicLong(0);
+
+    public long umbralNanos() {
+        return umbralNanos;
+    }
+
+    public void observar(long latenciaNanos) {
+        int n = siguiente.getAndIncrement();
+        muestras[Math.floorMod(n, MUESTRAS)] = latenciaNanos;
+        synchronized (this) {
+            creditos = Math.min(MAXIMO_CREDITOS, creditos + PRESUPUESTO);
+        }
+        if (n >= RECALCULAR_CADA && n % RECALCULAR_CADA == 0) {
+            long[] copia = Arrays.copyOf(muestras, Math.min(n + 1, MUESTRAS));
+            Arrays.sort(copia);
+            umbralNanos = Math.max(MINIMO_NANOS, copia[(int) ((copia.length - 1) * PERCENTIL)]);
+        }
+    }
+
+    public synchronized boolean intentar() {
+        if (creditos < 1) {
+            denegadas.incrementAndGet();
+            return false;
+        }
+        creditos -= 1;
+        emitidas.incrementAndGet();
+        return true;
+    }
+
+    public void ganada() {
+        ganadas.incrementAndGet();
+    }
+
+    public synchronized String resumen() {
+        return String.format("COBERTURA|umbral=%.3fms|emitidas=%d|ganadas=%d|denegadas=%d|creditos=%.1f",
+                umbralNanos / 1e6, emitidas.get(), ganadas.get(), denegadas.get(), creditos);
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+
+/**
+ * Agrupa las confirmaciones de escritura: un lote sincroniza el WAL de cada partición afectada una vez y lanza la
+ * replicación a sus réplicas en paralelo. Cada escritura se confirma cuando tiene las réplicas que pide su nivel de
+ * consistencia; con ONE no espera a ninguna y la replicación termina en segundo plano.
+ */
+public class ConfirmacionGrupal {
+    private static final int TAMANO_MAXIMO = Integer.getInteger("grupo.maximo", 64);
+    private static final long VENTANA_MS = Long.getLong("grupo.ventanaMs", 2);
+
+    private final BlockingQueue<Pendiente> cola = new LinkedBlockingQueue<>();
+    private final BiFunction<Integer, Particion, List<CompletableFuture<Long>>> replicar;
+    private final AtomicLong lotes = new AtomicLong(0);
+    private final AtomicLong confirmadas = new AtomicLong(0);
+    private final AtomicLong loteMaximo = new AtomicLong(0);
+    private final AtomicLong latenciaTotalNanos = new AtomicLong(0);
+    private final AtomicLong latenciaMaximaNanos = new AtomicLong(0);
+    private final AtomicLongArray porNivel = new AtomicLongArray(NivelConsistencia.values().length);
+    private final AtomicLongArray latenciaPorNivelNanos = new AtomicLongArray(NivelConsistencia.values().length);
+    private final AtomicLongArray sinReplicas = new AtomicLongArray(NivelConsistencia.values().length);
+    private volatile boolean running = true;
+
+    public static class ReplicasInsuficientes extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ReplicasInsuficientes(NivelConsistencia nivel, int requeridas, int confirmadas) {
+            super("Nivel " + nivel + ": " + confirmadas + " de " + requeridas + " réplicas remotas");
+        }
+    }
+
+    public ConfirmacionGrupal(BiFunction<Integer, Particion, List<CompletableFuture<Long>>> replicar) {
+        this.replicar = replicar;
+        Thread hilo = new Thread(this::procesarLotes, "confirmacion-grupal");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    public CompletableFuture<Void> confirmar(int particionId, Particion particion) {
+        return confirmar(particionId, particion, NivelConsistencia.ONE);
+    }
+
+    public CompletableFuture<Void> confirmar(int particionId, Particion particion, NivelConsistencia nivel) {
+        Pendiente pendiente = new Pendiente(particionId, particion, nivel, particion.getSecuencia());
+        cola.add(pendiente);
+        return pendiente.futuro;
+    }
+
+    public void detener() {
+        running = false;
+    }
+
+    private void procesarLotes() {
+        List<Pendiente> lote = new ArrayList<>(TAMANO_MAXIMO);
+        while (running) {
+            try {
+                Pendiente primero = cola.poll(1, TimeUnit.SECONDS);
+                if (primero == null)
+                    continue;
+
+                lote.add(primero);
+                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(VENTANA_MS);
+                while (lote.size() < TAMANO_MAXIMO) {
+                    long restante = limite - System.nanoTime();
+                    if (restante <= 0) {
+                        cola.drainTo(lote, TAMANO_MAXIMO - lote.size());
+                        break;
+                    }
+                    Pendiente siguiente = cola.poll(restante, TimeUnit.NANOSECONDS);
+                    if (siguiente == null)
+                        break;
+                    lote.add(siguiente);
+                }
+
+                confirmarLote(lote);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                lote.clear();
+            }
+        }
+    }
+
+    private void confirmarLote(List<Pendiente> lote) {
+        Map<Integer, Particion> afectadas = new LinkedHashMap<>();
+        for (Pendiente pendiente : lote) {
+            afectadas.putIfAbsent(pendiente.particionId, pendiente.particion);
+        }
+
+        Map<Integer, List<CompletableFuture<Long>>> envios = new HashMap<>();
+        RuntimeException error = null;
+        try {
+            afectadas.values().forEach(Particion::confirmarDurabilidad);
+            afectadas.forEach((particionId, particion) -> envios.put(particionId,
+                    replicar.apply(particionId, particion)));
+        } catch (RuntimeException e) {
+            error = e;
+            System.err.println("Error confirmando lote: " + e.getMessage());
+        }
+
+        for (Pendiente pendiente : lote) {
+            if (error == null) {
+                esperarReplicas(pendiente, envios.get(pendiente.particionId));
+            } else {
+                completar(pendiente, error);
+            }
+        }
+        lotes.incrementAndGet();
+        confirmadas.addAndGet(lote.size());
+        loteMaximo.accumulateAndGet(lote.size(), Math::max);
+    }
+
+    // El primario ya tiene la escritura: se esperan las réplicas remotas que falten para el nivel, y en cuanto las
+    // que fallan hacen imposible llegar, se da por fallida.
+    private void esperarReplicas(Pendiente pendiente, List<CompletableFuture<Long>> replicas) {
+        int requeridas = pendiente.nivel.requeridas(replicas.size() + 1) - 1;
+        if (requeridas <= 0) {
+            completar(pendiente, null);
+            return;
+        }
+        AtomicInteger confirmadasRemotas = new AtomicInteger();
+        AtomicInteger fallidas = new AtomicInteger();
+        for (CompletableFuture<Long> replica : replicas) {
+            replica.whenComplete((secuencia, e) -> {
+                if (e == null && secuencia >= pendiente.objetivo) {
+                    if (confirmadasRemotas.incrementAndGet() == requeridas) {
+                        completar(pendiente, null);
+                    }
+                } else if (fallidas.incrementAndGet() == replicas.size() - requeridas + 1) {
+                    sinReplicas.incrementAndGet(pendiente.nivel.ordinal());
+                    completar(pendiente, new ReplicasInsuficientes(pendiente.nivel, requeridas,
+                            confirmadasRemotas.get()));
+                }
+            });
+        }
+    }
+
+    private void completar(Pendiente pendiente, Throwable error) {
+        long latencia = System.nanoTime() - pendiente.inicio;
+        latenciaTotalNanos.addAndGet(latencia);
+        latenciaMaximaNanos.accumulateAndGet(latencia, Math::max);
+        porNivel.incrementAndGet(pendiente.nivel.ordinal());
+        latenciaPorNivelNanos.addAndGet(pendiente.nivel.ordinal(), latencia);
+        if (error == null) {
+            pendiente.futuro.complete(null);
+        } else {
+            pendiente.futuro.completeExceptionally(error);
+        }
+    }
+
+    public String resumen() {
+        long totalLotes = lotes.get();
+        long total = confirmadas.get();
+        return String.format("GRUPO|lotes=%d|confirmadas=%d|loteMedio=%.2f|loteMax=%d|latenciaMedia=%.3fms"
+                + "|latenciaMax=%.3fms|enCola=%d",
+                totalLotes, total, totalLotes == 0 ? 0.0 : (double) total / totalLotes, loteMaximo.get(),
+                total == 0 ? 0.0 : latenciaTotalNanos.get() / 1e6 / total, latenciaMaximaNanos.get() / 1e6,
+                cola.size()) + resumenNiveles();
+    }
+
+    private String resumenNiveles() {
+        StringBuilder sb = new StringBuilder();
+        for (NivelConsistencia nivel : NivelConsistencia.values()) {
+            long n = porNivel.get(nivel.ordinal());
+            sb.append(String.format("|%s=%d/%.3fms/sinReplicas=%d", nivel, n,
+                    n == 0 ? 0.0 : latenciaPorNivelNanos.get(nivel.ordinal()) / 1e6 / n,
+                    sinReplicas.get(nivel.ordinal())));
+        }
+        return sb.toString();
+    }
+
+    private static class Pendiente {
+        final int particionId;
+        final Particion particion;
+        final NivelConsistencia nivel;
+        final long objetivo;
+        final long inicio = System.nanoTime();
+        final CompletableFuture<Void> futuro = new CompletableFuture<>();
+
+        Pendiente(int particionId, Particion particion, NivelConsistencia nivel, long objetivo) {
+            this.particionId = particionId;
+            this.particion = particion;
+            this.nivel = nivel;
+            this.objetivo = objetivo;
+        }
+    }
+}
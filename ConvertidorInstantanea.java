@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+public class ConvertidorInstantanea {
+    public static void main(String[] args) throws IOException {
+        System.setProperty("particion.instantanea", "true");
+        Path raiz = Paths.get(args.length > 0 ? args[0] : "datos");
+        List<Path> archivos;
+        try (var rutas = Files.walk(raiz)) {
+            archivos = rutas.filter(p -> p.toString().endsWith(".dat")).sorted().toList();
+        }
+
+        int convertidos = 0;
+        for (Path archivo : archivos) {
+            Path destino = Paths.get(archivo.toString().replaceFirst("\\.dat$", "") + ".snap");
+            Files.copy(archivo, Paths.get(archivo + ".texto"), StandardCopyOption.REPLACE_EXISTING);
+
+            long inicio = System.nanoTime();
+            Particion particion = new Particion(archivo.toString());
+            long conversion = System.nanoTime() - inicio;
+            long total = particion.arqueoLocal();
+
+            try (InstantaneaParticion instantanea = InstantaneaParticion.abrir(destino)) {
+                if (instantanea.getSumaSaldos() != total) {
+                    System.err.printf("Descuadre en %s: texto=%s instantanea=%s%n", archivo, Dinero.formatear(total),
+                            Dinero.formatear(instantanea.getSumaSaldos()));
+                    continue;
+                }
+                System.out.printf("Convertido: %s cuentas=%d transacciones=%d total=%s conversion=%.1fms "
+                        + "tamano=%dKB%n", destino, instantanea.getCuentas(), instantanea.getTransacciones(), Dinero.formatear(total),
+                        conversion / 1e6, Files.size(destino) / 1024);
+                convertidos++;
+            }
+        }
+        System.out.println("Archivos convertidos: " + convertidos + " de " + archivos.size());
+    }
+}
@@ -1,10 +1,10 @@
 public class Cuenta {
     private final int id;
     private final int idCliente;
-    private double saldo;
+    private volatile long saldo;
     private final String tipoCuenta;
 
-    public Cuenta(int id, int idCliente, double saldo, String tipoCuenta) {
+    public Cuenta(int id, int idCliente, long saldo, String tipoCuenta) {
         this.id = id;
         this.idCliente = idCliente;
         this.saldo = saldo;
@@ -19,7 +19,7 @@ public class Cuenta {
         return idCliente;
     }
 
-    public double getSaldo() {
+    public long getSaldo() {
         return saldo;
     }
 
@@ -27,11 +27,11 @@ public class Cuenta {
         return tipoCuenta;
     }
 
-    public synchronized void retirar(double monto) {
+    public synchronized void retirar(long monto) {
         saldo -= monto;
     }
 
-    public synchronized void depositar(double monto) {
+    public synchronized void depositar(long monto) {
         saldo += monto;
     }
 }
\ No newline at end of file
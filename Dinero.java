@@ -0,0 +1,74 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+public final class Dinero {
+    private Dinero() {
+    }
+
+    public static long parsear(CharSequence texto) {
+        return parsear(texto, 0, texto.length());
+    }
+
+    public static long parsear(CharSequence texto, int desde, int hasta) {
+        if (desde >= hasta) {
+            throw new NumberFormatException("Importe vacío");
+        }
+        boolean negativo = texto.charAt(desde) == '-';
+        int i = negativo ? desde + 1 : desde;
+        if (i >= hasta) {
+            throw new NumberFormatException("Importe inválido");
+        }
+
+        long enteros = 0;
+        int digitos = 0;
+        for (; i < hasta && texto.charAt(i) != '.'; i++, digitos++) {
+            int d = texto.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("Importe inválido");
+            }
+            enteros = Math.addExact(Math.multiplyExact(enteros, 10), d);
+        }
+
+        long centavos = 0;
+        int decimales = 0;
+        if (i < hasta) {
+            for (i++; i < hasta; i++, decimales++) {
+                int d = texto.charAt(i) - '0';
+                if (d < 0 || d > 9 || decimales == 2) {
+                    throw new NumberFormatException("Importe inválido");
+                }
+                centavos = centavos * 10 + d;
+            }
+        }
+        if (digitos == 0 && decimales == 0) {
+            throw new NumberFormatException("Importe inválido");
+        }
+        if (decimales == 1) {
+            centavos *= 10;
+        }
+
+        long total = Math.addExact(Math.multiplyExact(enteros, 100), centavos);
+        return negativo ? -total : total;
+    }
+
+    public static long redondear(String texto) {
+        return new BigDecimal(texto).setScale(2, RoundingMode.HALF_EVEN).movePointRight(2).longValueExact();
+    }
+
+    public static StringBuilder formatear(StringBuilder sb, long centavos) {
+        if (centavos < 0) {
+            sb.append('-');
+            centavos = Math.negateExact(centavos);
+        }
+        long resto = centavos % 100;
+        sb.append(centavos / 100).append('.');
+        if (resto < 10) {
+            sb.append('0');
+        }
+        return sb.append(resto);
+    }
+
+    public static String formatear(long centavos) {
+        return formatear(new StringBuilder(24), centavos).toString();
+    }
+}
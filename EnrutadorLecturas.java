@@ -0,0 +1,117 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Elección de réplica para lecturas por dos opciones al azar: de dos candidatas gana la de menor coste, que es la
+ * latencia esperada multiplicada por las lecturas que ya tiene en curso. La latencia esperada es la media móvil
+ * exponencial de sus respuestas o, si es mayor, la antigüedad media de las lecturas que aún no han vuelto, de modo
+ * que una réplica que se detiene deja de recibir lecturas antes de que terminen las que la esperan. Una réplica que
+ * lleva un rato sin elegirse recibe una lectura de sondeo para que su media no se quede anclada en un pico antiguo.
+ */
+public class EnrutadorLecturas {
+    private static final double ALFA = Double.parseDouble(System.getProperty("lectura.alfaEwma", "0.2"));
+    private static final long SONDEO_NANOS = Long.getLong("lectura.sondeoMs", 1000) * 1_000_000;
+    private static final double PENALIZACION_FALLO = 4.0;
+
+    private final Map<Integer, Replica> replicas = new ConcurrentHashMap<>();
+    private final AtomicLong sondeos = new AtomicLong(0);
+
+    public int elegir(List<Integer> candidatas) {
+        int total = candidatas.size();
+        if (total == 0)
+            return -1;
+        if (total == 1)
+            return elegida(candidatas.get(0));
+
+        long ahora = System.nanoTime();
+        for (int nodo : candidatas) {
+            Replica replica = replica(nodo);
+            long ultima = replica.ultimaEleccion.get();
+            if (ahora - ultima > SONDEO_NANOS && replica.ultimaEleccion.compareAndSet(ultima, ahora)) {
+                sondeos.incrementAndGet();
+                replica.elecciones.incrementAndGet();
+                return nodo;
+            }
+        }
+
+        ThreadLocalRandom azar = ThreadLocalRandom.current();
+        int a = azar.nextInt(total);
+        int b = azar.nextInt(total - 1);
+        if (b >= a)
+            b++;
+        int nodoA = candidatas.get(a);
+        int nodoB = candidatas.get(b);
+        return elegida(replica(nodoA).coste() <= replica(nodoB).coste() ? nodoA : nodoB);
+    }
+
+    public long iniciar(int nodo) {
+        long inicio = System.nanoTime();
+        Replica replica = replica(nodo);
+        replica.sumaInicios.addAndGet(inicio);
+        replica.enVuelo.incrementAndGet();
+        return inicio;
+    }
+
+    public void finalizar(int nodo, long inicio) {
+        Replica replica = terminar(nodo, inicio);
+        replica.observar(System.nanoTime() - inicio);
+    }
+
+    public void fallo(int nodo, long inicio) {
+        Replica replica = terminar(nodo, inicio);
+        replica.fallos.incrementAndGet();
+        replica.observar(Math.max(System.nanoTime() - inicio, replica.ewmaNanos * PENALIZACION_FALLO));
+    }
+
+    private Replica terminar(int nodo, long inicio) {
+        Replica replica = replica(nodo);
+        replica.enVuelo.decrementAndGet();
+        replica.sumaInicios.addAndGet(-inicio);
+        return replica;
+    }
+
+    private int elegida(int nodo) {
+        Replica replica = replica(nodo);
+        replica.ultimaEleccion.set(System.nanoTime());
+        replica.elecciones.incrementAndGet();
+        return nodo;
+    }
+
+    private Replica replica(int nodo) {
+        return replicas.computeIfAbsent(nodo, n -> new Replica());
+    }
+
+    public String resumen() {
+        StringBuilder sb = new StringBuilder("LECTURAS|sondeos=").append(sondeos.get());
+        replicas.forEach((nodo, r) -> sb.append(String.format("|nodo%d=elecciones:%d,enVuelo:%d,ewma:%.3fms,fallos:%d",
+                nodo, r.elecciones.get(), r.enVuelo.get(), r.ewmaNanos / 1e6, r.fallos.get())));
+        return sb.toString();
+    }
+
+    private static class Replica {
+        final AtomicInteger enVuelo = new AtomicInteger(0);
+        final AtomicLong sumaInicios = new AtomicLong(0);
+        final AtomicLong elecciones = new AtomicLong(0);
+        final AtomicLong fallos = new AtomicLong(0);
+        final AtomicLong ultimaEleccion = new AtomicLong(System.nanoTime());
+        volatile double ewmaNanos;
+
+        synchronized void observar(double latenciaNanos) {
+            ewmaNanos = ewmaNanos == 0 ? latenciaNanos : ALFA * latenciaNanos + (1 - ALFA) * ewmaNanos;
+        }
+
+        double coste() {
+            long inicios = sumaInicios.get();
+            int pendientes = enVuelo.get();
+            double esperada = ewmaNanos;
+            if (pendientes > 0) {
+                esperada = Math.max(esperada, System.nanoTime() - (double) inicios / pendientes);
+            }
+            return esperada * (pendientes + 1);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ids de transacción de 64 bits al estilo Snowflake: 41 bits de milisegundos desde 2024, 10 del nodo y 12 de
+ * secuencia. El estado (milisegundo y secuencia) es un único AtomicLong que avanza por CAS; si la secuencia se agota o
+ * el reloj retrocede, el estado sigue adelante tomando prestados milisegundos del futuro, así que los ids de un nodo
+ * son estrictamente crecientes sin esperas ni cerrojos. Para que un reinicio con el reloj atrasado no repita ids, el
+ * nodo guarda en disco un horizonte de reserva y nunca emite por encima de él sin haberlo ampliado antes; arrancar
+ * empieza en el horizonte guardado. Ampliarlo escribe el archivo y ocurre una vez cada {@code ids.reservaMs}.
+ */
+public class GeneradorIds {
+    static final long EPOCA_MS = 1704067200000L;
+    static final int BITS_NODO = 10;
+    static final int BITS_SECUENCIA = 12;
+    static final long MAXIMO_NODO = (1L << BITS_NODO) - 1;
+    private static final long MASCARA_SECUENCIA = (1L << BITS_SECUENCIA) - 1;
+    private static final long RESERVA_MS = Long.getLong("ids.reservaMs", 10000);
+
+    // Para herramientas fuera de un nodo (conversión, benchmarks): nodo 0 y sin reserva en disco.
+    public static final GeneradorIds LOCAL = new GeneradorIds(0, null);
+
+    private final long nodo;
+    private final Path archivo;
+    private final AtomicLong estado;
+    private volatile long reservadoHasta;
+    private long ampliaciones;
+
+    public GeneradorIds(int nodo, Path archivo) {
+        if (nodo < 0 || nodo > MAXIMO_NODO) {
+            throw new IllegalArgumentException("Id de nodo fuera de rango para el generador de ids: " + nodo);
+        }
+        this.nodo = nodo;
+        this.archivo = archivo;
+        long inicio = System.currentTimeMillis() - EPOCA_MS;
+        if (archivo != null) {
+            inicio = Math.max(inicio, leerReserva());
+        }
+        this.estado = new AtomicLong(inicio << BITS_SECUENCIA);
+        this.reservadoHasta = archivo != null ? inicio : Long.MAX_VALUE;
+    }
+
+    public long siguiente() {
+        while (true) {
+            long actual = estado.get();
+            long ahora = System.currentTimeMillis() - EPOCA_MS;
+            long nuevo = ahora > actual >>> BITS_SECUENCIA ? ahora << BITS_SECUENCIA : actual + 1;
+            if (estado.compareAndSet(actual, nuevo)) {
+                long ms = nuevo >>> BITS_SECUENCIA;
+                if (ms >= reservadoHasta) {
+                    ampliarReserva(ms);
+                }
+                return ms << (BITS_NODO + BITS_SECUENCIA) | nodo << BITS_SECUENCIA | nuevo & MASCARA_SECUENCIA;
+            }
+        }
+    }
+
+    public static long milisegundos(long id) {
+        return (id >>> (BITS_NODO + BITS_SECUENCIA)) + EPOCA_MS;
+    }
+
+    public static int nodo(long id) {
+        return (int) (id >>> BITS_SECUENCIA & MAXIMO_NODO);
+    }
+
+    public synchronized String resumen() {
+        long ultimo = estado.get();
+        return String.format("IDS|nodo=%d|ultimoMs=%d|secuencia=%d|reservadoHasta=%d|ampliaciones=%d", nodo,
+                (ultimo >>> BITS_SECUENCIA) + EPOCA_MS, ultimo & MASCARA_SECUENCIA,
+                reservadoHasta == Long.MAX_VALUE ? -1 : reservadoHasta + EPOCA_MS, ampliaciones);
+    }
+
+    // Quien cruza el horizonte espera a que el nuevo esté en disco antes de devolver su id.
+    private synchronized void ampliarReserva(long ms) {
+        if (ms < reservadoHasta)
+            return;
+        long nuevo = ms + RESERVA_MS;
+        Path temporal = archivo.resolveSibling(archivo.getFileName() + ".tmp");
+        try {
+            try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                canal.write(ByteBuffer.wrap(("RESERVA|" + nuevo + "\n").getBytes(StandardCharsets.UTF_8)));
+                canal.force(true);
+            }
+            Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Sin reserva en disco los ids siguen siendo únicos mientras el nodo no se reinicie con el reloj atrasado.
+            System.err.println("Error guardando reserva de ids: " + e.getMessage());
+        }
+        reservadoHasta = nuevo;
+        ampliaciones++;
+    }
+
+    private long leerReserva() {
+        try {
+            if (!Files.exists(archivo))
+                return 0;
+            String contenido = Files.readString(archivo).trim();
+            return contenido.startsWith("RESERVA|") ? Long.parseLong(contenido.substring(8)) : 0;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error leyendo reserva de ids: " + e.getMessage());
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Historial de transacciones de una partición en dos niveles. Las recientes viven en memoria, ordenadas por id, hasta
+ * un presupuesto de bytes; al compactar, las más antiguas que lo exceden se vuelcan a segmentos inmutables en disco.
+ * Un segmento son bloques de líneas comprimidos por separado y, al final, un índice disperso con el primer id y la
+ * posición de cada bloque. De los segmentos solo se conoce al arrancar el rango de ids, que va en el nombre; el
+ * índice se lee la primera vez que una búsqueda cae en el segmento y luego se descomprime un único bloque.
+ */
+public class HistorialTransacciones {
+    private static final long MEMORIA_BYTES = Long.getLong("historial.memoriaKB", 16384) * 1024;
+    private static final int POR_SEGMENTO = Integer.getInteger("historial.transaccionesPorSegmento", 65536);
+    private static final int POR_BLOQUE = Integer.getInteger("historial.transaccionesPorBloque", 256);
+    // Transaccion con su LocalDateTime, el estado y la entrada del TreeMap con su clave.
+    static final int BYTES_POR_TRANSACCION = 200;
+    private static final int MAGIA = 0x48495332;
+    private static final ByteOrder ORDEN = ByteOrder.LITTLE_ENDIAN;
+    private static final DateTimeFormatter FECHA = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    private static final Pattern NOMBRE_SEGMENTO = Pattern.compile("(\\d+)-(\\d+)-(\\d+)\\.seg");
+
+    private final Path directorio;
+    private final TreeMap<Long, Transaccion> recientes = new TreeMap<>();
+    private final TreeMap<Long, Segmento> segmentos = new TreeMap<>();
+    private long enDisco;
+    private long bytesDisco;
+    private long volcadas;
+    private long lecturasFrias;
+
+    private static final class Segmento {
+        final Path archivo;
+        final long primerId;
+        final long ultimoId;
+        final int cantidad;
+        long[] primerosIds;
+        long[] posiciones;
+
+        Segmento(Path archivo, long primerId, long ultimoId, int cantidad) {
+            this.archivo = archivo;
+            this.primerId = primerId;
+            this.ultimoId = ultimoId;
+            this.cantidad = cantidad;
+        }
+    }
+
+    public HistorialTransacciones(Path directorio) {
+        this.directorio = directorio;
+        if (!Files.isDirectory(directorio))
+            return;
+        try (Stream<Path> archivos = Files.list(directorio)) {
+            for (Path archivo : archivos.toList()) {
+                Matcher m = NOMBRE_SEGMENTO.matcher(archivo.getFileName().toString());
+                if (m.matches()) {
+                    Segmento s = new Segmento(archivo, Long.parseLong(m.group(1)), Long.parseLong(m.group(2)),
+                            Integer.parseInt(m.group(3)));
+                    segmentos.put(s.primerId, s);
+                    enDisco += s.cantidad;
+                    bytesDisco += Files.size(archivo);
+                } else if (archivo.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(archivo);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error leyendo segmentos de historial: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registra una transacción en memoria. Las que ya están en un segmento se ignoran: tras una caída entre el
+     * volcado y la reescritura del archivo de datos, este aún las trae.
+     */
+    public synchronized void registrar(Transaccion t) {
+        Map.Entry<Long, Segmento> segmento = segmentos.floorEntry(t.getId());
+        if (segmento != null && t.getId() <= segmento.getValue().ultimoId)
+            return;
+        recientes.put(t.getId(), t);
+    }
+
+    public synchronized boolean excedePresupuesto() {
+        return recientes.size() > maximoEnMemoria();
+    }
+
+    public synchronized int enMemoria() {
+        return recientes.size();
+    }
+
+    public synchronized List<Transaccion> recientes() {
+        return new ArrayList<>(recientes.values());
+    }
+
+    public synchronized void limpiarRecientes() {
+        recientes.clear();
+    }
+
+    public synchronized Transaccion buscar(long id) throws IOException {
+        Transaccion t = recientes.get(id);
+        if (t != null)
+            return t;
+        Map.Entry<Long, Segmento> entrada = segmentos.floorEntry(id);
+        if (entrada == null || id > entrada.getValue().ultimoId)
+            return null;
+
+        Segmento s = entrada.getValue();
+        try (FileChannel canal = FileChannel.open(s.archivo, StandardOpenOption.READ)) {
+            if (s.primerosIds == null) {
+                leerIndice(s, canal);
+            }
+            int bloque = buscarBloque(s.primerosIds, id);
+            lecturasFrias++;
+            for (String linea : leerBloque(canal, s.posiciones[bloque], s.posiciones[bloque + 1])) {
+                Transaccion candidata = parsear(linea);
+                if (candidata.getId() == id)
+                    return candidata;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Vuelca a segmentos las transacciones más antiguas cuando se excede el presupuesto de memoria. Cada segmento se
+     * escribe en un temporal, se sincroniza y se renombra; quien llama reescribe después su archivo de datos sin
+     * ellas.
+     */
+    public synchronized int volcar() throws IOException {
+        // Se baja hasta tres cuartos del presupuesto para que cada compactación no deje un segmento diminuto.
+        long maximo = maximoEnMemoria();
+        long objetivo = maximo * 3 / 4;
+        if (recientes.size() <= maximo)
+            return 0;
+        int total = 0;
+        while (recientes.size() > objetivo) {
+            int cantidad = (int) Math.min(POR_SEGMENTO, recientes.size() - objetivo);
+            List<Transaccion> lote = new ArrayList<>(cantidad);
+            for (Transaccion t : recientes.values()) {
+                if (lote.size() == cantidad)
+                    break;
+                lote.add(t);
+            }
+            escribirSegmento(lote);
+            lote.forEach(t -> recientes.remove(t.getId()));
+            total += cantidad;
+        }
+        volcadas += total;
+        return total;
+    }
+
+    // Recorre en orden de id las transacciones ya volcadas a segmentos.
+    public void paraCadaVolcada(Consumer<Transaccion> accion) throws IOException {
+        List<Segmento> enOrden;
+        synchronized (this) {
+            enOrden = new ArrayList<>(segmentos.values());
+        }
+        for (Segmento s : enOrden) {
+            try (FileChannel canal = FileChannel.open(s.archivo, StandardOpenOption.READ)) {
+                synchronized (this) {
+                    if (s.primerosIds == null) {
+                        leerIndice(s, canal);
+                    }
+                }
+                for (int b = 0; b < s.primerosIds.length; b++) {
+                    for (String linea : leerBloque(canal, s.posiciones[b], s.posiciones[b + 1])) {
+                        accion.accept(parsear(linea));
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void reiniciar() throws IOException {
+        for (Segmento s : segmentos.values()) {
+            Files.deleteIfExists(s.archivo);
+        }
+        segmentos.clear();
+        recientes.clear();
+        enDisco = 0;
+        bytesDisco = 0;
+    }
+
+    public synchronized String resumen() {
+        return String.format("HISTORIAL|%s|enMemoria=%d|memoriaEstimada=%dKB|presupuesto=%dKB|segmentos=%d|"
+                + "enDisco=%d|bytesDisco=%d|volcadas=%d|lecturasFrias=%d", directorio.getFileName(),
+                recientes.size(), (long) recientes.size() * BYTES_POR_TRANSACCION / 1024, MEMORIA_BYTES / 1024,
+                segmentos.size(), enDisco, bytesDisco, volcadas, lecturasFrias);
+    }
+
+    public static String linea(Transaccion t) {
+        return "TRANSACCION|" + t.getId() + "|" + t.getIdOrigen() + "|" + t.getIdDestino() + "|" + t.getMonto() + "|"
+                + t.getFechaHora().format(FECHA) + "|" + t.getEstado();
+    }
+
+    private static Transaccion parsear(String linea) {
+        String[] partes = linea.split("\\|");
+        return new Transaccion(Long.parseLong(partes[1]), Integer.parseInt(partes[2]), Integer.parseInt(partes[3]),
+                Long.parseLong(partes[4]), LocalDateTime.parse(partes[5], FECHA), partes[6]);
+    }
+
+    private static long maximoEnMemoria() {
+        return Math.max(1, MEMORIA_BYTES / BYTES_POR_TRANSACCION);
+    }
+
+    private void escribirSegmento(List<Transaccion> lote) throws IOException {
+        Files.createDirectories(directorio);
+        long primerId = lote.get(0).getId();
+        long ultimoId = lote.get(lote.size() - 1).getId();
+        Path destino = directorio.resolve(String.format("%019d-%019d-%d.seg", primerId, ultimoId, lote.size()));
+        Path temporal = destino.resolveSibling(destino.getFileName() + ".tmp");
+
+        int bloques = (lote.size() + POR_BLOQUE - 1) / POR_BLOQUE;
+        ByteBuffer indice = ByteBuffer.allocate(bloques * 16 + 16).order(ORDEN);
+        Deflater compresor = new Deflater(Deflater.BEST_SPEED);
+        try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long posicion = 0;
+            for (int inicio = 0; inicio < lote.size(); inicio += POR_BLOQUE) {
+                StringBuilder texto = new StringBuilder(POR_BLOQUE * 64);
+                List<Transaccion> bloque = lote.subList(inicio, Math.min(lote.size(), inicio + POR_BLOQUE));
+                bloque.forEach(t -> texto.append(linea(t)).append('\n'));
+                indice.putLong(bloque.get(0).getId()).putLong(posicion);
+
+                compresor.reset();
+                compresor.setInput(texto.toString().getBytes(StandardCharsets.UTF_8));
+                compresor.finish();
+                ByteArrayOutputStream comprimido = new ByteArrayOutputStream(texto.length() / 3);
+                byte[] buffer = new byte[8192];
+                while (!compresor.finished()) {
+                    comprimido.write(buffer, 0, compresor.deflate(buffer));
+                }
+                posicion += escribir(canal, ByteBuffer.wrap(comprimido.toByteArray()), posicion);
+            }
+            indice.putLong(posicion).putInt(bloques).putInt(MAGIA).flip();
+            escribir(canal, indice, posicion);
+            canal.force(true);
+        } finally {
+            compresor.end();
+        }
+        Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        segmentos.put(primerId, new Segmento(destino, primerId, ultimoId, lote.size()));
+        enDisco += lote.size();
+        bytesDisco += Files.size(destino);
+    }
+
+    private static int escribir(FileChannel canal, ByteBuffer datos, long posicion) throws IOException {
+        int escritos = 0;
+        while (datos.hasRemaining()) {
+            escritos += canal.write(datos, posicion + escritos);
+        }
+        return escritos;
+    }
+
+    // Cola del segmento: posición del índice (8), bloques (4) y magia (4); el índice son id (8) y posición (8).
+    private static void leerIndice(Segmento s, FileChannel canal) throws IOException {
+        ByteBuffer cola = leer(canal, canal.size() - 16, 16);
+        long inicioIndice = cola.getLong();
+        int bloques = cola.getInt();
+        if (cola.getInt() != MAGIA) {
+            throw new IOException("Segmento de historial inválido: " + s.archivo);
+        }
+        ByteBuffer indice = leer(canal, inicioIndice, bloques * 16);
+        long[] primerosIds = new long[bloques];
+        long[] posiciones = new long[bloques + 1];
+        for (int b = 0; b < bloques; b++) {
+            primerosIds[b] = indice.getLong();
+            posiciones[b] = indice.getLong();
+        }
+        posiciones[bloques] = inicioIndice;
+        s.posiciones = posiciones;
+        s.primerosIds = primerosIds;
+    }
+
+    private static int buscarBloque(long[] primerosIds, long id) {
+        int bajo = 0;
+        int alto = primerosIds.length - 1;
+        while (bajo < alto) {
+            int medio = (bajo + alto + 1) >>> 1;
+            if (primerosIds[medio] <= id) {
+                bajo = medio;
+            } else {
+                alto = medio - 1;
+            }
+        }
+        return bajo;
+    }
+
+    private static String[] leerBloque(FileChannel canal, long inicio, long fin) throws IOException {
+        ByteBuffer comprimido = leer(canal, inicio, (int) (fin - inicio));
+        Inflater descompresor = new Inflater();
+        try {
+            descompresor.setInput(comprimido);
+            ByteArrayOutputStream texto = new ByteArrayOutputStream((int) (fin - inicio) * 4);
+            byte[] buffer = new byte[8192];
+            while (!descompresor.finished()) {
+                int leidos = descompresor.inflate(buffer);
+                if (leidos == 0 && descompresor.needsInput()) {
+                    throw new IOException("Bloque de historial truncado");
+                }
+                texto.write(buffer, 0, leidos);
+            }
+            return texto.toString(StandardCharsets.UTF_8).split("\n");
+        } catch (DataFormatException e) {
+            throw new IOException("Bloque de historial corrupto: " + e.getMessage(), e);
+        } finally {
+            descompresor.end();
+        }
+    }
+
+    private static ByteBuffer leer(FileChannel canal, long posicion, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ORDEN);
+        while (buffer.hasRemaining()) {
+            if (canal.read(buffer, posicion + buffer.position()) < 0) {
+                throw new IOException("Segmento de historial truncado");
+            }
+        }
+        return buffer.flip();
+    }
+}
@@ -26,105 +26,34 @@ public class InicializadorDatos {
     }
 
     private static void crearDatosIniciales(String rutaDatos) throws IOException {
-        crearParticion1(rutaDatos);
-        crearParticion2(rutaDatos);
-        crearParticion3(rutaDatos);
-    }
-
-    private static void crearParticion1(String rutaDatos) throws IOException {
-        String[] archivos = {
-                rutaDatos + "/particion_1_rep1.dat",
-                rutaDatos + "/particion_1_rep2.dat",
-                rutaDatos + "/particion_1_rep3.dat"
-        };
-
-        for (String archivo : archivos) {
-            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(archivo))) {
-                for (int i = 1; i <= 1000; i++) {
-                    int clienteId = i;
-                    int cuentaId = 100 + i;
-
-                    if (hashParticion(clienteId) == 1) {
-                        String nombre = NOMBRES[random.nextInt(NOMBRES.length)] + " "
-                                + APELLIDOS[random.nextInt(APELLIDOS.length)];
-                        String email = nombre.toLowerCase().replace(" ", "") + "@email.com";
-                        String telefono = "9" + String.format("%08d", random.nextInt(100000000));
-
-                        writer.write(String.format("CLIENTE|%d|%s|%s|%s%n", clienteId, nombre, email, telefono));
-
-                        double saldo = 1000 + (random.nextDouble() * 9000);
-                        String tipo = TIPOS_CUENTA[random.nextInt(TIPOS_CUENTA.length)];
-
-                        writer.write(String.format("CUENTA|%d|%d|%.2f|%s%n", cuentaId, clienteId, saldo, tipo));
-                    }
-                }
+        for (int particion = 1; particion <= AnilloHash.PARTICIONES; particion++) {
+            for (int replica = 1; replica <= AnilloHash.REPLICAS; replica++) {
+                crearParticion(rutaDatos + "/particion_" + particion + "_rep" + replica + ".dat", particion);
             }
         }
     }
 
-    private static void crearParticion2(String rutaDatos) throws IOException {
-        String[] archivos = {
-                rutaDatos + "/particion_2_rep1.dat",
-                rutaDatos + "/particion_2_rep2.dat",
-                rutaDatos + "/particion_2_rep3.dat"
-        };
-
-        for (String archivo : archivos) {
-            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(archivo))) {
-                for (int i = 1; i <= 1000; i++) {
-                    int clienteId = i;
-                    int cuentaId = 100 + i;
+    private static void crearParticion(String archivo, int particion) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(archivo))) {
+            writer.write("FORMATO|" + Particion.FORMATO + System.lineSeparator());
+            for (int i = 1; i <= 1000; i++) {
+                int clienteId = i;
+                int cuentaId = 100 + i;
 
-                    if (hashParticion(clienteId) == 2) {
-                        String nombre = NOMBRES[random.nextInt(NOMBRES.length)] + " "
-                                + APELLIDOS[random.nextInt(APELLIDOS.length)];
-                        String email = nombre.toLowerCase().replace(" ", "") + "@email.com";
-                        String telefono = "9" + String.format("%08d", random.nextInt(100000000));
+                if (AnilloHash.particion(cuentaId, AnilloHash.PARTICIONES) == particion) {
+                    String nombre = NOMBRES[random.nextInt(NOMBRES.length)] + " "
+                            + APELLIDOS[random.nextInt(APELLIDOS.length)];
+                    String email = nombre.toLowerCase().replace(" ", "") + "@email.com";
+                    String telefono = "9" + String.format("%08d", random.nextInt(100000000));
 
-                        writer.write(String.format("CLIENTE|%d|%s|%s|%s%n", clienteId, nombre, email, telefono));
+                    writer.write(String.format("CLIENTE|%d|%s|%s|%s%n", clienteId, nombre, email, telefono));
 
-                        double saldo = 1000 + (random.nextDouble() * 9000);
-                        String tipo = TIPOS_CUENTA[random.nextInt(TIPOS_CUENTA.length)];
+                    long saldo = 100_000 + random.nextInt(900_001);
+                    String tipo = TIPOS_CUENTA[random.nextInt(TIPOS_CUENTA.length)];
 
-                        writer.write(String.format("CUENTA|%d|%d|%.2f|%s%n", cuentaId, clienteId, saldo, tipo));
-                    }
+                    writer.write(String.format("CUENTA|%d|%d|%d|%s%n", cuentaId, clienteId, saldo, tipo));
                 }
             }
         }
     }
-
-    private static void crearParticion3(String rutaDatos) throws IOException {
-        String[] archivos = {
-                rutaDatos + "/particion_3_rep1.dat",
-                rutaDatos + "/particion_3_rep2.dat",
-                rutaDatos + "/particion_3_rep3.dat"
-        };
-
-        for (String archivo : archivos) {
-            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(archivo))) {
-                for (int i = 1; i <= 1000; i++) {
-                    int clienteId = i;
-                    int cuentaId = 100 + i;
-
-                    if (hashParticion(clienteId) == 3) {
-                        String nombre = NOMBRES[random.nextInt(NOMBRES.length)] + " "
-                                + APELLIDOS[random.nextInt(APELLIDOS.length)];
-                        String email = nombre.toLowerCase().replace(" ", "") + "@email.com";
-                        String telefono = "9" + String.format("%08d", random.nextInt(100000000));
-
-                        writer.write(String.format("CLIENTE|%d|%s|%s|%s%n", clienteId, nombre, email, telefono));
-
-                        double saldo = 1000 + (random.nextDouble() * 9000);
-                        String tipo = TIPOS_CUENTA[random.nextInt(TIPOS_CUENTA.length)];
-
-                        writer.write(String.format("CUENTA|%d|%d|%.2f|%s%n", cuentaId, clienteId, saldo, tipo));
-                    }
-                }
-            }
-        }
-    }
-
-    private static int hashParticion(int id) {
-        return (Math.abs(id) % 3) + 1;
-    }
-}
\ No newline at end of file
+}
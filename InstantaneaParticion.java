@@ -0,0 +1,268 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instantánea binaria de una partición: cabecera, metadatos (tipos de cuenta con la suma de saldos de cada uno y
+ * reservas 2PC), índice ordenado de ids, registros de cuenta de tamaño fijo y el historial de clientes y
+ * transacciones como texto. La versión 1 no guarda las sumas por tipo.
+ */
+public class InstantaneaParticion implements AutoCloseable {
+    static final int MAGIA = 0x534E4150;
+    static final int VERSION = 2;
+    static final int BYTES_CABECERA = 64;
+    static final int BYTES_POR_REGISTRO = 16;
+    static final int DESPLAZAMIENTO_CLIENTE = 8;
+    static final int DESPLAZAMIENTO_TIPO = 12;
+    static final ByteOrder ORDEN = ByteOrder.LITTLE_ENDIAN;
+
+    private final Path archivo;
+    private final FileChannel canal;
+    private final int cuentas;
+    private final long secuencia;
+    private final long transacciones;
+    private final long sumaSaldos;
+    private final long inicioHistorial;
+    private final long longitudHistorial;
+    private final List<String> tipos = new ArrayList<>();
+    private final Map<String, Long> sumasPorTipo;
+    private final List<String> pendientes = new ArrayList<>();
+    private final MappedByteBuffer mapa;
+    private final long inicioIndice;
+    private final long inicioRegistros;
+
+    private InstantaneaParticion(Path archivo) throws IOException {
+        this.archivo = archivo;
+        this.canal = FileChannel.open(archivo, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer cabecera = ByteBuffer.allocate(BYTES_CABECERA).order(ORDEN);
+            leerCompleto(cabecera, 0);
+            cabecera.flip();
+            int magia = cabecera.getInt();
+            int version = cabecera.getInt();
+            if (magia != MAGIA || (version != VERSION && version != 1)) {
+                throw new IOException("Instantánea inválida: " + archivo);
+            }
+            cuentas = cabecera.getInt();
+            int longitudMetadatos = cabecera.getInt();
+            secuencia = cabecera.getLong();
+            transacciones = cabecera.getLong();
+            sumaSaldos = cabecera.getLong();
+            inicioRegistros = cabecera.getLong();
+            inicioHistorial = cabecera.getLong();
+            longitudHistorial = cabecera.getLong();
+
+            ByteBuffer metadatos = ByteBuffer.allocate(longitudMetadatos);
+            leerCompleto(metadatos, BYTES_CABECERA);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadatos.array()));
+            Map<String, Long> sumas = version == 1 ? null : new LinkedHashMap<>();
+            for (int i = in.readShort(); i > 0; i--) {
+                String tipo = in.readUTF();
+                tipos.add(tipo);
+                if (sumas != null) {
+                    sumas.put(tipo, in.readLong());
+                }
+            }
+            sumasPorTipo = sumas;
+            for (int i = in.readInt(); i > 0; i--) {
+                pendientes.add(in.readUTF());
+            }
+
+            inicioIndice = alinear(BYTES_CABECERA + longitudMetadatos);
+            // Copia en escritura (exige abrir el canal en escritura, aunque nunca se escribe): los saldos se
+            // actualizan en memoria sin tocar el archivo, que solo se reemplaza entero al compactar. El WAL sigue
+            // siendo la fuente de durabilidad.
+            mapa = canal.map(FileChannel.MapMode.PRIVATE, inicioIndice, inicioHistorial - inicioIndice);
+            mapa.order(ORDEN);
+        } catch (IOException | RuntimeException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    public static InstantaneaParticion abrir(Path archivo) throws IOException {
+        return new InstantaneaParticion(archivo);
+    }
+
+    public AlmacenCuentasMapeado cuentas() {
+        ByteBuffer indice = mapa.slice(0, cuentas * Integer.BYTES).order(ORDEN);
+        int desde = (int) (inicioRegistros - inicioIndice);
+        ByteBuffer registros = mapa.slice(desde, cuentas * BYTES_POR_REGISTRO).order(ORDEN);
+        return new AlmacenCuentasMapeado(indice, registros, cuentas, tipos);
+    }
+
+    public List<String> pendientes() {
+        return pendientes;
+    }
+
+    public long getSecuencia() {
+        return secuencia;
+    }
+
+    public long getTransacciones() {
+        return transacciones;
+    }
+
+    public long getSumaSaldos() {
+        return sumaSaldos;
+    }
+
+    /** Suma de saldos por tipo de cuenta al escribirla, o null si la instantánea es de la versión 1. */
+    public Map<String, Long> getSumasPorTipo() {
+        return sumasPorTipo;
+    }
+
+    public int getCuentas() {
+        return cuentas;
+    }
+
+    public long getLongitudHistorial() {
+        return longitudHistorial;
+    }
+
+    public Path getArchivo() {
+        return archivo;
+    }
+
+    public List<String> leerHistorial() throws IOException {
+        // El historial ocupa el final del archivo; se lee con un canal propio para no cerrar el de la instantánea.
+        try (FileChannel lectura = FileChannel.open(archivo, StandardOpenOption.READ);
+                BufferedReader lector = new BufferedReader(Channels.newReader(lectura.position(inicioHistorial),
+                        StandardCharsets.UTF_8))) {
+            return lector.lines().toList();
+        }
+    }
+
+    public void copiarHistorial(FileChannel destino) throws IOException {
+        long copiado = 0;
+        while (copiado < longitudHistorial) {
+            copiado += canal.transferTo(inicioHistorial + copiado, longitudHistorial - copiado, destino);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+
+    /**
+     * Escribe una instantánea completa. El historial de la instantánea anterior, si la hay, se copia tal cual y
+     * a continuación se añaden las líneas nuevas, de modo que compactar no vuelve a parsear transacciones antiguas.
+     */
+    public static void escribir(Path destino, AlmacenCuentas almacen, long secuencia, long transacciones,
+            List<String> pendientes, InstantaneaParticion anterior, List<String> historialNuevo) throws IOException {
+        List<Cuenta> cuentas = new ArrayList<>(almacen.tamano());
+        almacen.paraCada(cuentas::add);
+        cuentas.sort(Comparator.comparingInt(Cuenta::getId));
+
+        List<String> tipos = new ArrayList<>();
+        List<Long> sumas = new ArrayList<>();
+        ByteBuffer indice = ByteBuffer.allocate(cuentas.size() * Integer.BYTES).order(ORDEN);
+        ByteBuffer registros = ByteBuffer.allocate(cuentas.size() * BYTES_POR_REGISTRO).order(ORDEN);
+        long suma = 0;
+        for (Cuenta cuenta : cuentas) {
+            int tipo = tipos.indexOf(cuenta.getTipoCuenta());
+            if (tipo < 0) {
+                if (tipos.size() >= Byte.MAX_VALUE) {
+                    throw new IllegalStateException("Demasiados tipos de cuenta");
+                }
+                tipos.add(cuenta.getTipoCuenta());
+                sumas.add(0L);
+                tipo = tipos.size() - 1;
+            }
+            sumas.set(tipo, sumas.get(tipo) + cuenta.getSaldo());
+            indice.putInt(cuenta.getId());
+            registros.putLong(cuenta.getSaldo()).putInt(cuenta.getIdCliente()).put((byte) tipo)
+                    .position(registros.position() + 3);
+            suma += cuenta.getSaldo();
+        }
+        indice.flip();
+        registros.flip();
+
+        ByteArrayOutputStream bytesMetadatos = new ByteArrayOutputStream();
+        DataOutputStream metadatos = new DataOutputStream(bytesMetadatos);
+        metadatos.writeShort(tipos.size());
+        for (int i = 0; i < tipos.size(); i++) {
+            metadatos.writeUTF(tipos.get(i));
+            metadatos.writeLong(sumas.get(i));
+        }
+        metadatos.writeInt(pendientes.size());
+        for (String pendiente : pendientes) {
+            metadatos.writeUTF(pendiente);
+        }
+        metadatos.flush();
+
+        long inicioIndice = alinear(BYTES_CABECERA + bytesMetadatos.size());
+        long inicioRegistros = alinear(inicioIndice + indice.remaining());
+        long inicioHistorial = inicioRegistros + registros.remaining();
+
+        try (FileChannel canal = FileChannel.open(destino, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            escribirCompleto(canal, ByteBuffer.wrap(bytesMetadatos.toByteArray()), BYTES_CABECERA);
+            escribirCompleto(canal, indice, inicioIndice);
+            escribirCompleto(canal, registros, inicioRegistros);
+
+            canal.position(inicioHistorial);
+            if (anterior != null) {
+                anterior.copiarHistorial(canal);
+            }
+            Writer escritor = Channels.newWriter(canal, StandardCharsets.UTF_8);
+            for (String linea : historialNuevo) {
+                escritor.write(linea);
+                escritor.write('\n');
+            }
+            escritor.flush();
+            long longitudHistorial = canal.position() - inicioHistorial;
+
+            ByteBuffer cabecera = ByteBuffer.allocate(BYTES_CABECERA).order(ORDEN)
+                    .putInt(MAGIA)
+                    .putInt(VERSION)
+                    .putInt(cuentas.size())
+                    .putInt(bytesMetadatos.size())
+                    .putLong(secuencia)
+                    .putLong(transacciones)
+                    .putLong(suma)
+                    .putLong(inicioRegistros)
+                    .putLong(inicioHistorial)
+                    .putLong(longitudHistorial);
+            cabecera.flip();
+            escribirCompleto(canal, cabecera, 0);
+            canal.force(true);
+        }
+    }
+
+    private void leerCompleto(ByteBuffer buffer, long posicion) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (canal.read(buffer, posicion + buffer.position()) < 0) {
+                throw new IOException("Instantánea truncada: " + archivo);
+            }
+        }
+    }
+
+    private static void escribirCompleto(FileChannel canal, ByteBuffer buffer, long posicion) throws IOException {
+        while (buffer.hasRemaining()) {
+            posicion += canal.write(buffer, posicion);
+        }
+    }
+
+    private static long alinear(long posicion) {
+        return (posicion + 7) & ~7L;
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Latencia de las escrituras y lecturas de los clientes según su nivel de consistencia, medida en el servidor de
+ * punta a punta. Los percentiles salen de las últimas muestras de cada nivel, para comparar con la carga real lo que
+ * cuesta cada nivel en p99.
+ */
+public class LatenciasConsistencia {
+    private static final int MUESTRAS = 1024;
+
+    private final Serie[] escrituras = new Serie[NivelConsistencia.values().length];
+    private final Serie[] lecturas = new Serie[NivelConsistencia.values().length];
+
+    private static class Serie {
+        final long[] muestras = new long[MUESTRAS];
+        final AtomicInteger siguiente = new AtomicInteger(0);
+        final AtomicLong errores = new AtomicLong(0);
+        final AtomicLong maximaNanos = new AtomicLong(0);
+
+        void observar(long nanos, boolean error) {
+            muestras[Math.floorMod(siguiente.getAndIncrement(), MUESTRAS)] = nanos;
+            maximaNanos.accumulateAndGet(nanos, Math::max);
+            if (error) {
+                errores.incrementAndGet();
+            }
+        }
+
+        String resumen(String nombre) {
+            int n = siguiente.get();
+            long[] copia = Arrays.copyOf(muestras, Math.min(n, MUESTRAS));
+            Arrays.sort(copia);
+            return String.format("|%s=%d/errores=%d/p50=%.3fms/p99=%.3fms/max=%.3fms", nombre, n, errores.get(),
+                    percentil(copia, 0.50), percentil(copia, 0.99), maximaNanos.get() / 1e6);
+        }
+
+        private static double percentil(long[] ordenadas, double p) {
+            return ordenadas.length == 0 ? 0.0 : ordenadas[(int) ((ordenadas.length - 1) * p)] / 1e6;
+        }
+    }
+
+    public LatenciasConsistencia() {
+        for (int i = 0; i < escrituras.length; i++) {
+            escrituras[i] = new Serie();
+            lecturas[i] = new Serie();
+        }
+    }
+
+    public String medir(boolean escritura, NivelConsistencia nivel, Supplier<String> operacion) {
+        long inicio = System.nanoTime();
+        String respuesta = operacion.get();
+        (escritura ? escrituras : lecturas)[nivel.ordinal()].observar(System.nanoTime() - inicio,
+                respuesta == null || respuesta.startsWith("ERROR"));
+        return respuesta;
+    }
+
+    public String resumen() {
+        StringBuilder sb = new StringBuilder("CONSISTENCIA");
+        for (NivelConsistencia nivel : NivelConsistencia.values()) {
+            sb.append(escrituras[nivel.ordinal()].resumen("escritura" + nivel));
+        }
+        for (NivelConsistencia nivel : NivelConsistencia.values()) {
+            sb.append(lecturas[nivel.ordinal()].resumen("lectura" + nivel));
+        }
+        return sb.toString();
+    }
+}
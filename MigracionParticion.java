@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Recepción en línea de una partición que el servidor asigna a este nodo. Copia las cuentas del nodo origen por
+ * lotes mientras este sigue aceptando escrituras, aplica después la cola de deltas desde la secuencia del primer
+ * lote y la sigue leyendo hasta que el anillo nuevo la pone en manos de este nodo. El ritmo de copia se reduce a la
+ * mitad cada vez que un lote tarda más que la latencia objetivo y crece de forma lineal mientras no lo hace.
+ */
+public class MigracionParticion implements Runnable {
+    private static final int LOTE = Integer.getInteger("migracion.lote", 500);
+    private static final int MAXIMO_POR_SEGUNDO = Integer.getInteger("migracion.cuentasPorSegundo", 20000);
+    private static final int MINIMO_POR_SEGUNDO = Integer.getInteger("migracion.minimoPorSegundo", 500);
+    private static final long LATENCIA_OBJETIVO_MS = Long.getLong("migracion.latenciaObjetivoMs", 20);
+    private static final long INTERVALO_COLA_MS = Long.getLong("migracion.intervaloColaMs", 200);
+    private static final int TIMEOUT_MS = Integer.getInteger("migracion.timeoutLoteMs", 10000);
+    private static final long ESPERA_ORIGEN_MS = 5000;
+
+    private final int particionId;
+    private final Particion particion;
+    private final String origen;
+    private final PoolConexiones pool;
+    private final Consumer<Particion> activar;
+    private volatile String estado = "COPIANDO";
+    private volatile boolean detenida;
+    private boolean activada;
+    private volatile double tasa = MAXIMO_POR_SEGUNDO;
+    private final AtomicLong copiadas = new AtomicLong(0);
+    private final AtomicLong lotes = new AtomicLong(0);
+    private final AtomicLong frenadas = new AtomicLong(0);
+    private final AtomicLong deltas = new AtomicLong(0);
+    private final long inicio = System.currentTimeMillis();
+    private volatile long duracionCopia;
+
+    public MigracionParticion(int particionId, Particion particion, String origen, Consumer<Particion> activar) {
+        this.particionId = particionId;
+        this.particion = particion;
+        this.origen = origen;
+        String[] direccion = origen.split(":");
+        this.pool = new PoolConexiones(direccion[0], Integer.parseInt(direccion[1]));
+        this.activar = activar;
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Si la copia local ya tiene historial y el origen aún retiene los deltas que le faltan, basta la cola.
+            if (particion.getSecuencia() == 0 || !seguirCola()) {
+                copiar();
+                if (!seguirCola()) {
+                    throw new IOException("el origen ya no retiene la cola de deltas");
+                }
+            }
+            duracionCopia = System.currentTimeMillis() - inicio;
+            activar.accept(particion);
+            activada = true;
+            estado = "AL_DIA";
+            System.out.printf("Partición %d copiada de %s: cuentas=%d lotes=%d deltas=%d en %dms%n", particionId,
+                    origen, copiadas.get(), lotes.get(), deltas.get(), duracionCopia);
+
+            while (!detenida) {
+                Thread.sleep(INTERVALO_COLA_MS);
+                if (!detenida && !seguirCola()) {
+                    throw new IOException("el origen ya no retiene la cola de deltas");
+                }
+            }
+            estado = "TERMINADA";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            estado = "FALLIDA";
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            estado = "FALLIDA";
+            System.err.println("Error migrando partición " + particionId + " desde " + origen + ": " + e.getMessage());
+        } finally {
+            pool.cerrar();
+            // Una copia que no llegó a servirse no queda en el nodo: se sueltan sus archivos.
+            if (!activada) {
+                particion.cerrar();
+            }
+        }
+    }
+
+    private void copiar() throws IOException, TimeoutException, InterruptedException {
+        particion.iniciarImportacion();
+        long base = -1;
+        int desde = Integer.MIN_VALUE;
+        while (!detenida) {
+            long comienzo = System.nanoTime();
+            String respuesta = solicitar("EXPORTAR|" + particionId + "|" + desde + "|" + LOTE);
+            long latencia = System.nanoTime() - comienzo;
+            if (!respuesta.startsWith("EXPORTADO|")) {
+                throw new IOException("exportación rechazada: " + respuesta);
+            }
+
+            String[] partes = respuesta.split("\\|", 5);
+            if (base < 0) {
+                base = Long.parseLong(partes[1]);
+            }
+            int cuentas = Integer.parseInt(partes[3]);
+            if (cuentas > 0) {
+                particion.importarCuentas(partes[4]);
+                desde = Integer.parseInt(partes[2]);
+                copiadas.addAndGet(cuentas);
+            }
+            lotes.incrementAndGet();
+            if (cuentas < LOTE)
+                break;
+            regular(cuentas, latencia);
+        }
+        particion.finalizarImportacion(base);
+    }
+
+    private void regular(int cuentas, long latenciaNanos) throws InterruptedException {
+        if (latenciaNanos > LATENCIA_OBJETIVO_MS * 1_000_000) {
+            tasa = Math.max(MINIMO_POR_SEGUNDO, tasa / 2);
+            frenadas.incrementAndGet();
+        } else {
+            tasa = Math.min(MAXIMO_POR_SEGUNDO, tasa + LOTE);
+        }
+        long pausaNanos = (long) (cuentas / tasa * 1e9) - latenciaNanos;
+        if (pausaNanos > 0) {
+            Thread.sleep(pausaNanos / 1_000_000, (int) (pausaNanos % 1_000_000));
+        }
+    }
+
+    // El origen puede no haber aplicado aún el último anillo publicado y no tener abierta la partición.
+    private String solicitar(String mensaje) throws IOException, TimeoutException {
+        long limite = System.currentTimeMillis() + ESPERA_ORIGEN_MS;
+        String respuesta = pool.enviar(mensaje, TIMEOUT_MS);
+        while ("ERROR|PARTICION_NO_EXISTE".equals(respuesta) && System.currentTimeMillis() < limite) {
+            try {
+                Thread.sleep(INTERVALO_COLA_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            respuesta = pool.enviar(mensaje, TIMEOUT_MS);
+        }
+        return respuesta;
+    }
+
+    private boolean seguirCola() throws IOException, TimeoutException {
+        long local = particion.getSecuencia();
+        String respuesta = solicitar("DELTAS_DESDE|" + particionId + "|" + (local + 1));
+        if (!respuesta.startsWith("DELTAS|"))
+            return false;
+
+        String[] partes = respuesta.split("\\|", 4);
+        if (Long.parseLong(partes[2]) < local)
+            return false;
+        if (partes.length > 3 && !partes[3].isEmpty()) {
+            String[] lote = partes[3].split(";");
+            if (particion.aplicarDeltas(Arrays.asList(lote)) < 0)
+                throw new IOException("Secuencias en conflicto con el origen de la partición " + particionId);
+            particion.confirmarDurabilidad();
+            deltas.addAndGet(lote.length);
+        }
+        return true;
+    }
+
+    public void detener() {
+        detenida = true;
+    }
+
+    public boolean enCurso() {
+        return !detenida && ("COPIANDO".equals(estado) || "AL_DIA".equals(estado));
+    }
+
+    public String estado() {
+        return "MIGRACION|" + particionId + "|" + estado + "|" + copiadas.get();
+    }
+
+    public String resumen() {
+        return String.format("MIGRACION|particion=%d|origen=%s|estado=%s|cuentas=%d|lotes=%d|frenadas=%d|"
+                + "tasa=%.0f/s|deltas=%d|duracion=%dms", particionId, origen, estado, copiadas.get(), lotes.get(),
+                frenadas.get(), tasa, deltas.get(), duracionCopia);
+    }
+}
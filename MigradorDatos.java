@@ -0,0 +1,54 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+public class MigradorDatos {
+    public static void main(String[] args) throws IOException {
+        Path raiz = Paths.get(args.length > 0 ? args[0] : "datos");
+        List<Path> archivos;
+        try (var rutas = Files.walk(raiz)) {
+            archivos = rutas.filter(p -> p.toString().endsWith(".dat")).sorted().toList();
+        }
+
+        int migrados = 0;
+        for (Path archivo : archivos) {
+            if (!esLegado(archivo)) {
+                System.out.println("Sin cambios: " + archivo);
+                continue;
+            }
+
+            BigDecimal antes = sumaLegada(archivo);
+            Files.copy(archivo, Paths.get(archivo + ".v1"), StandardCopyOption.REPLACE_EXISTING);
+            Path wal = Paths.get(archivo.toString().replaceFirst("\\.dat$", "") + ".wal");
+            if (Files.exists(wal)) {
+                Files.copy(wal, Paths.get(wal + ".v1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            long despues = new Particion(archivo.toString()).arqueoLocal();
+            System.out.printf("Migrado: %s antes=%s despues=%s%n", archivo, antes.toPlainString(),
+                    Dinero.formatear(despues));
+            migrados++;
+        }
+        System.out.println("Archivos migrados: " + migrados + " de " + archivos.size());
+    }
+
+    private static boolean esLegado(Path archivo) throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(archivo)) {
+            String primera = br.readLine();
+            return primera != null && !primera.startsWith("FORMATO|");
+        }
+    }
+
+    private static BigDecimal sumaLegada(Path archivo) throws IOException {
+        try (var lineas = Files.lines(archivo)) {
+            return lineas.filter(l -> l.startsWith("CUENTA|"))
+                    .map(l -> new BigDecimal(l.split("\\|")[3]))
+                    .reduce(BigDecimal.ZERO, BigDecimal::add);
+        }
+    }
+}
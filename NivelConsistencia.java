@@ -0,0 +1,26 @@
+/**
+ * Cuántas réplicas de una partición deben tener una escritura antes de confirmarla, o responder a una lectura antes
+ * de devolverla: ONE solo el primario (o la réplica que lee), QUORUM la mayoría y ALL todas. El primario cuenta como
+ * una de las réplicas que tienen la escritura.
+ */
+public enum NivelConsistencia {
+    ONE, QUORUM, ALL;
+
+    public int requeridas(int replicas) {
+        return switch (this) {
+            case ONE -> Math.min(1, replicas);
+            case QUORUM -> replicas / 2 + 1;
+            case ALL -> replicas;
+        };
+    }
+
+    public static NivelConsistencia parsear(String texto, NivelConsistencia defecto) {
+        if (texto == null || texto.isEmpty())
+            return defecto;
+        try {
+            return valueOf(texto);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
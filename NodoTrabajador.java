@@ -1,9 +1,13 @@
 import java.io.*;
 import java.net.*;
 import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class NodoTrabajador {
     private final int id;
@@ -13,9 +17,21 @@ public class NodoTrabajador {
     private final int puertoNodo;
     private final String rutaDatos;
     private final Map<Integer, Particion> particiones;
+    private final Map<Integer, MigracionParticion> migraciones = new ConcurrentHashMap<>();
     private volatile boolean running;
     private ServerSocket serverSocket;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConfirmacionGrupal confirmacionGrupal = new ConfirmacionGrupal(this::sincronizarReplica);
+    private final ReplicadorDeltas replicador = new ReplicadorDeltas();
+    private final GeneradorIds generadorIds;
+    private static final long TIMEOUT_PREPARADA_MS = Long.getLong("2pc.timeoutMs", 10000);
+    private static final boolean SERVIDOR_NIO = Boolean.getBoolean("nodo.nio");
+    private static final long VERIFICAR_TOTALES_MS = Long.getLong("totales.verificarCadaMs", 60000);
+    private static final DateTimeFormatter FECHA = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    private static final Pattern ARCHIVO_PARTICION = Pattern.compile("particion_(\\d+)_rep(\\d+)\\.(dat|snap)");
+    private volatile AnilloHash anillo = AnilloHash.vacio();
+    private volatile ServidorNio servidorNio;
+    private volatile PrintWriter canalServidor;
 
     public NodoTrabajador(int id, String ipServidor, int puertoServidor, String ipNodo, int puertoNodo,
             String rutaDatos) {
@@ -25,28 +41,27 @@ public class NodoTrabajador {
         this.ipNodo = ipNodo;
         this.puertoNodo = puertoNodo;
         this.rutaDatos = rutaDatos;
+        this.generadorIds = new GeneradorIds(id, Paths.get(rutaDatos, "ids.reserva"));
         this.particiones = new ConcurrentHashMap<>();
         cargarParticiones();
     }
 
     private void cargarParticiones() {
         try {
-            Files.createDirectories(Paths.get(rutaDatos));
+            Path directorio = Files.createDirectories(Paths.get(rutaDatos));
 
-            int[][] asignaciones;
-            if (id == 1) {
-                asignaciones = new int[][] { { 1, 1 }, { 1, 2 }, { 2, 3 }, { 3, 1 } };
-            } else {
-                asignaciones = new int[][] { { 1, 3 }, { 2, 1 }, { 2, 2 }, { 3, 2 }, { 3, 3 } };
+            // Se abren las particiones que ya tienen datos locales (una réplica por partición, la de menor número);
+            // las que asigne el anillo y falten se crean al recibirlo del servidor.
+            List<String> nombres;
+            try (var archivos = Files.list(directorio)) {
+                nombres = archivos.map(a -> a.getFileName().toString()).sorted().toList();
             }
-
-            for (int[] asignacion : asignaciones) {
-                int particionId = asignacion[0];
-                int replica = asignacion[1];
-                String archivo = rutaDatos + "/particion_" + particionId + "_rep" + replica + ".dat";
-
-                if (!particiones.containsKey(particionId)) {
-                    particiones.put(particionId, new Particion(archivo));
+            for (String nombre : nombres) {
+                Matcher m = ARCHIVO_PARTICION.matcher(nombre);
+                if (m.matches()) {
+                    int particionId = Integer.parseInt(m.group(1));
+                    particiones.computeIfAbsent(particionId,
+                            p -> new Particion(archivoParticion(p, m.group(2)), generadorIds));
                 }
             }
         } catch (IOException e) {
@@ -54,50 +69,244 @@ public class NodoTrabajador {
         }
     }
 
-    private void sincronizarParticion(int particionId, String datos, PrintWriter out) {
+    private String archivoParticion(int particionId, String replica) {
+        return rutaDatos + "/particion_" + particionId + "_rep" + replica + ".dat";
+    }
+
+    private synchronized void aplicarAnillo(String mensaje) {
+        AnilloHash nuevo = AnilloHash.parsear(mensaje);
+        if (nuevo.getVersion() < anillo.getVersion()) {
+            return;
+        }
+        anillo = nuevo;
+        System.out.println("Nodo " + id + " aplica " + nuevo.resumen());
+        for (int particionId : particiones.keySet()) {
+            if (!nuevo.replicas(particionId).contains(id) && !migraciones.containsKey(particionId)) {
+                retirarParticion(particionId);
+                System.out.println("Nodo " + id + " deja de servir la partición " + particionId);
+            }
+        }
+        for (int particionId : nuevo.particionesDe(id)) {
+            MigracionParticion migracion = migraciones.remove(particionId);
+            if (migracion != null) {
+                migracion.detener();
+            }
+            Particion existente = particiones.get(particionId);
+            if (existente != null) {
+                existente.retomar();
+                continue;
+            }
+            String replica = String.valueOf(nuevo.posicion(particionId, id) + 1);
+            Particion p = new Particion(archivoParticion(particionId, replica), generadorIds);
+            if (p.estaVacia()) {
+                copiarDeReplica(nuevo, particionId, p);
+            }
+            if (particiones.putIfAbsent(particionId, p) != null) {
+                p.cerrar();
+            }
+        }
+    }
+
+    private void retirarParticion(int particionId) {
+        Particion p = particiones.remove(particionId);
+        if (p != null) {
+            p.cerrar();
+        }
+    }
+
+    private void copiarDeReplica(AnilloHash actual, int particionId, Particion particion) {
+        for (int nodo : actual.replicas(particionId)) {
+            if (nodo == id)
+                continue;
+            String[] direccion = actual.direccion(nodo).split(":");
+            try (Socket socket = new Socket(direccion[0], Integer.parseInt(direccion[1]));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+
+                socket.setSoTimeout(10000);
+                out.println("OBTENER_PARTICION|" + particionId);
+                String respuesta = in.readLine();
+                if (respuesta != null && !respuesta.startsWith("ERROR") && particion.actualizarDesdeJson(respuesta)) {
+                    System.out.println("Nodo " + id + " copió la partición " + particionId + " del nodo " + nodo);
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("Error copiando partición " + particionId + " del nodo " + nodo + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private String sincronizarParticion(int particionId, String datos, long secuencia) {
         Particion p = particiones.get(particionId);
         if (p == null) {
-            out.println("ERROR|PARTICION_NO_EXISTE");
-            return;
+            return "ERROR|PARTICION_NO_EXISTE";
         }
 
         lock.writeLock().lock();
         try {
-            boolean exito = p.actualizarDesdeJson(datos);
-            out.println(exito ? "OK" : "ERROR|SINCRONIZACION_FALLIDA");
+            boolean exito = p.actualizarDesdeJson(datos, secuencia);
+            if (exito) {
+                avisarInvalidacion(particionId);
+            }
+            return exito ? "OK" : "ERROR|SINCRONIZACION_FALLIDA";
         } finally {
             lock.writeLock().unlock();
         }
     }
 
-    private void sincronizarReplica(int particionId, Particion particion) {
+    // Una partición reemplazada entera puede cambiar saldos que el servidor tiene en caché.
+    private void avisarInvalidacion(int particionId) {
+        PrintWriter canal = canalServidor;
+        if (canal != null) {
+            canal.println("INVALIDAR|" + particionId);
+        }
+    }
+
+    private String aplicarDeltas(int particionId, String lote) {
+        long[] resultado;
         try {
-            int otroNodo = (id == 1) ? 2 : 1;
-            String ipOtro = "localhost";
-            int puertoOtro = (otroNodo == 1) ? 6000 : 6001;
+            resultado = aplicarDeltas(particionId, lote.isEmpty() ? List.of() : Arrays.asList(lote.split(";")));
+        } catch (UncheckedIOException e) {
+            return "ERROR|WAL_NO_DISPONIBLE";
+        }
+        if (resultado == null) {
+            return "ERROR|PARTICION_NO_EXISTE";
+        }
+        if (resultado[0] < 0) {
+            return "ERROR|SECUENCIA_EN_CONFLICTO";
+        }
+        return (resultado[1] == 1 ? "ACK|" : "NACK|") + particionId + "|" + resultado[0];
+    }
+
+    private long[] aplicarDeltas(int particionId, List<String> deltas) {
+        Particion p = particiones.get(particionId);
+        if (p == null) {
+            return null;
+        }
+
+        long ultima;
+        lock.writeLock().lock();
+        try {
+            ultima = p.aplicarDeltas(deltas);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        p.confirmarDurabilidad();
+
+        long esperada = deltas.isEmpty() ? ultima : Particion.secuenciaDelta(deltas.get(deltas.size() - 1));
+        return new long[] { ultima, ultima >= esperada ? 1 : 0 };
+    }
 
-            String datos = particion.obtenerDatosJson();
-            String mensaje = "SINCRONIZAR|" + particionId + "|" + datos;
+    private String iniciarMigracion(int particionId, String origen, String replica) {
+        MigracionParticion anterior = migraciones.get(particionId);
+        if (anterior != null && anterior.enCurso()) {
+            return "OK";
+        }
+        // La copia nueva abre los mismos archivos que la que se sustituye.
+        retirarParticion(particionId);
+        Particion particion = new Particion(archivoParticion(particionId, replica), generadorIds);
+        MigracionParticion migracion = new MigracionParticion(particionId, particion, origen,
+                p -> particiones.put(particionId, p));
+        migraciones.put(particionId, migracion);
+        Thread hilo = new Thread(migracion, "migracion-" + particionId);
+        hilo.setDaemon(true);
+        hilo.start();
+        return "OK";
+    }
+
+    private String estadoMigracion(int particionId) {
+        MigracionParticion migracion = migraciones.get(particionId);
+        return migracion != null ? migracion.estado() : "MIGRACION|" + particionId + "|NINGUNA|0";
+    }
 
-            try (Socket socket = new Socket(ipOtro, puertoOtro);
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                out.println(mensaje);
+    private String cancelarMigracion(int particionId) {
+        MigracionParticion migracion = migraciones.remove(particionId);
+        if (migracion != null) {
+            migracion.detener();
+            if (!anillo.replicas(particionId).contains(id)) {
+                retirarParticion(particionId);
             }
-        } catch (Exception e) {
-            System.err.println("Error sincronizando con nodo " + ((id == 1) ? 2 : 1) + ": " + e.getMessage());
         }
+        return "OK";
+    }
+
+    private String exportarCuentas(int particionId, int desde, int maximo) {
+        Particion p = particiones.get(particionId);
+        return p != null ? p.exportarCuentas(desde, maximo) : "ERROR|PARTICION_NO_EXISTE";
+    }
+
+    private String deltasDesde(int particionId, long desde) {
+        Particion p = particiones.get(particionId);
+        if (p == null) {
+            return "ERROR|PARTICION_NO_EXISTE";
+        }
+        long secuencia = p.getSecuencia();
+        List<String> deltas = p.deltasDesde(desde);
+        return deltas != null
+                ? "DELTAS|" + particionId + "|" + secuencia + "|" + String.join(";", deltas)
+                : "ERROR|SIN_HISTORIAL";
+    }
+
+    private String cederParticion(int particionId, String destino) {
+        Particion p = particiones.get(particionId);
+        if (p == null) {
+            return "ERROR|PARTICION_NO_EXISTE";
+        }
+
+        // Sin escrituras nuevas, se esperan las 2PC preparadas y se deja al nuevo primario con toda la secuencia.
+        p.ceder();
+        replicador.olvidar(particionId, destino);
+        String[] direccion = destino.split(":");
+        long limite = System.currentTimeMillis() + TIMEOUT_PREPARADA_MS;
+        while (System.currentTimeMillis() < limite) {
+            if (!p.tienePreparadas()
+                    && replicador.replicar(particionId, p, direccion[0], Integer.parseInt(direccion[1]))) {
+                System.out.println("Nodo " + id + " cede la partición " + particionId + " a " + destino
+                        + " en la secuencia " + p.getSecuencia());
+                return "OK";
+            }
+            dormir(20);
+        }
+        p.retomar();
+        return "ERROR|TRASPASO_FALLIDO";
+    }
+
+    private String retomarParticion(int particionId) {
+        Particion p = particiones.get(particionId);
+        if (p != null) {
+            p.retomar();
+        }
+        return "OK";
+    }
+
+    // Una réplica por cada nodo del anillo para la partición, lanzadas a la vez.
+    private List<CompletableFuture<Long>> sincronizarReplica(int particionId, Particion particion) {
+        AnilloHash actual = anillo;
+        List<CompletableFuture<Long>> envios = new ArrayList<>();
+        for (int nodo : actual.replicas(particionId)) {
+            if (nodo != id) {
+                String[] direccion = actual.direccion(nodo).split(":");
+                envios.add(replicador.replicarAsincrono(particionId, particion, direccion[0],
+                        Integer.parseInt(direccion[1])));
+            }
+        }
+        return envios;
     }
 
     private void verificarYRepararReplicas() {
         while (running) {
             try {
                 Thread.sleep(30000);
-                int otroNodo = (id == 1) ? 2 : 1;
-                String ipOtro = "localhost";
-                int puertoOtro = (otroNodo == 1) ? 6000 : 6001;
+                AnilloHash actual = anillo;
 
                 for (Integer particionId : particiones.keySet()) {
-                    try (Socket socket = new Socket(ipOtro, puertoOtro);
+                    Optional<Integer> otroNodo = actual.replicas(particionId).stream().filter(n -> n != id)
+                            .findFirst();
+                    if (otroNodo.isEmpty())
+                        continue;
+                    String[] direccion = actual.direccion(otroNodo.get()).split(":");
+                    try (Socket socket = new Socket(direccion[0], Integer.parseInt(direccion[1]));
                             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
                             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
 
@@ -123,9 +332,15 @@ public class NodoTrabajador {
         new Thread(this::iniciarServidor).start();
         new Thread(this::gestionarConexionServidor).start();
         new Thread(this::verificarYRepararReplicas).start();
+        new Thread(this::recuperarTransaccionesDudosas).start();
+        new Thread(this::verificarTotales).start();
     }
 
     private void iniciarServidor() {
+        if (SERVIDOR_NIO) {
+            iniciarServidorNio();
+            return;
+        }
         try (ServerSocket serverSocket = new ServerSocket(puertoNodo)) {
             System.out.println("Nodo " + id + " escuchando en " + ipNodo + ":" + puertoNodo);
             while (running) {
@@ -137,6 +352,26 @@ public class NodoTrabajador {
         }
     }
 
+    private void iniciarServidorNio() {
+        servidorNio = new ServidorNio(puertoNodo, new ServidorNio.Manejador() {
+            @Override
+            public String procesarLinea(String linea) {
+                return procesarComando(linea);
+            }
+
+            @Override
+            public byte[] procesarTrama(byte[] trama) throws IOException {
+                return NodoTrabajador.this.procesarTrama(trama);
+            }
+        });
+        try {
+            System.out.println("Nodo " + id + " escuchando (NIO) en " + ipNodo + ":" + puertoNodo);
+            servidorNio.iniciar();
+        } catch (IOException e) {
+            System.err.println("Error iniciando servidor NIO del nodo: " + e.getMessage());
+        }
+    }
+
     private void gestionarConexionServidor() {
         while (running) {
             try (Socket socket = new Socket(ipServidor, puertoServidor + 1);
@@ -144,15 +379,31 @@ public class NodoTrabajador {
                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
 
                 registrarEnServidor(out);
+                canalServidor = out;
+                socket.setSoTimeout(5000);
+                String respuesta = in.readLine();
+                while (respuesta != null && !respuesta.startsWith("ANILLO|")) {
+                    respuesta = in.readLine();
+                }
+                if (respuesta != null) {
+                    aplicarAnillo(respuesta);
+                }
 
+                long ultimoLatido = System.currentTimeMillis();
                 while (running && !socket.isClosed()) {
-                    Thread.sleep(5000);
-                    enviarHeartbeat(out);
+                    Thread.sleep(200);
+                    if (System.currentTimeMillis() - ultimoLatido >= 5000) {
+                        enviarHeartbeat(out);
+                        ultimoLatido = System.currentTimeMillis();
+                    }
 
-                    if (in.ready()) {
-                        String respuesta = in.readLine();
+                    while (in.ready()) {
+                        respuesta = in.readLine();
                         if (respuesta == null)
                             break;
+                        if (respuesta.startsWith("ANILLO|")) {
+                            aplicarAnillo(respuesta);
+                        }
                     }
                 }
             } catch (Exception e) {
@@ -181,108 +432,583 @@ public class NodoTrabajador {
 
             String mensaje;
             while ((mensaje = in.readLine()) != null) {
-                String[] partes = mensaje.split("\\|");
-                switch (partes[0]) {
-                    case "CONSULTAR" -> procesarConsulta(partes[1], out);
-                    case "TRANSFERIR" -> procesarTransferencia(partes[1], partes[2], partes[3], out);
-                    case "ARQUEO" -> procesarArqueo(out);
-                    case "HEARTBEAT" -> out.println("OK");
-                    case "OBTENER_PARTICION" -> obtenerParticion(Integer.parseInt(partes[1]), out);
-                    case "ACTUALIZAR_PARTICION" -> actualizarParticion(Integer.parseInt(partes[1]), partes[2], out);
-                    case "SINCRONIZAR" -> sincronizarParticion(Integer.parseInt(partes[1]), partes[2], out);
-                    case "BLOQUEAR_ARQUEO" -> out.println("OK");
-                    case "DESBLOQUEAR_ARQUEO" -> out.println("OK");
+                if (ProtocoloBinario.SALUDO.equals(mensaje)) {
+                    out.println(ProtocoloBinario.SALUDO_OK);
+                    procesarConexionBinaria(socket);
+                    return;
                 }
+                out.println(procesarComando(mensaje));
             }
         } catch (IOException e) {
             System.err.println("Error en conexión: " + e.getMessage());
         }
     }
 
-    private void procesarConsulta(String idCuentaStr, PrintWriter out) {
-        int idCuenta = Integer.parseInt(idCuentaStr);
+    private void procesarConexionBinaria(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        ProtocoloBinario.Solicitud solicitud = new ProtocoloBinario.Solicitud();
+
+        while (ProtocoloBinario.leerSolicitud(in, solicitud)) {
+            atenderSolicitud(solicitud, out);
+            out.flush();
+        }
+    }
+
+    private byte[] procesarTrama(byte[] trama) throws IOException {
+        ProtocoloBinario.Solicitud solicitud = new ProtocoloBinario.Solicitud();
+        ProtocoloBinario.leerSolicitud(new DataInputStream(new ByteArrayInputStream(trama)), solicitud);
+        ByteArrayOutputStream respuesta = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(respuesta);
+        atenderSolicitud(solicitud, out);
+        out.flush();
+        return respuesta.toByteArray();
+    }
+
+    private void atenderSolicitud(ProtocoloBinario.Solicitud solicitud, DataOutputStream out) throws IOException {
+        switch (solicitud.opcode) {
+            case ProtocoloBinario.CONSULTAR -> {
+                Particion p = particiones.get(hashParticion(solicitud.cuenta));
+                Cuenta cuenta = p != null ? p.getCuenta(solicitud.cuenta) : null;
+                if (cuenta != null) {
+                    ProtocoloBinario.escribirSaldo(out, cuenta.getSaldo());
+                } else {
+                    ProtocoloBinario.escribirRespuesta(out,
+                            p == null ? "ERROR|PARTICION_NO_LOCAL" : "ERROR|CUENTA_NO_EXISTE");
+                }
+            }
+            case ProtocoloBinario.TRANSFERIR -> ProtocoloBinario.escribirRespuesta(out,
+                    procesarTransferencia(solicitud.cuenta, solicitud.destino, solicitud.monto, null,
+                            solicitud.nivel));
+            case ProtocoloBinario.ARQUEO -> ProtocoloBinario.escribirArqueo(out, arqueoLocal());
+            case ProtocoloBinario.DELTA -> {
+                long[] resultado;
+                try {
+                    resultado = aplicarDeltas(solicitud.particion, solicitud.deltas);
+                } catch (UncheckedIOException e) {
+                    ProtocoloBinario.escribirRespuesta(out, "ERROR|WAL_NO_DISPONIBLE");
+                    return;
+                }
+                if (resultado == null) {
+                    ProtocoloBinario.escribirRespuesta(out, "ERROR|PARTICION_NO_EXISTE");
+                } else if (resultado[0] < 0) {
+                    ProtocoloBinario.escribirRespuesta(out, "ERROR|SECUENCIA_EN_CONFLICTO");
+                } else {
+                    ProtocoloBinario.escribirConfirmacion(out, resultado[1] == 1, solicitud.particion,
+                            resultado[0]);
+                }
+            }
+            default -> ProtocoloBinario.escribirRespuesta(out, procesarComando(solicitud.texto));
+        }
+    }
+
+    private String procesarComando(String mensaje) {
+        String[] partes = mensaje.split("\\|");
+        return switch (partes[0]) {
+            case "CONSULTAR" -> procesarConsulta(Integer.parseInt(partes[1]),
+                    partes.length > 2 ? Long.parseLong(partes[2]) : 0);
+            case "TRANSFERIR" -> transferir(partes);
+            case "CONSULTAR_VERSION" -> consultarVersion(Integer.parseInt(partes[1]));
+            case "CONSULTAR_LOTE" -> consultarLote(partes[1], partes.length > 2 ? partes[2] : "");
+            case "MOVIMIENTOS" -> consultarMovimientos(partes);
+            case "OBTENER_TRANSACCION" -> obtenerTransaccion(Integer.parseInt(partes[1]), Long.parseLong(partes[2]));
+            case "TRANSFERIR_LOTE" -> {
+                NivelConsistencia nivel = NivelConsistencia.parsear(partes.length > 2 ? partes[2] : null,
+                        NivelConsistencia.ONE);
+                yield nivel != null ? transferirLote(partes[1], nivel) : "ERROR|NIVEL_INVALIDO";
+            }
+            case "ARQUEO" -> Dinero.formatear(new StringBuilder(24).append("ARQUEO|"), arqueoLocal()).toString();
+            case "ARQUEO_PARTICION" -> corteArqueo(Integer.parseInt(partes[1]));
+            case "HEARTBEAT" -> "OK";
+            case "OBTENER_PARTICION" -> obtenerParticion(Integer.parseInt(partes[1]));
+            case "ACTUALIZAR_PARTICION" -> actualizarParticion(Integer.parseInt(partes[1]), partes[2]);
+            case "SINCRONIZAR" -> sincronizarParticion(Integer.parseInt(partes[1]), partes[2],
+                    partes.length > 3 ? Long.parseLong(partes[3]) : -1);
+            case "DELTA" -> aplicarDeltas(Integer.parseInt(partes[1]), partes.length > 2 ? partes[2] : "");
+            case "BLOQUEAR_ARQUEO" -> "OK";
+            case "DESBLOQUEAR_ARQUEO" -> "OK";
+            case "METRICAS" -> obtenerMetricas();
+            case "EXPORTAR" -> exportarCuentas(Integer.parseInt(partes[1]), Integer.parseInt(partes[2]),
+                    Integer.parseInt(partes[3]));
+            case "DELTAS_DESDE" -> deltasDesde(Integer.parseInt(partes[1]), Long.parseLong(partes[2]));
+            case "MIGRAR" -> iniciarMigracion(Integer.parseInt(partes[1]), partes[2], partes[3]);
+            case "ESTADO_MIGRACION" -> estadoMigracion(Integer.parseInt(partes[1]));
+            case "CANCELAR_MIGRACION" -> cancelarMigracion(Integer.parseInt(partes[1]));
+            case "ANILLO" -> {
+                aplicarAnillo(mensaje);
+                yield "OK";
+            }
+            case "CEDER" -> cederParticion(Integer.parseInt(partes[1]), partes[2]);
+            case "RETOMAR" -> retomarParticion(Integer.parseInt(partes[1]));
+            case "PREPARAR" -> prepararTransaccion(partes[1], partes[2], partes[3], partes[4], partes[5],
+                    partes.length > 6 ? partes[6] : null);
+            case "CONFIRMAR" -> resolverTransaccion(partes[1], true,
+                    NivelConsistencia.parsear(partes.length > 2 ? partes[2] : null, NivelConsistencia.ONE));
+            case "ABORTAR" -> resolverTransaccion(partes[1], false, NivelConsistencia.ONE);
+            default -> "ERROR|COMANDO_INVALIDO";
+        };
+    }
+
+    // SALDO|saldo|secuencia para las lecturas por quórum, que se quedan con la réplica más adelantada. La secuencia se
+    // lee antes que el saldo, así que el saldo es al menos tan reciente como ella.
+    private String consultarVersion(int idCuenta) {
+        Particion p = particiones.get(hashParticion(idCuenta));
+        if (p == null) {
+            return "ERROR|PARTICION_NO_LOCAL";
+        }
+        long secuencia = p.getSecuencia();
+        Cuenta cuenta = p.getCuenta(idCuenta);
+        return cuenta != null
+                ? Dinero.formatear(new StringBuilder(32).append("SALDO|"), cuenta.getSaldo()).append('|')
+                        .append(secuencia).toString()
+                : "ERROR|CUENTA_NO_EXISTE|" + secuencia;
+    }
+
+    private String procesarConsulta(int idCuenta, long secuenciaMinima) {
         int particion = hashParticion(idCuenta);
         Particion p = particiones.get(particion);
 
         if (p == null) {
-            out.println("ERROR|PARTICION_NO_LOCAL");
-            return;
+            return "ERROR|PARTICION_NO_LOCAL";
+        }
+        if (secuenciaMinima > 0 && p.getSecuencia() < secuenciaMinima) {
+            return "ERROR|REPLICA_ATRASADA";
         }
         Cuenta cuenta = p.getCuenta(idCuenta);
-        out.println(cuenta != null ? "SALDO|" + cuenta.getSaldo() : "ERROR|CUENTA_NO_EXISTE");
+        return cuenta != null
+                ? Dinero.formatear(new StringBuilder(24).append("SALDO|"), cuenta.getSaldo()).toString()
+                : "ERROR|CUENTA_NO_EXISTE";
     }
 
-    private void procesarTransferencia(String origenStr, String destinoStr, String montoStr, PrintWriter out) {
-        int origen = Integer.parseInt(origenStr);
-        int destino = Integer.parseInt(destinoStr);
-        double monto = Double.parseDouble(montoStr);
+    // Cada elemento se responde como id,OK,saldo o id,ERROR,CODIGO; las secuencias mínimas llegan como p:seq.
+    private String consultarLote(String ids, String minimas) {
+        Map<Integer, Long> secuencias = new HashMap<>();
+        if (!minimas.isEmpty()) {
+            for (String minima : minimas.split(",")) {
+                int dosPuntos = minima.indexOf(':');
+                secuencias.put(Integer.parseInt(minima.substring(0, dosPuntos)),
+                        Long.parseLong(minima.substring(dosPuntos + 1)));
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("SALDOS|");
+        for (String id : ids.split(",")) {
+            if (sb.length() > 7)
+                sb.append(';');
+            String respuesta;
+            try {
+                int idCuenta = Integer.parseInt(id);
+                respuesta = procesarConsulta(idCuenta, secuencias.getOrDefault(hashParticion(idCuenta), 0L));
+            } catch (NumberFormatException e) {
+                respuesta = "ERROR|FORMATO_INVALIDO";
+            }
+            sb.append(id).append(respuesta.startsWith("SALDO|") ? ",OK," : ",ERROR,")
+                    .append(respuesta, respuesta.indexOf('|') + 1, respuesta.length());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * MOVIMIENTOS|cuenta|desde|hasta|limite|secuenciaMinima, con - en los extremos abiertos. Responde
+     * MOVIMIENTOS|n|siguiente|id,fecha,origen,destino,monto;... del más reciente al más antiguo; siguiente es el
+     * hasta que pide la página anterior en el tiempo, o - si esta ya llega al principio.
+     */
+    private String consultarMovimientos(String[] partes) {
+        int idCuenta;
+        LocalDateTime desde;
+        LocalDateTime hasta;
+        long hastaId = Long.MIN_VALUE;
+        int limite;
+        long secuenciaMinima;
+        try {
+            idCuenta = Integer.parseInt(partes[1]);
+            desde = "-".equals(partes[2]) ? null : LocalDateTime.parse(partes[2]);
+            // hasta es una fecha o el cursor fecha/id que devuelve una página para pedir la siguiente.
+            int barra = partes[3].indexOf('/');
+            if (barra >= 0) {
+                hastaId = Long.parseLong(partes[3].substring(barra + 1));
+            }
+            hasta = "-".equals(partes[3]) ? null
+                    : LocalDateTime.parse(barra >= 0 ? partes[3].substring(0, barra) : partes[3]);
+            limite = Integer.parseInt(partes[4]);
+            secuenciaMinima = partes.length > 5 ? Long.parseLong(partes[5]) : 0;
+        } catch (RuntimeException e) {
+            return "ERROR|FORMATO_INVALIDO";
+        }
+        if (limite <= 0) {
+            return "ERROR|LIMITE_INVALIDO";
+        }
+
+        Particion p = particiones.get(hashParticion(idCuenta));
+        if (p == null) {
+            return "ERROR|PARTICION_NO_LOCAL";
+        }
+        if (secuenciaMinima > 0 && p.getSecuencia() < secuenciaMinima) {
+            return "ERROR|REPLICA_ATRASADA";
+        }
+        if (!p.diarioCompleto()) {
+            return "ERROR|DIARIO_INCOMPLETO";
+        }
+        List<RegistroMovimientos.Movimiento> pagina;
+        try {
+            pagina = p.movimientos(idCuenta, desde, hasta, hastaId, limite);
+        } catch (IOException e) {
+            System.err.println("Error leyendo movimientos: " + e.getMessage());
+            return "ERROR|ERROR_INTERNO";
+        }
+        if (pagina == null) {
+            return "ERROR|CUENTA_NO_EXISTE";
+        }
+
+        StringBuilder sb = new StringBuilder(32 + pagina.size() * 64).append("MOVIMIENTOS|").append(pagina.size())
+                .append('|');
+        if (pagina.size() == limite) {
+            RegistroMovimientos.Movimiento ultimo = pagina.get(limite - 1);
+            sb.append(ultimo.fecha().format(FECHA)).append('/').append(ultimo.id());
+        } else {
+            sb.append('-');
+        }
+        sb.append('|');
+        for (int i = 0; i < pagina.size(); i++) {
+            RegistroMovimientos.Movimiento m = pagina.get(i);
+            if (i > 0)
+                sb.append(';');
+            sb.append(m.id()).append(',').append(m.fecha().format(FECHA)).append(',').append(m.idOrigen()).append(',')
+                    .append(m.idDestino()).append(',');
+            Dinero.formatear(sb, m.monto());
+        }
+        return sb.toString();
+    }
+
+    // Busca en la memoria o, si ya se volcó, en los segmentos de historial de la partición.
+    private String obtenerTransaccion(int particionId, long idTransaccion) {
+        Particion p = particiones.get(particionId);
+        if (p == null) {
+            return "ERROR|PARTICION_NO_EXISTE";
+        }
+        try {
+            Transaccion t = p.getTransaccion(idTransaccion);
+            return t != null ? HistorialTransacciones.linea(t) : "ERROR|TRANSACCION_NO_EXISTE";
+        } catch (IOException e) {
+            System.err.println("Error leyendo historial: " + e.getMessage());
+            return "ERROR|ERROR_INTERNO";
+        }
+    }
+
+    /**
+     * Aplica en orden un lote de transferencias origen,destino,monto separadas por ';' cuyas dos cuentas están en
+     * la misma partición, y espera la durabilidad una sola vez por partición al final. Devuelve
+     * LOTE|p:seq,...|r0;r1;... con OK o ERROR,CODIGO por elemento.
+     */
+    private String transferirLote(String lote, NivelConsistencia nivel) {
+        String[] elementos = lote.split(";");
+        String[] resultados = new String[elementos.length];
+        Map<Integer, Particion> tocadas = new HashMap<>();
+        for (int i = 0; i < elementos.length; i++) {
+            String[] campos = elementos[i].split(",");
+            try {
+                int origen = Integer.parseInt(campos[0]);
+                int destino = Integer.parseInt(campos[1]);
+                long monto = Dinero.parsear(campos[2]);
+                int particion = hashParticion(origen);
+                Particion p = particiones.get(particion);
+                if (p == null) {
+                    resultados[i] = "ERROR,PARTICION_NO_LOCAL";
+                } else if (hashParticion(destino) != particion) {
+                    resultados[i] = "ERROR,PARTICIONES_DISTINTAS";
+                } else if (!p.transferirSinConfirmar(origen, destino, monto)) {
+                    resultados[i] = p.estaCedida() ? "ERROR,PARTICION_MOVIDA" : "ERROR,SALDO_INSUFICIENTE";
+                } else {
+                    tocadas.put(particion, p);
+                    resultados[i] = "OK|" + particion;
+                }
+            } catch (NumberFormatException | ArithmeticException | ArrayIndexOutOfBoundsException e) {
+                resultados[i] = "ERROR,FORMATO_INVALIDO";
+            }
+        }
+
+        StringBuilder secuencias = new StringBuilder();
+        Map<Integer, String> fallidas = new HashMap<>();
+        tocadas.forEach((particion, p) -> {
+            try {
+                confirmacionGrupal.confirmar(particion, p, nivel).get(10, TimeUnit.SECONDS);
+                secuencias.append(secuencias.length() == 0 ? "" : ",").append(particion).append(':')
+                        .append(p.getSecuencia());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fallidas.put(particion, "ERROR,RESULTADO_INCIERTO");
+            } catch (ExecutionException e) {
+                fallidas.put(particion, errorConfirmacion(e).replace('|', ','));
+            } catch (TimeoutException e) {
+                fallidas.put(particion, "ERROR,RESULTADO_INCIERTO");
+            }
+        });
+
+        StringBuilder sb = new StringBuilder("LOTE|").append(secuencias).append('|');
+        for (int i = 0; i < resultados.length; i++) {
+            String resultado = resultados[i];
+            if (resultado.startsWith("OK|")) {
+                resultado = fallidas.getOrDefault(Integer.parseInt(resultado.substring(3)), "OK");
+            }
+            sb.append(i == 0 ? "" : ";").append(resultado);
+        }
+        return sb.toString();
+    }
+
+    // TRANSFERIR|origen|destino|monto[|clave[|nivel]], con la clave vacía si solo se indica el nivel.
+    private String transferir(String[] partes) {
+        String clave = partes.length > 4 && !partes[4].isEmpty() ? partes[4] : null;
+        NivelConsistencia nivel = NivelConsistencia.parsear(partes.length > 5 ? partes[5] : null,
+                NivelConsistencia.ONE);
+        if (nivel == null) {
+            return "ERROR|NIVEL_INVALIDO";
+        }
+        return procesarTransferencia(Integer.parseInt(partes[1]), Integer.parseInt(partes[2]),
+                Dinero.parsear(partes[3]), clave, nivel);
+    }
+
+    // Con clave de idempotencia, un reintento recibe la respuesta guardada sin pasar por el WAL; con un nivel por
+    // encima de ONE espera antes a que las réplicas lleguen a ella, por si la primera vez no llegaron. El rechazo de
+    // la primera ejecución sí se confirma, porque la tabla de las réplicas también lo guarda.
+    private String procesarTransferencia(int origen, int destino, long monto, String clave,
+            NivelConsistencia nivel) {
         int particion = hashParticion(origen);
         Particion p = particiones.get(particion);
 
         if (p == null) {
-            out.println("ERROR|PARTICION_NO_LOCAL");
-            return;
+            return "ERROR|PARTICION_NO_LOCAL";
+        }
+        if (clave != null && !TablaIdempotencia.claveValida(clave)) {
+            return "ERROR|CLAVE_INVALIDA";
+        }
+
+        String resultado = p.transferirSinConfirmar(origen, destino, monto, clave);
+        boolean repetida = resultado.indexOf('|') >= 0;
+        if (repetida && nivel == NivelConsistencia.ONE) {
+            return resultado;
+        }
+        if (!repetida && !"OK".equals(resultado) && (clave == null || "PARTICION_MOVIDA".equals(resultado))) {
+            return "ERROR|" + resultado;
+        }
+        try {
+            confirmacionGrupal.confirmar(particion, p, nivel).get(10, TimeUnit.SECONDS);
+            if (repetida)
+                return resultado;
+            return "OK".equals(resultado) ? "OK|" + p.getSecuencia() : "ERROR|" + resultado;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR|RESULTADO_INCIERTO";
+        } catch (ExecutionException e) {
+            return errorConfirmacion(e);
+        } catch (TimeoutException e) {
+            return "ERROR|RESULTADO_INCIERTO";
         }
+    }
+
+    // REPLICAS_INSUFICIENTES: la escritura es durable en este nodo pero no llegó a las réplicas que pedía su nivel.
+    // RESULTADO_INCIERTO: el saldo ya cambió en memoria y puede haberse leído o replicado, así que no se deshace, pero
+    // no consta que llegara al WAL. El cliente no debe repetirla sin clave de idempotencia.
+    private static String errorConfirmacion(ExecutionException e) {
+        return e.getCause() instanceof ConfirmacionGrupal.ReplicasInsuficientes ? "ERROR|REPLICAS_INSUFICIENTES"
+                : "ERROR|RESULTADO_INCIERTO";
+    }
 
+    private String prepararTransaccion(String txId, String origenStr, String destinoStr, String montoStr,
+            String rol, String clave) {
+        int origen = Integer.parseInt(origenStr);
+        int destino = Integer.parseInt(destinoStr);
+        long monto = Dinero.parsear(montoStr);
+        boolean esOrigen = "ORIGEN".equals(rol);
+        Particion p = particiones.get(hashParticion(esOrigen ? origen : destino));
+
+        if (p == null) {
+            return "ERROR|PARTICION_NO_LOCAL";
+        }
+        if (clave != null && !TablaIdempotencia.claveValida(clave)) {
+            return "ERROR|CLAVE_INVALIDA";
+        }
+
+        String error;
         lock.writeLock().lock();
         try {
-            boolean exito = p.transferir(origen, destino, monto);
-            if (exito) {
-                sincronizarReplica(particion, p);
-            }
-            out.println(exito ? "OK" : "ERROR|SALDO_INSUFICIENTE");
+            error = p.preparar(txId, origen, destino, monto, esOrigen, clave);
+        } catch (UncheckedIOException e) {
+            // La reserva no es durable: se vota en contra y el ABORTAR del coordinador la libera.
+            return "ERROR|WAL_NO_DISPONIBLE";
         } finally {
             lock.writeLock().unlock();
         }
+        if (error == null)
+            return "LISTO";
+        return error.indexOf('|') >= 0 ? error : "ERROR|" + error;
+    }
+
+    private String resolverTransaccion(String txId, boolean confirmar, NivelConsistencia nivel) {
+        for (Map.Entry<Integer, Particion> entrada : particiones.entrySet()) {
+            Particion p = entrada.getValue();
+            if (!p.tienePreparada(txId))
+                continue;
+
+            boolean resuelta;
+            lock.writeLock().lock();
+            try {
+                resuelta = p.resolver(txId, confirmar);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // Otro CONFIRMAR del mismo txId se adelantó con esta partición; la otra reserva puede estar aquí también.
+            if (!resuelta)
+                continue;
+
+            try {
+                if (confirmar) {
+                    confirmacionGrupal.confirmar(entrada.getKey(), p, nivel != null ? nivel : NivelConsistencia.ONE)
+                            .get(10, TimeUnit.SECONDS);
+                    return "OK|" + p.getSecuencia() + "|" + entrada.getKey();
+                }
+                p.confirmarDurabilidad();
+                return "OK";
+            } catch (UncheckedIOException e) {
+                return "ERROR|WAL_NO_DISPONIBLE";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "ERROR|RESULTADO_INCIERTO";
+            } catch (ExecutionException e) {
+                return errorConfirmacion(e);
+            } catch (TimeoutException e) {
+                return "ERROR|RESULTADO_INCIERTO";
+            }
+        }
+        return "OK";
     }
 
-    private void procesarArqueo(PrintWriter out) {
+    // Los totales se mantienen en cada escritura; de vez en cuando se recalculan enteros por si algún camino se
+    // hubiera saltado la cuenta.
+    private void verificarTotales() {
+        while (running) {
+            dormir((int) VERIFICAR_TOTALES_MS);
+            particiones.forEach((particionId, p) -> {
+                long diferencia = p.verificarTotales();
+                if (diferencia != 0) {
+                    System.err.printf("[Totales] Partición %d desviada en %s; corregida%n", particionId,
+                            Dinero.formatear(diferencia));
+                }
+            });
+        }
+    }
+
+    private void recuperarTransaccionesDudosas() {
+        while (running) {
+            try {
+                Thread.sleep(TIMEOUT_PREPARADA_MS / 2);
+                LocalDateTime limite = LocalDateTime.now().minusNanos(TIMEOUT_PREPARADA_MS * 1_000_000);
+                for (Particion p : particiones.values()) {
+                    for (String txId : p.preparadasAntesDe(limite)) {
+                        String decision = consultarDecision(txId);
+                        if ("CONFIRMAR".equals(decision) || "ABORTAR".equals(decision)) {
+                            resolverTransaccion(txId, "CONFIRMAR".equals(decision), NivelConsistencia.ONE);
+                            System.out.println("Nodo " + id + " resolvió transacción dudosa " + txId + ": " + decision);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private String consultarDecision(String txId) {
+        try (Socket socket = new Socket(ipServidor, puertoServidor + 1);
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+
+            socket.setSoTimeout(5000);
+            out.println("ESTADO_TX|" + txId);
+            String respuesta = in.readLine();
+            if (respuesta != null && respuesta.startsWith("DECISION|")) {
+                return respuesta.split("\\|")[2];
+            }
+        } catch (IOException e) {
+            System.err.println("Error consultando decisión de " + txId + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private long arqueoLocal() {
         lock.readLock().lock();
         try {
-            double total = particiones.values().stream()
-                    .mapToDouble(Particion::arqueoLocal)
+            return particiones.values().stream()
+                    .mapToLong(Particion::arqueoLocal)
                     .sum();
-            out.printf("ARQUEO|%.2f%n", total);
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    private void obtenerParticion(int particionId, PrintWriter out) {
+    private String corteArqueo(int particionId) {
         Particion p = particiones.get(particionId);
         if (p == null) {
-            out.println("ERROR|PARTICION_NO_EXISTE");
-            return;
+            return "ERROR|PARTICION_NO_EXISTE";
+        }
+        if (p.estaCedida()) {
+            return "ERROR|PARTICION_MOVIDA";
+        }
+        return p.corteArqueo(particionId);
+    }
+
+    private String obtenerParticion(int particionId) {
+        Particion p = particiones.get(particionId);
+        if (p == null) {
+            return "ERROR|PARTICION_NO_EXISTE";
         }
 
         lock.readLock().lock();
         try {
-            String datos = p.obtenerDatosJson();
-            out.println(datos);
+            return p.obtenerDatosJson();
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    private void actualizarParticion(int particionId, String datos, PrintWriter out) {
+    private String actualizarParticion(int particionId, String datos) {
         Particion p = particiones.get(particionId);
         if (p == null) {
-            out.println("ERROR|PARTICION_NO_EXISTE");
-            return;
+            return "ERROR|PARTICION_NO_EXISTE";
         }
 
         lock.writeLock().lock();
         try {
             boolean exito = p.actualizarDesdeJson(datos);
-            out.println(exito ? "OK" : "ERROR|ACTUALIZACION_FALLIDA");
+            if (exito) {
+                avisarInvalidacion(particionId);
+            }
+            return exito ? "OK" : "ERROR|ACTUALIZACION_FALLIDA";
         } finally {
             lock.writeLock().unlock();
         }
     }
 
-    private int hashParticion(int id) {
-        int clienteId = id - 100;
-        return (Math.abs(clienteId) % 3) + 1;
+    private String obtenerMetricas() {
+        StringBuilder sb = new StringBuilder("METRICAS;").append(confirmacionGrupal.resumen())
+                .append(';').append(generadorIds.resumen())
+                .append(';').append(replicador.resumen())
+                .append(';').append(anillo.resumen());
+        particiones.values().forEach(p -> sb.append(';').append(p.resumenWal()));
+        particiones.values().forEach(p -> sb.append(';').append(p.resumenBloqueos()));
+        particiones.values().forEach(p -> sb.append(';').append(p.resumenAlmacen()));
+        particiones.forEach((particionId, p) -> sb.append(';').append(p.resumenTotales(particionId)));
+        particiones.values().forEach(p -> sb.append(';').append(p.resumenMovimientos()));
+        particiones.values().forEach(p -> sb.append(';').append(p.resumenHistorial()));
+        particiones.values().forEach(p -> sb.append(';').append(p.resumenIdempotencia()));
+        migraciones.values().forEach(m -> sb.append(';').append(m.resumen()));
+        if (servidorNio != null) {
+            sb.append(';').append(servidorNio.resumen());
+        }
+        return sb.toString();
+    }
+
+    private int hashParticion(int idCuenta) {
+        return anillo.particion(idCuenta);
     }
 
     private static void dormir(int ms) {
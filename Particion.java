@@ -1,31 +1,91 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 public class Particion {
     private final Path archivo;
     private final Map<Integer, Cliente> clientes = new HashMap<>();
-    private final Map<Integer, Cuenta> cuentas = new HashMap<>();
-    private final Map<Integer, Transaccion> transacciones = new HashMap<>();
+    private AlmacenCuentasConTotales cuentas = new AlmacenCuentasConTotales(AlmacenCuentas.crear());
+    private final HistorialTransacciones historial;
+    private final GeneradorIds ids;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final BloqueosCuenta bloqueos = new BloqueosCuenta();
+    private final Object registro = new Object();
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    public static final String FORMATO = "2";
+    private static final boolean USAR_INSTANTANEA = Boolean.getBoolean("particion.instantanea");
+    private static final long SALDO_REMOTO = Long.MIN_VALUE;
+    private static final int COMPACTAR_CADA = Integer.getInteger("wal.compactarCada", 1000);
+    private static final int DELTAS_RETENIDOS = Integer.getInteger("deltas.retenidos", 10000);
+    private static final Pattern CUENTA_JSON = Pattern.compile(
+            "\"(\\d+)\":\\{\"id_cliente\":(\\d+),\"saldo\":([-0-9.Ee]+),\"tipo\":\"([^\"]*)\"\\}");
+    private static final ExecutorService compactador = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "compactador-wal");
+        t.setDaemon(true);
+        return t;
+    });
+    private RegistroEscritura wal;
+    // Primer fallo escribiendo o sincronizando el WAL. No se reintenta: tras un fsync fallido el núcleo puede haber
+    // descartado las páginas sucias y un segundo fsync saldría bien sin que los datos estén en disco.
+    private volatile IOException errorWal;
+    private final AtomicBoolean compactacionPendiente = new AtomicBoolean(false);
+    private final ArrayDeque<String> deltasRetenidos = new ArrayDeque<>();
+    private final Map<String, Reserva> preparadas = new HashMap<>();
+    private final Map<Integer, Long> reservado = new HashMap<>();
+    private long secuencia;
+    private boolean formatoLegado;
+    private final Path rutaInstantanea;
+    private InstantaneaParticion instantanea;
+    private long transaccionesPrevias;
+    private volatile boolean cedida;
+    private boolean cerrada;
+    private volatile int[] idsOrdenados;
+    private RegistroMovimientos movimientos;
+    private final TablaIdempotencia idempotencia = new TablaIdempotencia();
+    // Mientras se carga, los movimientos del historial y del WAL se juntan aquí para anexarlos en orden al final.
+    private List<RegistroMovimientos.Movimiento> movimientosCargados = new ArrayList<>();
 
     public Particion(String rutaArchivo) {
+        this(rutaArchivo, GeneradorIds.LOCAL);
+    }
+
+    public Particion(String rutaArchivo, GeneradorIds ids) {
+        this.ids = ids;
         this.archivo = Paths.get(rutaArchivo);
+        this.rutaInstantanea = Paths.get(rutaArchivo.replaceFirst("\\.dat$", "") + ".snap");
+        this.historial = new HistorialTransacciones(Paths.get(rutaArchivo.replaceFirst("\\.dat$", "") + ".hist"));
         try {
             Files.createDirectories(archivo.getParent());
-            if (!Files.exists(archivo)) {
+            if (!Files.exists(archivo) && !Files.exists(rutaInstantanea)) {
                 Files.createFile(archivo);
             }
+            wal = new RegistroEscritura(Paths.get(rutaArchivo.replaceFirst("\\.dat$", "") + ".wal"));
+            movimientos = new RegistroMovimientos(Paths.get(rutaArchivo.replaceFirst("\\.dat$", "") + ".mov"));
         } catch (IOException e) {
             System.err.println("Error creando archivo: " + e.getMessage());
         }
@@ -34,37 +94,28 @@ public class Particion {
 
     private void cargarDatos() {
         lock.writeLock().lock();
-        try (BufferedReader br = Files.newBufferedReader(archivo)) {
-            br.lines().forEach(linea -> {
-                String[] partes = linea.split("\\|");
-                switch (partes[0]) {
-                    case "CLIENTE":
-                        clientes.put(Integer.parseInt(partes[1]), new Cliente(
-                                Integer.parseInt(partes[1]),
-                                partes[2],
-                                partes[3],
-                                partes[4]));
-                        break;
-
-                    case "CUENTA":
-                        cuentas.put(Integer.parseInt(partes[1]), new Cuenta(
-                                Integer.parseInt(partes[1]),
-                                Integer.parseInt(partes[2]),
-                                Double.parseDouble(partes[3]),
-                                partes[4]));
-                        break;
-
-                    case "TRANSACCION":
-                        transacciones.put(Integer.parseInt(partes[1]), new Transaccion(
-                                Integer.parseInt(partes[1]),
-                                Integer.parseInt(partes[2]),
-                                Integer.parseInt(partes[3]),
-                                Double.parseDouble(partes[4]),
-                                LocalDateTime.parse(partes[5], DATE_FORMATTER),
-                                partes[6]));
-                        break;
-                }
-            });
+        try {
+            if (instantaneaVigente()) {
+                cargarInstantanea();
+            } else {
+                cargarTexto();
+            }
+            if (wal != null) {
+                long base = secuencia;
+                wal.leerRegistros().forEach(linea -> aplicarRegistroWal(linea, base));
+            }
+            completarMovimientos();
+            if (formatoLegado) {
+                System.out.println("Migrando " + archivo.getFileName() + " a importes en centavos");
+                guardarCambios();
+                formatoLegado = false;
+            } else if (USAR_INSTANTANEA && instantanea == null) {
+                System.out.println("Convirtiendo " + archivo.getFileName() + " a instantánea mapeada");
+                guardarCambios();
+            } else if (historial.excedePresupuesto()) {
+                System.out.println("Volcando historial antiguo de " + archivo.getFileName() + " a segmentos");
+                guardarCambios();
+            }
         } catch (IOException e) {
             System.err.println("Error cargando datos: " + e.getMessage());
         } finally {
@@ -72,27 +123,182 @@ public class Particion {
         }
     }
 
-    public void fusionarDatos(String datosRemotos) {
-        try {
-            lock.writeLock().lock();
+    private void cargarTexto() throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(archivo)) {
+            String primera = br.readLine();
+            formatoLegado = primera != null && !primera.startsWith("FORMATO|");
+            if (primera != null) {
+                aplicarLinea(primera);
+            }
+            br.lines().forEach(this::aplicarLinea);
+        }
+    }
 
-            String[] partes = datosRemotos.split("\\{\"cuentas\":\\{")[1].split("\\}\\}")[0].split(",");
-            for (String parte : partes) {
-                if (parte.trim().isEmpty())
-                    continue;
+    private void cargarInstantanea() throws IOException {
+        instantanea = InstantaneaParticion.abrir(rutaInstantanea);
+        cuentas = cuentasDe(instantanea);
+        secuencia = instantanea.getSecuencia();
+        transaccionesPrevias = instantanea.getTransacciones();
+        instantanea.pendientes().forEach(this::aplicarLinea);
+    }
+
+    private static AlmacenCuentasConTotales cuentasDe(InstantaneaParticion instantanea) {
+        Map<String, Long> sumas = instantanea.getSumasPorTipo();
+        return sumas != null ? new AlmacenCuentasConTotales(instantanea.cuentas(), sumas)
+                : new AlmacenCuentasConTotales(instantanea.cuentas());
+    }
+
+    // Si quedan los dos formatos tras una caída entre el renombrado y el borrado del anterior, manda el de secuencia
+    // más alta (a igualdad guardan el mismo estado y se queda el configurado) y el otro se borra. Las fechas de
+    // modificación no sirven: pueden tener poca resolución o saltar con el reloj.
+    private boolean instantaneaVigente() throws IOException {
+        if (!Files.exists(rutaInstantanea))
+            return false;
+        if (!Files.exists(archivo))
+            return true;
+        long secuenciaInstantanea;
+        try (InstantaneaParticion leida = InstantaneaParticion.abrir(rutaInstantanea)) {
+            secuenciaInstantanea = leida.getSecuencia();
+        } catch (IOException e) {
+            System.err.println("Instantánea ilegible, se usa " + archivo.getFileName() + ": " + e.getMessage());
+            secuenciaInstantanea = -1;
+        }
+        long secuenciaTexto = secuenciaTexto();
+        boolean vigente = secuenciaInstantanea > secuenciaTexto
+                || (secuenciaInstantanea == secuenciaTexto && USAR_INSTANTANEA);
+        Path sobrante = vigente ? archivo : rutaInstantanea;
+        System.out.println("Descartando " + sobrante.getFileName() + " (secuencias: texto " + secuenciaTexto
+                + ", instantánea " + secuenciaInstantanea + ")");
+        Files.delete(sobrante);
+        return vigente;
+    }
 
-                String[] keyValue = parte.split("\":");
-                int id = Integer.parseInt(keyValue[0].replace("\"", ""));
+    private long secuenciaTexto() throws IOException {
+        long encontrada = 0;
+        try (BufferedReader br = Files.newBufferedReader(archivo)) {
+            for (String linea = br.readLine(); linea != null; linea = br.readLine()) {
+                if (linea.startsWith("SECUENCIA|")) {
+                    encontrada = Long.parseLong(linea.substring("SECUENCIA|".length()));
+                }
+            }
+        }
+        return encontrada;
+    }
 
-                if (!cuentas.containsKey(id)) {
-                    String value = keyValue[1];
-                    String[] campos = value.split(",");
-                    int idCliente = Integer.parseInt(campos[0].split(":")[1]);
-                    double saldo = Double.parseDouble(campos[1].split(":")[1]);
-                    String tipo = campos[2].split(":")[1].replace("\"", "").replace("}", "");
+    private void aplicarLinea(String linea) {
+        String[] partes = linea.split("\\|");
+        switch (partes[0]) {
+            case "FORMATO":
+                if (!FORMATO.equals(partes[1])) {
+                    System.err.println("Formato de datos desconocido en " + archivo + ": " + partes[1]);
+                }
+                break;
 
-                    cuentas.put(id, new Cuenta(id, idCliente, saldo, tipo));
+            case "CLIENTE":
+                clientes.put(Integer.parseInt(partes[1]), new Cliente(
+                        Integer.parseInt(partes[1]),
+                        partes[2],
+                        partes[3],
+                        partes[4]));
+                break;
+
+            case "CUENTA":
+                cuentas.poner(
+                        Integer.parseInt(partes[1]),
+                        Integer.parseInt(partes[2]),
+                        importe(partes[3]),
+                        partes[4]);
+                break;
+
+            case "TRANSACCION":
+                Transaccion t = new Transaccion(
+                        Long.parseLong(partes[1]),
+                        Integer.parseInt(partes[2]),
+                        Integer.parseInt(partes[3]),
+                        importe(partes[4]),
+                        LocalDateTime.parse(partes[5], DATE_FORMATTER),
+                        partes[6]);
+                historial.registrar(t);
+                if (partes.length >= 9) {
+                    fijarSaldo(Integer.parseInt(partes[2]), partes[7]);
+                    fijarSaldo(Integer.parseInt(partes[3]), partes[8]);
+                }
+                if (partes.length >= 10) {
+                    secuencia = Math.max(secuencia, Long.parseLong(partes[9]));
+                }
+                if (partes.length >= 11) {
+                    liberarReserva(partes[10]);
+                }
+                if (partes.length >= 12) {
+                    registrarClave(partes[11], t, Long.parseLong(partes[9]));
+                }
+                if ("CONFIRMADA".equals(partes[6])) {
+                    registrarMovimiento(t, partes.length >= 10 ? Long.parseLong(partes[9]) : 0);
                 }
+                break;
+
+            case "SECUENCIA":
+                secuencia = Long.parseLong(partes[1]);
+                break;
+
+            case "PREPARADA":
+                registrarReserva(new Reserva(
+                        partes[1],
+                        Integer.parseInt(partes[2]),
+                        Integer.parseInt(partes[3]),
+                        importe(partes[4]),
+                        "ORIGEN".equals(partes[5]),
+                        LocalDateTime.parse(partes[6], DATE_FORMATTER),
+                        partes.length > 7 ? partes[7] : null));
+                break;
+
+            case "RESUELTA":
+                liberarReserva(partes[1]);
+                break;
+
+            case "IDEMPOTENCIA":
+                idempotencia.registrar(partes[1], String.join("|", Arrays.copyOfRange(partes, 3, partes.length)),
+                        Long.parseLong(partes[2]));
+                break;
+        }
+    }
+
+    // Si el nodo cayó entre guardar los datos y vaciar el WAL, este repite escrituras que ya están en ellos: las de
+    // secuencia hasta la guardada solo liberan su reserva, que puede venir de una PREPARADA anterior del mismo WAL.
+    private void aplicarRegistroWal(String linea, long base) {
+        if (linea.startsWith("TRANSACCION|")) {
+            String[] partes = linea.split("\\|");
+            if (partes.length >= 10 && Long.parseLong(partes[9]) <= base) {
+                if (partes.length >= 11) {
+                    liberarReserva(partes[10]);
+                }
+                return;
+            }
+        }
+        aplicarLinea(linea);
+    }
+
+    private long importe(String texto) {
+        return formatoLegado ? Dinero.redondear(texto) : Long.parseLong(texto);
+    }
+
+    private void fijarSaldo(int idCuenta, String saldo) {
+        if (!"-".equals(saldo)) {
+            fijarSaldo(idCuenta, importe(saldo));
+        }
+    }
+
+    private void fijarSaldo(int idCuenta, long saldo) {
+        cuentas.fijarSaldo(idCuenta, saldo);
+    }
+
+    public void fusionarDatos(String datosRemotos) {
+        try {
+            lock.writeLock().lock();
+
+            for (Cuenta cuenta : parsearCuentasJson(datosRemotos)) {
+                cuentas.ponerSiAusente(cuenta.getId(), cuenta.getIdCliente(), cuenta.getSaldo(),
+                        cuenta.getTipoCuenta());
             }
             guardarCambios();
         } catch (Exception e) {
@@ -102,45 +308,601 @@ public class Particion {
         }
     }
 
-    public boolean transferir(int idOrigen, int idDestino, double monto) {
+    public boolean transferir(int idOrigen, int idDestino, long monto) {
+        boolean exito = transferirSinConfirmar(idOrigen, idDestino, monto);
+        confirmarDurabilidad();
+        return exito;
+    }
+
+    public boolean transferirSinConfirmar(int idOrigen, int idDestino, long monto) {
+        return "OK".equals(transferirSinConfirmar(idOrigen, idDestino, monto, null));
+    }
+
+    /**
+     * Ejecuta la transferencia y devuelve OK, SALDO_INSUFICIENTE o PARTICION_MOVIDA. Con clave, si esta ya tiene
+     * resultado se devuelve la respuesta guardada (OK|secuencia o ERROR|CODIGO) sin ejecutar nada. Si no, el
+     * resultado se guarda con la transacción; un rechazo con clave lleva entonces secuencia para llegar a las
+     * réplicas. Los reintentos de una misma transferencia se ordenan en los bloqueos de sus cuentas.
+     */
+    public String transferirSinConfirmar(int idOrigen, int idDestino, long monto, String clave) {
+        boolean exito = false;
+        lock.readLock().lock();
+        bloqueos.bloquear(idOrigen, idDestino);
+        try {
+            if (cedida)
+                return "PARTICION_MOVIDA";
+            if (clave != null) {
+                String previo = idempotencia.buscar(clave);
+                if (previo != null)
+                    return previo;
+                if (claveEnCurso(clave))
+                    return "ERROR|TRANSFERENCIA_EN_CURSO";
+            }
+            if (cuentas.contiene(idOrigen) && cuentas.contiene(idDestino) && disponible(idOrigen) >= monto) {
+                cuentas.ajustarSaldo(idOrigen, -monto);
+                cuentas.ajustarSaldo(idDestino, monto);
+                exito = true;
+            }
+
+            synchronized (registro) {
+                Transaccion t = new Transaccion(
+                        ids.siguiente(),
+                        idOrigen,
+                        idDestino,
+                        monto,
+                        exito ? "CONFIRMADA" : "RECHAZADA");
+                historial.registrar(t);
+
+                if (exito || clave != null) {
+                    String linea = registroTransaccion(t, exito ? cuentas.saldo(idOrigen) : SALDO_REMOTO,
+                            exito ? cuentas.saldo(idDestino) : SALDO_REMOTO, ++secuencia, null, clave);
+                    anexarWal(linea);
+                    retenerDelta(linea);
+                    if (exito) {
+                        registrarMovimiento(t, secuencia);
+                    }
+                    if (clave != null) {
+                        registrarClave(clave, t, secuencia);
+                    }
+                } else {
+                    anexarWal(registroTransaccion(t));
+                }
+            }
+        } finally {
+            bloqueos.desbloquear(idOrigen, idDestino);
+            lock.readLock().unlock();
+        }
+        return exito ? "OK" : "SALDO_INSUFICIENTE";
+    }
+
+    public long aplicarDeltas(String lote) {
+        return aplicarDeltas(Arrays.asList(lote.split(";")));
+    }
+
+    /**
+     * Aplica en orden los deltas que siguen a la secuencia local y devuelve la secuencia resultante. Cada nodo numera
+     * sus escrituras por su cuenta, así que tras escribir en otro primario la misma secuencia puede corresponder a otra
+     * transacción: un delta ya aplicado se compara por id (que lleva el nodo que la creó) con el retenido con esa
+     * secuencia, y si no coincide se deja
+     * de aplicar y se devuelve -1 para que el primario envíe la partición entera.
+     */
+    public long aplicarDeltas(List<String> deltas) {
         lock.writeLock().lock();
         try {
-            Cuenta origen = cuentas.get(idOrigen);
-            Cuenta destino = cuentas.get(idDestino);
-            boolean exito = false;
+            for (String delta : deltas) {
+                if (delta.isEmpty())
+                    continue;
 
-            if (origen != null && destino != null && origen.getSaldo() >= monto) {
-                origen.retirar(monto);
-                destino.depositar(monto);
-                exito = true;
+                long seq = secuenciaDelta(delta);
+                if (seq <= secuencia) {
+                    String propio = deltaRetenido(seq);
+                    if (propio != null && !idDelta(propio).equals(idDelta(delta)))
+                        return -1;
+                    continue;
+                }
+                if (seq != secuencia + 1)
+                    break;
+
+                String registro = "TRANSACCION|" + delta.replace(',', '|');
+                aplicarLinea(registro);
+                anexarWal(registro);
+                retenerDelta(registro);
+            }
+            return secuencia;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public static long secuenciaDelta(String delta) {
+        return Long.parseLong(delta.split(",")[8]);
+    }
+
+    private static String idDelta(String delta) {
+        return delta.substring(0, delta.indexOf(','));
+    }
+
+    // Los deltas retenidos son las últimas secuencias consecutivas; se recorren desde el final, donde cae el solape.
+    private String deltaRetenido(long seq) {
+        synchronized (registro) {
+            if (seq < secuencia - deltasRetenidos.size() + 1)
+                return null;
+            var it = deltasRetenidos.descendingIterator();
+            for (long actual = secuencia; it.hasNext(); actual--) {
+                String delta = it.next();
+                if (actual == seq)
+                    return delta;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Devuelve null si la reserva queda hecha o el código del voto en contra. Si la clave de idempotencia del lado
+     * origen ya tiene resultado, el voto en contra es la respuesta guardada (OK|secuencia), que el coordinador
+     * devuelve tal cual al abortar.
+     */
+    public String preparar(String txId, int idOrigen, int idDestino, long monto, boolean esOrigen, String clave) {
+        lock.writeLock().lock();
+        try {
+            if (preparadas.containsKey(txId))
+                return null;
+            if (cedida)
+                return "PARTICION_MOVIDA";
+            if (clave != null) {
+                String previo = idempotencia.buscar(clave);
+                if (previo != null)
+                    return previo;
+                if (claveEnCurso(clave))
+                    return "TRANSFERENCIA_EN_CURSO";
+            }
+
+            if (!cuentas.contiene(esOrigen ? idOrigen : idDestino))
+                return "CUENTA_NO_EXISTE";
+            if (esOrigen && disponible(idOrigen) < monto)
+                return "SALDO_INSUFICIENTE";
+
+            Reserva reserva = new Reserva(txId, idOrigen, idDestino, monto, esOrigen, LocalDateTime.now(),
+                    esOrigen ? clave : null);
+            registrarReserva(reserva);
+            anexarWal(reserva.registro());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        confirmarDurabilidad();
+        return null;
+    }
+
+    public boolean resolver(String txId, boolean confirmar) {
+        lock.writeLock().lock();
+        try {
+            Reserva reserva = preparadas.get(txId);
+            if (reserva == null)
+                return false;
+
+            liberarReserva(txId);
+            if (!confirmar) {
+                anexarWal("RESUELTA|" + txId + "|ABORTAR");
+                return true;
             }
+
+            cuentas.ajustarSaldo(reserva.idLocal(), reserva.esOrigen ? -reserva.monto : reserva.monto);
             Transaccion t = new Transaccion(
-                    transacciones.size() + 1,
-                    idOrigen,
-                    idDestino,
-                    monto,
-                    exito ? "CONFIRMADA" : "RECHAZADA");
-            transacciones.put(t.getId(), t);
+                    ids.siguiente(),
+                    reserva.idOrigen,
+                    reserva.idDestino,
+                    reserva.monto,
+                    "CONFIRMADA");
+            historial.registrar(t);
+
+            long saldo = cuentas.saldo(reserva.idLocal());
+            String registro = registroTransaccion(t,
+                    reserva.esOrigen ? saldo : SALDO_REMOTO,
+                    reserva.esOrigen ? SALDO_REMOTO : saldo,
+                    ++secuencia, txId, reserva.clave);
+            anexarWal(registro);
+            retenerDelta(registro);
+            registrarMovimiento(t, secuencia);
+            if (reserva.clave != null) {
+                registrarClave(reserva.clave, t, secuencia);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean tienePreparada(String txId) {
+        lock.readLock().lock();
+        try {
+            return preparadas.containsKey(txId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> preparadasAntesDe(LocalDateTime limite) {
+        lock.readLock().lock();
+        try {
+            return preparadas.values().stream()
+                    .filter(r -> r.creada.isBefore(limite))
+                    .map(r -> r.txId)
+                    .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean claveEnCurso(String clave) {
+        return preparadas.values().stream().anyMatch(r -> clave.equals(r.clave));
+    }
+
+    // El resultado se deduce de la línea: un rechazo que llega a registrarse es por saldo o por cuenta inexistente,
+    // que el nodo responde como SALDO_INSUFICIENTE.
+    private void registrarClave(String clave, Transaccion t, long seq) {
+        idempotencia.registrar(clave, "CONFIRMADA".equals(t.getEstado()) ? "OK|" + seq : "ERROR|SALDO_INSUFICIENTE",
+                GeneradorIds.milisegundos(t.getId()));
+    }
+
+    public String resumenIdempotencia() {
+        return idempotencia.resumen(archivo.getFileName().toString());
+    }
+
+    private long disponible(int idCuenta) {
+        return cuentas.saldo(idCuenta) - reservado.getOrDefault(idCuenta, 0L);
+    }
+
+    private void registrarReserva(Reserva reserva) {
+        // La misma PREPARADA puede llegar de los datos guardados y de un WAL que no se llegó a vaciar.
+        if (preparadas.putIfAbsent(reserva.txId, reserva) != null)
+            return;
+        if (reserva.esOrigen) {
+            reservado.merge(reserva.idOrigen, reserva.monto, Long::sum);
+        }
+    }
+
+    private void liberarReserva(String txId) {
+        Reserva reserva = preparadas.remove(txId);
+        if (reserva != null && reserva.esOrigen) {
+            reservado.computeIfPresent(reserva.idOrigen, (id, monto) -> {
+                long restante = monto - reserva.monto;
+                return restante > 0 ? restante : null;
+            });
+        }
+    }
+
+    public List<String> deltasDesde(long desde) {
+        lock.readLock().lock();
+        try {
+            synchronized (registro) {
+                long primera = secuencia - deltasRetenidos.size() + 1;
+                if (desde < primera)
+                    return null;
+
+                List<String> deltas = new ArrayList<>();
+                var it = deltasRetenidos.descendingIterator();
+                for (long seq = secuencia; seq >= desde && it.hasNext(); seq--) {
+                    deltas.add(it.next());
+                }
+                java.util.Collections.reverse(deltas);
+                return deltas;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Deja de aceptar transferencias y preparaciones nuevas mientras la partición se traspasa a otro nodo. Al tomar
+     * el cerrojo de escritura espera a las transferencias en curso, de modo que todas quedan con su secuencia.
+     */
+    public void ceder() {
+        lock.writeLock().lock();
+        try {
+            cedida = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void retomar() {
+        cedida = false;
+    }
+
+    public boolean estaCedida() {
+        return cedida;
+    }
+
+    public boolean tienePreparadas() {
+        lock.readLock().lock();
+        try {
+            return !preparadas.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lote de cuentas con id mayor que {@code desde}, en orden de id, precedido de la secuencia vigente al leerlo.
+     * Los saldos pueden reflejar escrituras posteriores a esa secuencia; el receptor lo corrige al aplicar la cola
+     * de deltas, que llevan saldos absolutos.
+     */
+    public String exportarCuentas(int desde, int maximo) {
+        lock.readLock().lock();
+        try {
+            long seq;
+            synchronized (registro) {
+                seq = secuencia;
+            }
+            int[] ids = idsOrdenados;
+            if (ids == null || ids.length != cuentas.tamano()) {
+                IntStream.Builder todos = IntStream.builder();
+                cuentas.paraCada(c -> todos.add(c.getId()));
+                ids = todos.build().sorted().toArray();
+                idsOrdenados = ids;
+            }
+
+            int inicio = Arrays.binarySearch(ids, desde);
+            inicio = inicio >= 0 ? inicio + 1 : -inicio - 1;
+            int fin = Math.min(ids.length, inicio + maximo);
+            StringBuilder sb = new StringBuilder(32 + (fin - inicio) * 32).append("EXPORTADO|").append(seq)
+                    .append('|').append(fin > inicio ? ids[fin - 1] : desde)
+                    .append('|').append(fin - inicio)
+                    .append('|');
+            for (int i = inicio; i < fin; i++) {
+                Cuenta c = cuentas.obtener(ids[i]);
+                if (i > inicio)
+                    sb.append(';');
+                sb.append(c.getId()).append(',').append(c.getIdCliente()).append(',').append(c.getSaldo())
+                        .append(',').append(c.getTipoCuenta());
+            }
+            return sb.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void iniciarImportacion() {
+        lock.writeLock().lock();
+        try {
+            cuentas = new AlmacenCuentasConTotales(AlmacenCuentas.crear());
+            clientes.clear();
+            historial.reiniciar();
+            idempotencia.reiniciar();
+            preparadas.clear();
+            reservado.clear();
+            deltasRetenidos.clear();
+            transaccionesPrevias = 0;
+            secuencia = 0;
+            idsOrdenados = null;
+            if (instantanea != null) {
+                instantanea.close();
+                instantanea = null;
+                if (!USAR_INSTANTANEA) {
+                    Files.deleteIfExists(rutaInstantanea);
+                }
+            }
+            if (wal != null) {
+                wal.reiniciar();
+            }
+            if (movimientos != null) {
+                movimientos.reiniciar();
+            }
+            marcarDiarioIncompleto();
+        } catch (IOException e) {
+            System.err.println("Error iniciando importación: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void importarCuentas(String lote) {
+        lock.writeLock().lock();
+        try {
+            for (String registro : lote.split(";")) {
+                if (registro.isEmpty())
+                    continue;
+                String[] campos = registro.split(",");
+                cuentas.poner(Integer.parseInt(campos[0]), Integer.parseInt(campos[1]), Long.parseLong(campos[2]),
+                        campos[3]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void finalizarImportacion(long secuenciaBase) {
+        lock.writeLock().lock();
+        try {
+            secuencia = secuenciaBase;
+            guardarCambios();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getSecuencia() {
+        lock.readLock().lock();
+        try {
+            synchronized (registro) {
+                return secuencia;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void retenerDelta(String registro) {
+        deltasRetenidos.addLast(registro.substring("TRANSACCION|".length()).replace('|', ','));
+        if (deltasRetenidos.size() > DELTAS_RETENIDOS) {
+            deltasRetenidos.removeFirst();
+        }
+    }
+
+    /**
+     * Sincroniza el WAL y lanza UncheckedIOException si algún registro no llegó a disco, para que la escritura no se
+     * dé por confirmada. El error se mantiene hasta que una compactación vuelca el estado completo y vacía el WAL.
+     */
+    public void confirmarDurabilidad() {
+        if (wal == null) {
+            return;
+        }
+        IOException error = errorWal;
+        if (error == null) {
+            try {
+                wal.sincronizar();
+            } catch (IOException e) {
+                System.err.println("Error sincronizando WAL: " + e.getMessage());
+                errorWal = error = e;
+            }
+        }
+        if (error != null || wal.getRegistros() >= COMPACTAR_CADA) {
+            programarCompactacion();
+        }
+        if (error != null) {
+            throw new UncheckedIOException("WAL de " + archivo.getFileName() + " no disponible", error);
+        }
+    }
+
+    private static StringBuilder inicioRegistro(Transaccion t) {
+        return new StringBuilder(112)
+                .append("TRANSACCION|").append(t.getId())
+                .append('|').append(t.getIdOrigen())
+                .append('|').append(t.getIdDestino())
+                .append('|').append(t.getMonto())
+                .append('|').append(t.getFechaHora().format(DATE_FORMATTER))
+                .append('|').append(t.getEstado());
+    }
+
+    private static String registroTransaccion(Transaccion t) {
+        return inicioRegistro(t).toString();
+    }
+
+    private static String registroTransaccion(Transaccion t, long saldoOrigen, long saldoDestino, long seq,
+            String txId, String clave) {
+        StringBuilder registro = inicioRegistro(t);
+        anexarSaldo(registro, saldoOrigen);
+        anexarSaldo(registro, saldoDestino);
+        registro.append('|').append(seq);
+        if (txId != null || clave != null) {
+            registro.append('|').append(txId != null ? txId : "-");
+        }
+        if (clave != null) {
+            registro.append('|').append(clave);
+        }
+        return registro.toString();
+    }
+
+    private static void anexarSaldo(StringBuilder registro, long saldo) {
+        registro.append('|');
+        if (saldo == SALDO_REMOTO) {
+            registro.append('-');
+        } else {
+            registro.append(saldo);
+        }
+    }
+
+    private void anexarWal(String registro) {
+        if (wal == null) {
+            return;
+        }
+        try {
+            wal.anexar(registro);
+        } catch (IOException e) {
+            System.err.println("Error escribiendo WAL: " + e.getMessage());
+            errorWal = e;
+        }
+    }
 
+    /**
+     * Suelta los archivos abiertos (WAL, instantánea mapeada y diario de movimientos) cuando el nodo deja de servir
+     * la partición. Una compactación que quedara en cola ya no hace nada.
+     */
+    public void cerrar() {
+        lock.writeLock().lock();
+        try {
+            cerrada = true;
+            if (wal != null) {
+                wal.close();
+            }
+            if (instantanea != null) {
+                instantanea.close();
+            }
+            if (movimientos != null) {
+                movimientos.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error cerrando partición " + archivo.getFileName() + ": " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void programarCompactacion() {
+        if (compactacionPendiente.compareAndSet(false, true)) {
+            compactador.execute(() -> {
+                try {
+                    compactar();
+                } finally {
+                    compactacionPendiente.set(false);
+                }
+            });
+        }
+    }
+
+    public void compactar() {
+        lock.writeLock().lock();
+        try {
+            if (cerrada)
+                return;
             guardarCambios();
-            return exito;
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Compacta el WAL en el archivo de datos. Cada compactación reescribe todas las cuentas y la ventana de historial
+     * en memoria, acotada por historial.memoriaKB; las transacciones más antiguas ya están en segmentos inmutables y
+     * no se vuelven a escribir. El coste crece con el número de cuentas y ese presupuesto, no con el historial total.
+     */
     private void guardarCambios() {
-        try (BufferedWriter bw = Files.newBufferedWriter(archivo, StandardOpenOption.TRUNCATE_EXISTING)) {
+        // El WAL se vacía al compactar y el historial compactado no lleva secuencias: el diario debe estar en disco.
+        sincronizarMovimientos();
+        if (USAR_INSTANTANEA) {
+            guardarInstantanea();
+            return;
+        }
+
+        Path temporal = archivo.resolveSibling(archivo.getFileName() + ".tmp");
+        try {
+            if (instantanea != null) {
+                instantanea.leerHistorial().forEach(this::aplicarLinea);
+                transaccionesPrevias = 0;
+            }
+        } catch (IOException e) {
+            System.err.println("Error leyendo historial de la instantánea: " + e.getMessage());
+            return;
+        }
+        volcarHistorial();
+        try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+                BufferedWriter bw = new BufferedWriter(Channels.newWriter(canal, StandardCharsets.UTF_8))) {
+            bw.write("FORMATO|" + FORMATO + "\n");
             for (Cliente cliente : clientes.values()) {
                 bw.write(String.format("CLIENTE|%d|%s|%s|%s%n",
                         cliente.getId(), cliente.getNombre(), cliente.getEmail(), cliente.getTelefono()));
             }
-            for (Cuenta cuenta : cuentas.values()) {
-                bw.write(String.format("CUENTA|%d|%d|%.2f|%s%n",
-                        cuenta.getId(), cuenta.getIdCliente(), cuenta.getSaldo(), cuenta.getTipoCuenta()));
-            }
-            for (Transaccion t : transacciones.values()) {
-                bw.write(String.format("TRANSACCION|%d|%d|%d|%.2f|%s|%s%n",
+            cuentas.paraCada(cuenta -> {
+                try {
+                    bw.write(String.format("CUENTA|%d|%d|%d|%s%n",
+                            cuenta.getId(), cuenta.getIdCliente(), cuenta.getSaldo(), cuenta.getTipoCuenta()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            for (Transaccion t : historial.recientes()) {
+                bw.write(String.format("TRANSACCION|%d|%d|%d|%d|%s|%s%n",
                         t.getId(),
                         t.getIdOrigen(),
                         t.getIdDestino(),
@@ -148,70 +910,350 @@ public class Particion {
                         t.getFechaHora().format(DATE_FORMATTER),
                         t.getEstado()));
             }
+            for (Reserva reserva : preparadas.values()) {
+                bw.write(reserva.registro() + "\n");
+            }
+            for (String linea : idempotencia.lineas()) {
+                bw.write(linea + "\n");
+            }
+            bw.write("SECUENCIA|" + secuencia + "\n");
+            bw.flush();
+            canal.force(true);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error guardando cambios: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // El renombrado tiene que ser durable antes de vaciar el WAL o de borrar el formato anterior.
+            RegistroEscritura.sincronizarDirectorio(archivo);
+            if (wal != null) {
+                wal.reiniciar();
+                errorWal = null;
+            }
+            if (instantanea != null) {
+                instantanea.close();
+                instantanea = null;
+                Files.deleteIfExists(rutaInstantanea);
+            }
         } catch (IOException e) {
             System.err.println("Error guardando cambios: " + e.getMessage());
         }
     }
 
-    public double arqueoLocal() {
+    private void guardarInstantanea() {
+        Path temporal = rutaInstantanea.resolveSibling(rutaInstantanea.getFileName() + ".tmp");
+        volcarHistorial();
+        List<Transaccion> recientes = historial.recientes();
+        List<String> lineas = new ArrayList<>(clientes.size() + recientes.size());
+        for (Cliente cliente : clientes.values()) {
+            lineas.add(String.format("CLIENTE|%d|%s|%s|%s",
+                    cliente.getId(), cliente.getNombre(), cliente.getEmail(), cliente.getTelefono()));
+        }
+        for (Transaccion t : recientes) {
+            lineas.add(registroTransaccion(t));
+        }
+        List<String> pendientes = new ArrayList<>(preparadas.size());
+        preparadas.values().forEach(r -> pendientes.add(r.registro()));
+        pendientes.addAll(idempotencia.lineas());
+        long totalTransacciones = transaccionesPrevias + recientes.size();
+
+        try {
+            InstantaneaParticion.escribir(temporal, cuentas, secuencia, totalTransacciones, pendientes, instantanea,
+                    lineas);
+            Files.move(temporal, rutaInstantanea, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            RegistroEscritura.sincronizarDirectorio(rutaInstantanea);
+            if (wal != null) {
+                wal.reiniciar();
+                errorWal = null;
+            }
+            Files.deleteIfExists(archivo);
+
+            InstantaneaParticion nueva = InstantaneaParticion.abrir(rutaInstantanea);
+            if (instantanea != null) {
+                instantanea.close();
+            }
+            instantanea = nueva;
+            cuentas = cuentasDe(nueva);
+            clientes.clear();
+            historial.limpiarRecientes();
+            transaccionesPrevias = totalTransacciones;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error guardando instantánea: " + e.getMessage());
+        }
+    }
+
+    // Con secuencia 0 llegan las transacciones de historiales sin secuencia, que solo se toman al crear el diario.
+    private void registrarMovimiento(Transaccion t, long seq) {
+        RegistroMovimientos.Movimiento m = new RegistroMovimientos.Movimiento(seq, t.getId(), t.getIdOrigen(),
+                t.getIdDestino(), t.getMonto(), t.getFechaHora());
+        if (movimientosCargados != null) {
+            movimientosCargados.add(m);
+            return;
+        }
+        if (seq == 0 || movimientos == null)
+            return;
+        try {
+            movimientos.anexar(m);
+        } catch (IOException e) {
+            System.err.println("Error escribiendo diario de movimientos: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Anexa al diario lo que la carga encontró por encima de su última secuencia, que tras una caída es la cola que
+     * el WAL tenía y el diario no llegó a escribir. Un diario nuevo se llena además con el historial existente, en
+     * orden de fecha, incluido el que guarda la instantánea.
+     */
+    private void completarMovimientos() throws IOException {
+        List<RegistroMovimientos.Movimiento> cargados = movimientosCargados;
+        movimientosCargados = null;
+        if (movimientos == null)
+            return;
+
+        if (movimientos.estaVacio()) {
+            List<RegistroMovimientos.Movimiento> anteriores = new ArrayList<>();
+            if (instantanea != null) {
+                for (String linea : instantanea.leerHistorial()) {
+                    String[] partes = linea.split("\\|");
+                    if (partes[0].equals("TRANSACCION") && "CONFIRMADA".equals(partes[6])) {
+                        anteriores.add(new RegistroMovimientos.Movimiento(0, Long.parseLong(partes[1]),
+                                Integer.parseInt(partes[2]), Integer.parseInt(partes[3]), importe(partes[4]),
+                                LocalDateTime.parse(partes[5], DATE_FORMATTER)));
+                    }
+                }
+            }
+            historial.paraCadaVolcada(t -> {
+                if ("CONFIRMADA".equals(t.getEstado())) {
+                    anteriores.add(new RegistroMovimientos.Movimiento(0, t.getId(), t.getIdOrigen(),
+                            t.getIdDestino(), t.getMonto(), t.getFechaHora()));
+                }
+            });
+            cargados.stream().filter(m -> m.secuencia() == 0).forEach(anteriores::add);
+            anteriores.sort(Comparator.comparing(RegistroMovimientos.Movimiento::fecha)
+                    .thenComparingLong(RegistroMovimientos.Movimiento::id));
+            for (RegistroMovimientos.Movimiento m : anteriores) {
+                movimientos.anexar(m);
+            }
+        }
+
+        cargados.sort(Comparator.comparingLong(RegistroMovimientos.Movimiento::secuencia));
+        for (RegistroMovimientos.Movimiento m : cargados) {
+            if (m.secuencia() > 0) {
+                movimientos.anexar(m);
+            }
+        }
+    }
+
+    private void sincronizarMovimientos() {
+        if (movimientos == null)
+            return;
+        try {
+            movimientos.sincronizar();
+        } catch (IOException e) {
+            System.err.println("Error sincronizando diario de movimientos: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Página de movimientos confirmados de la cuenta con fecha en [desde, hasta), del más reciente al más antiguo.
+     * Devuelve null si la cuenta no está en la partición.
+     */
+    public List<RegistroMovimientos.Movimiento> movimientos(int idCuenta, LocalDateTime desde, LocalDateTime hasta,
+            long hastaId, int limite) throws IOException {
+        if (movimientos == null || !cuentas.contiene(idCuenta))
+            return null;
+        return movimientos.consultar(idCuenta, desde, hasta, hastaId, limite);
+    }
+
+    public boolean diarioCompleto() {
+        return movimientos != null && movimientos.estaCompleto();
+    }
+
+    // El diario solo se completa con deltas: si la partición se reemplaza sin ellos le faltan movimientos.
+    private void marcarDiarioIncompleto() throws IOException {
+        if (movimientos != null) {
+            movimientos.marcarIncompleto();
+        }
+    }
+
+    public String resumenMovimientos() {
+        return movimientos != null ? movimientos.resumen() : "MOVIMIENTOS|no_disponible";
+    }
+
+    // Si el volcado falla, las transacciones siguen en memoria y en el archivo de datos.
+    private void volcarHistorial() {
+        try {
+            historial.volcar();
+        } catch (IOException e) {
+            System.err.println("Error volcando historial a segmentos: " + e.getMessage());
+        }
+    }
+
+    public Transaccion getTransaccion(long id) throws IOException {
+        return historial.buscar(id);
+    }
+
+    public String resumenHistorial() {
+        return historial.resumen();
+    }
+
+    public String resumenWal() {
+        return wal != null ? wal.resumen() : "WAL|no_disponible";
+    }
+
+    public long arqueoLocal() {
         lock.readLock().lock();
+        bloqueos.bloquearTodas();
         try {
-            return cuentas.values().stream().mapToDouble(Cuenta::getSaldo).sum();
+            return cuentas.sumaSaldos();
         } finally {
+            bloqueos.desbloquearTodas();
             lock.readLock().unlock();
         }
     }
 
-    public Cuenta getCuenta(int idCuenta) {
+    /**
+     * Corte de la partición para el arqueo global: secuencia, suma de saldos y las reservas 2PC aún sin resolver
+     * (txId:O|D:centavos), todo leído con las escrituras de la partición detenidas el tiempo de la suma. El servidor
+     * decide con sus decisiones de 2PC qué reservas cuentan ya como movidas.
+     */
+    public String corteArqueo(int particionId) {
         lock.readLock().lock();
+        bloqueos.bloquearTodas();
         try {
-            return cuentas.get(idCuenta);
+            StringBuilder sb = new StringBuilder("CORTE|").append(particionId)
+                    .append('|').append(secuencia)
+                    .append('|').append(cuentas.sumaSaldos())
+                    .append('|');
+            boolean primera = true;
+            for (Reserva reserva : preparadas.values()) {
+                sb.append(primera ? "" : ",").append(reserva.txId).append(':')
+                        .append(reserva.esOrigen ? 'O' : 'D').append(':').append(reserva.monto);
+                primera = false;
+            }
+            return sb.toString();
         } finally {
+            bloqueos.desbloquearTodas();
             lock.readLock().unlock();
         }
     }
 
-    public String obtenerDatosJson() {
+    /**
+     * Compara los totales mantenidos con una suma completa de la partición, con sus escrituras detenidas durante el
+     * recorrido, y los corrige si se han desviado. Devuelve la diferencia encontrada.
+     */
+    public long verificarTotales() {
         lock.readLock().lock();
+        bloqueos.bloquearTodas();
         try {
-            StringBuilder json = new StringBuilder("{\"cuentas\":{");
-            boolean first = true;
-            for (Map.Entry<Integer, Cuenta> entry : cuentas.entrySet()) {
-                if (!first)
-                    json.append(",");
-                Cuenta c = entry.getValue();
-                json.append(String.format("\"%d\":{\"id_cliente\":%d,\"saldo\":%.2f,\"tipo\":\"%s\"}",
-                        c.getId(), c.getIdCliente(), c.getSaldo(), c.getTipoCuenta()));
-                first = false;
-            }
-            json.append("}}");
-            return json.toString();
+            return cuentas.verificar();
         } finally {
+            bloqueos.desbloquearTodas();
             lock.readLock().unlock();
         }
     }
 
-    public boolean actualizarDesdeJson(String datos) {
+    public String resumenTotales(int particionId) {
+        return cuentas.resumenTotales(particionId);
+    }
+
+    public String resumenAlmacen() {
+        return cuentas.resumen();
+    }
+
+    public String resumenBloqueos() {
+        return bloqueos.resumen();
+    }
+
+    public boolean estaVacia() {
+        lock.readLock().lock();
         try {
-            lock.writeLock().lock();
-            cuentas.clear();
+            return cuentas.tamano() == 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-            String[] partes = datos.split("\\{\"cuentas\":\\{")[1].split("\\}\\}")[0].split(",");
-            for (String parte : partes) {
-                if (parte.trim().isEmpty())
-                    continue;
+    public Cuenta getCuenta(int idCuenta) {
+        lock.readLock().lock();
+        try {
+            return cuentas.obtener(idCuenta);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String obtenerDatosJson() {
+        lock.writeLock().lock();
+        try {
+            return datosJson();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public String obtenerSincronizacion() {
+        lock.writeLock().lock();
+        try {
+            return datosJson() + "|" + secuencia;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-                String[] keyValue = parte.split("\":");
-                int id = Integer.parseInt(keyValue[0].replace("\"", ""));
-                String value = keyValue[1];
+    private String datosJson() {
+        StringBuilder json = new StringBuilder(cuentas.tamano() * 64).append("{\"cuentas\":{");
+        cuentas.paraCada(c -> {
+            if (json.charAt(json.length() - 1) != '{')
+                json.append(",");
+            json.append('"').append(c.getId()).append("\":{\"id_cliente\":").append(c.getIdCliente())
+                    .append(",\"saldo\":");
+            Dinero.formatear(json, c.getSaldo())
+                    .append(",\"tipo\":\"").append(c.getTipoCuenta()).append("\"}");
+        });
+        json.append("}}");
+        return json.toString();
+    }
 
-                String[] campos = value.split(",");
-                int idCliente = Integer.parseInt(campos[0].split(":")[1]);
-                double saldo = Double.parseDouble(campos[1].split(":")[1]);
-                String tipo = campos[2].split(":")[1].replace("\"", "").replace("}", "");
+    private static List<Cuenta> parsearCuentasJson(String datos) {
+        List<Cuenta> resultado = new ArrayList<>();
+        Matcher m = CUENTA_JSON.matcher(datos);
+        while (m.find()) {
+            resultado.add(new Cuenta(
+                    Integer.parseInt(m.group(1)),
+                    Integer.parseInt(m.group(2)),
+                    Dinero.redondear(m.group(3)),
+                    m.group(4)));
+        }
+        return resultado;
+    }
+
+    public boolean actualizarDesdeJson(String datos) {
+        return actualizarDesdeJson(datos, -1);
+    }
 
-                cuentas.put(id, new Cuenta(id, idCliente, saldo, tipo));
+    public boolean actualizarDesdeJson(String datos, long nuevaSecuencia) {
+        try {
+            lock.writeLock().lock();
+            List<Cuenta> nuevas = parsearCuentasJson(datos);
+            if (nuevas.isEmpty() && !datos.startsWith("{\"cuentas\":{}")) {
+                throw new IllegalArgumentException("Formato de partición inválido");
+            }
+            cuentas.limpiar();
+            for (Cuenta cuenta : nuevas) {
+                cuentas.poner(cuenta.getId(), cuenta.getIdCliente(), cuenta.getSaldo(), cuenta.getTipoCuenta());
+            }
+            // Sin secuencia, o con otra que la local, los saldos nuevos no cuadran con los movimientos del diario.
+            if (nuevaSecuencia != secuencia) {
+                marcarDiarioIncompleto();
             }
+            if (nuevaSecuencia >= 0) {
+                secuencia = nuevaSecuencia;
+            }
+            deltasRetenidos.clear();
             guardarCambios();
             return true;
         } catch (Exception e) {
@@ -221,4 +1263,35 @@ public class Particion {
             lock.writeLock().unlock();
         }
     }
-}
\ No newline at end of file
+
+    private static class Reserva {
+        final String txId;
+        final int idOrigen;
+        final int idDestino;
+        final long monto;
+        final boolean esOrigen;
+        final LocalDateTime creada;
+        final String clave;
+
+        Reserva(String txId, int idOrigen, int idDestino, long monto, boolean esOrigen, LocalDateTime creada,
+                String clave) {
+            this.txId = txId;
+            this.idOrigen = idOrigen;
+            this.idDestino = idDestino;
+            this.monto = monto;
+            this.esOrigen = esOrigen;
+            this.creada = creada;
+            this.clave = clave;
+        }
+
+        int idLocal() {
+            return esOrigen ? idOrigen : idDestino;
+        }
+
+        String registro() {
+            return "PREPARADA|" + txId + "|" + idOrigen + "|" + idDestino + "|" + monto + "|"
+                    + (esOrigen ? "ORIGEN" : "DESTINO") + "|" + creada.format(DATE_FORMATTER)
+                    + (clave != null ? "|" + clave : "");
+        }
+    }
+}
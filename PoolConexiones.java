@@ -0,0 +1,313 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class PoolConexiones {
+    private static final int MAXIMO = Integer.getInteger("pool.maximo", 32);
+    private static final long ESPERA_PRESTAMO_MS = Long.getLong("pool.esperaMs", 2000);
+    private static final long INACTIVIDAD_MAXIMA_MS = Long.getLong("pool.inactividadMs", 60000);
+    private static final long VALIDAR_TRAS_MS = Long.getLong("pool.validarTrasMs", 5000);
+    private static final int TIMEOUT_VALIDACION_MS = 1000;
+    private static final boolean BINARIO = Boolean.parseBoolean(System.getProperty("protocolo.binario", "true"));
+    // Comandos sin efectos en el nodo: se pueden repetir aunque el nodo ya los hubiera recibido.
+    private static final Set<String> SOLO_LECTURA = Set.of("CONSULTAR", "CONSULTAR_VERSION", "CONSULTAR_LOTE",
+            "MOVIMIENTOS", "OBTENER_TRANSACCION", "OBTENER_PARTICION", "ARQUEO", "ARQUEO_PARTICION", "HEARTBEAT",
+            "METRICAS", "EXPORTAR", "DELTAS_DESDE", "ESTADO_MIGRACION");
+
+    private final String ip;
+    private final int puerto;
+    private volatile boolean soloTexto = !BINARIO;
+    private final BlockingDeque<Conexion> libres = new LinkedBlockingDeque<>();
+    private final AtomicInteger abiertas = new AtomicInteger(0);
+    private final AtomicLong prestamos = new AtomicLong(0);
+    private final AtomicLong aciertos = new AtomicLong(0);
+    private final AtomicLong creadas = new AtomicLong(0);
+    private final AtomicLong descartadas = new AtomicLong(0);
+    private final AtomicLong agotamientos = new AtomicLong(0);
+    private final AtomicLong esperaTotalNanos = new AtomicLong(0);
+    private final AtomicLong esperaMaximaNanos = new AtomicLong(0);
+
+    /** La solicitud no llegó a salir hacia el nodo: se puede mandar a otro sin riesgo de que se aplique dos veces. */
+    public static class NoEnviado extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NoEnviado(IOException causa) {
+            super(causa.getMessage(), causa);
+        }
+    }
+
+    public PoolConexiones(String ip, int puerto) {
+        this.ip = ip;
+        this.puerto = puerto;
+    }
+
+    public Conexion prestar(int timeoutMs) throws IOException, TimeoutException {
+        long inicio = System.nanoTime();
+        prestamos.incrementAndGet();
+        try {
+            Conexion conexion;
+            while ((conexion = libres.pollFirst()) != null) {
+                if (validar(conexion)) {
+                    aciertos.incrementAndGet();
+                    return conexion;
+                }
+                descartar(conexion);
+            }
+
+            if (reservarHueco()) {
+                try {
+                    return abrir(timeoutMs);
+                } catch (IOException e) {
+                    abiertas.decrementAndGet();
+                    throw e;
+                }
+            }
+
+            long espera = Math.min(ESPERA_PRESTAMO_MS, timeoutMs);
+            conexion = libres.pollFirst(espera, TimeUnit.MILLISECONDS);
+            if (conexion == null) {
+                agotamientos.incrementAndGet();
+                throw new TimeoutException("Pool agotado para " + ip + ":" + puerto);
+            }
+            if (validar(conexion)) {
+                aciertos.incrementAndGet();
+                return conexion;
+            }
+            descartar(conexion);
+            if (reservarHueco()) {
+                try {
+                    return abrir(timeoutMs);
+                } catch (IOException e) {
+                    abiertas.decrementAndGet();
+                    throw e;
+                }
+            }
+            agotamientos.incrementAndGet();
+            throw new TimeoutException("Pool agotado para " + ip + ":" + puerto);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("Interrumpido esperando conexión");
+        } finally {
+            long espera = System.nanoTime() - inicio;
+            esperaTotalNanos.addAndGet(espera);
+            esperaMaximaNanos.accumulateAndGet(espera, Math::max);
+        }
+    }
+
+    public String enviar(String mensaje, int timeoutMs) throws IOException, TimeoutException {
+        while (true) {
+            Conexion conexion;
+            try {
+                conexion = prestar(timeoutMs);
+            } catch (IOException e) {
+                throw new NoEnviado(e);
+            }
+            boolean reutilizada = conexion.reutilizada;
+            boolean enviado = false;
+            try {
+                conexion.socket.setSoTimeout(timeoutMs);
+                conexion.escribir(mensaje);
+                enviado = true;
+                String respuesta = conexion.leer();
+                devolver(conexion);
+                return respuesta;
+            } catch (SocketTimeoutException e) {
+                descartar(conexion);
+                throw e;
+            } catch (IOException e) {
+                descartar(conexion);
+                // Solo se reintenta en otra conexión si la caída es de una conexión vieja del pool y el mensaje no
+                // llegó a salir o es una lectura: una escritura ya enviada puede haberse aplicado en el nodo.
+                if (!enviado && !reutilizada) {
+                    throw new NoEnviado(e);
+                }
+                if (enviado && (!reutilizada || !soloLectura(mensaje))) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean soloLectura(String mensaje) {
+        int fin = mensaje.indexOf('|');
+        return SOLO_LECTURA.contains(fin < 0 ? mensaje : mensaje.substring(0, fin));
+    }
+
+    public void devolver(Conexion conexion) {
+        conexion.ultimoUso = System.currentTimeMillis();
+        conexion.reutilizada = true;
+        libres.offerFirst(conexion);
+    }
+
+    public void descartar(Conexion conexion) {
+        descartadas.incrementAndGet();
+        abiertas.decrementAndGet();
+        conexion.cerrar();
+    }
+
+    public void desalojarInactivas() {
+        long limite = System.currentTimeMillis() - INACTIVIDAD_MAXIMA_MS;
+        for (Conexion conexion : libres) {
+            if (conexion.ultimoUso < limite && libres.remove(conexion)) {
+                descartar(conexion);
+            }
+        }
+    }
+
+    public void cerrar() {
+        Conexion conexion;
+        while ((conexion = libres.pollFirst()) != null) {
+            descartar(conexion);
+        }
+    }
+
+    public String resumen() {
+        long total = prestamos.get();
+        double tasaAciertos = total == 0 ? 0.0 : aciertos.get() * 100.0 / total;
+        double esperaMedia = total == 0 ? 0.0 : esperaTotalNanos.get() / 1e6 / total;
+        return String.format("POOL|%s:%d|%s|abiertas=%d|libres=%d|prestamos=%d|aciertos=%.1f%%|creadas=%d|descartadas=%d"
+                + "|agotamientos=%d|esperaMedia=%.3fms|esperaMax=%.3fms",
+                ip, puerto, soloTexto ? "texto" : "binario", abiertas.get(), libres.size(), total, tasaAciertos, creadas.get(), descartadas.get(),
+                agotamientos.get(), esperaMedia, esperaMaximaNanos.get() / 1e6);
+    }
+
+    private boolean reservarHueco() {
+        int actuales;
+        do {
+            actuales = abiertas.get();
+            if (actuales >= MAXIMO)
+                return false;
+        } while (!abiertas.compareAndSet(actuales, actuales + 1));
+        return true;
+    }
+
+    private Conexion abrir(int timeoutMs) throws IOException {
+        Socket socket = conectar(timeoutMs);
+        if (soloTexto) {
+            creadas.incrementAndGet();
+            return new Conexion(socket, false);
+        }
+
+        boolean binario;
+        try {
+            binario = negociarBinario(socket, timeoutMs);
+        } catch (IOException e) {
+            // Sin respuesta al saludo no se sabe qué protocolo habla el nodo: se pierde esta conexión, no el binario.
+            System.err.println("Error negociando protocolo con " + ip + ":" + puerto + ": " + e.getMessage());
+            socket.close();
+            throw e;
+        }
+        if (!binario) {
+            // El nodo contestó al saludo sin aceptarlo (el nodo Python responde ERROR|COMANDO_INVALIDO).
+            soloTexto = true;
+            socket.close();
+            socket = conectar(timeoutMs);
+        }
+        creadas.incrementAndGet();
+        return new Conexion(socket, binario);
+    }
+
+    private Socket conectar(int timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(ip, puerto), timeoutMs);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private static boolean negociarBinario(Socket socket, int timeoutMs) throws IOException {
+        socket.setSoTimeout(timeoutMs);
+        OutputStream out = socket.getOutputStream();
+        out.write((ProtocoloBinario.SALUDO + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        InputStream in = socket.getInputStream();
+        StringBuilder respuesta = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Conexión cerrada durante el saludo");
+            }
+            respuesta.append((char) c);
+        }
+        return ProtocoloBinario.SALUDO_OK.equals(respuesta.toString().trim());
+    }
+
+    private boolean validar(Conexion conexion) {
+        if (conexion.socket.isClosed())
+            return false;
+        if (System.currentTimeMillis() - conexion.ultimoUso < VALIDAR_TRAS_MS)
+            return true;
+        try {
+            conexion.socket.setSoTimeout(TIMEOUT_VALIDACION_MS);
+            return "OK".equals(conexion.intercambiar("HEARTBEAT"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static class Conexion {
+        final Socket socket;
+        final boolean binario;
+        private BufferedReader in;
+        private PrintWriter out;
+        private DataInputStream entradaBinaria;
+        private DataOutputStream salidaBinaria;
+        volatile long ultimoUso = System.currentTimeMillis();
+        volatile boolean reutilizada;
+
+        Conexion(Socket socket, boolean binario) throws IOException {
+            this.socket = socket;
+            this.binario = binario;
+            if (binario) {
+                this.entradaBinaria = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.salidaBinaria = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } else {
+                this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                this.out = new PrintWriter(socket.getOutputStream(), true);
+            }
+        }
+
+        String intercambiar(String mensaje) throws IOException {
+            escribir(mensaje);
+            return leer();
+        }
+
+        void escribir(String mensaje) throws IOException {
+            if (binario) {
+                ProtocoloBinario.escribirSolicitud(salidaBinaria, mensaje);
+                return;
+            }
+            out.println(mensaje);
+            if (out.checkError()) {
+                throw new IOException("No se pudo enviar a " + socket.getRemoteSocketAddress());
+            }
+        }
+
+        String leer() throws IOException {
+            if (binario) {
+                return ProtocoloBinario.leerRespuesta(entradaBinaria);
+            }
+            String respuesta = in.readLine();
+            if (respuesta == null) {
+                throw new EOFException();
+            }
+            return respuesta;
+        }
+
+        void cerrar() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
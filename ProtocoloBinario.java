@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class ProtocoloBinario {
+    public static final String SALUDO = "BINARIO|1";
+    public static final String SALUDO_OK = "BINARIO_OK";
+
+    public static final byte CONSULTAR = 0x01;
+    public static final byte TRANSFERIR = 0x02;
+    public static final byte ARQUEO = 0x03;
+    public static final byte DELTA = 0x04;
+    public static final byte TEXTO = 0x0F;
+
+    public static final byte R_SALDO = (byte) 0x81;
+    public static final byte R_OK = (byte) 0x82;
+    public static final byte R_ERROR = (byte) 0x83;
+    public static final byte R_ARQUEO = (byte) 0x84;
+    public static final byte R_ACK = (byte) 0x85;
+    public static final byte R_NACK = (byte) 0x86;
+    public static final byte R_TEXTO = (byte) 0x8F;
+
+    private static final int MAXIMO_TRAMA = 64 * 1024 * 1024;
+
+    private ProtocoloBinario() {
+    }
+
+    public static class Solicitud {
+        public byte opcode;
+        public int cuenta;
+        public int destino;
+        public long monto;
+        public NivelConsistencia nivel = NivelConsistencia.ONE;
+        public int particion;
+        public final List<String> deltas = new ArrayList<>();
+        public String texto;
+    }
+
+    public static void escribirSolicitud(DataOutputStream out, String mensaje) throws IOException {
+        if (mensaje.startsWith("CONSULTAR|") && contar(mensaje, '|') == 1) {
+            out.writeInt(5);
+            out.writeByte(CONSULTAR);
+            out.writeInt(Integer.parseInt(mensaje, 10, mensaje.length(), 10));
+        } else if (mensaje.startsWith("TRANSFERIR|") && transferenciaSinClave(mensaje)) {
+            // TRANSFERIR|origen|destino|monto[||nivel]: el nivel, si va, ocupa un byte al final de la trama.
+            int a = mensaje.indexOf('|', 11);
+            int b = mensaje.indexOf('|', a + 1);
+            int c = mensaje.indexOf('|', b + 1);
+            out.writeInt(c < 0 ? 17 : 18);
+            out.writeByte(TRANSFERIR);
+            out.writeInt(Integer.parseInt(mensaje, 11, a, 10));
+            out.writeInt(Integer.parseInt(mensaje, a + 1, b, 10));
+            out.writeLong(Dinero.parsear(mensaje, b + 1, c < 0 ? mensaje.length() : c));
+            if (c >= 0) {
+                out.writeByte(NivelConsistencia.valueOf(mensaje.substring(c + 2)).ordinal());
+            }
+        } else if (mensaje.equals("ARQUEO")) {
+            out.writeInt(1);
+            out.writeByte(ARQUEO);
+        } else if (mensaje.startsWith("DELTA|")) {
+            escribirDeltas(out, mensaje);
+        } else {
+            byte[] bytes = mensaje.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(1 + bytes.length);
+            out.writeByte(TEXTO);
+            out.write(bytes);
+        }
+        out.flush();
+    }
+
+    private static void escribirDeltas(DataOutputStream out, String mensaje) throws IOException {
+        int inicio = mensaje.indexOf('|', 6);
+        int particion = Integer.parseInt(mensaje, 6, inicio < 0 ? mensaje.length() : inicio, 10);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream cuerpo = new DataOutputStream(buffer);
+        int cantidad = 0;
+        int desde = inicio < 0 ? mensaje.length() : inicio + 1;
+        while (desde < mensaje.length()) {
+            int fin = mensaje.indexOf(';', desde);
+            if (fin < 0)
+                fin = mensaje.length();
+            if (fin > desde) {
+                cuerpo.writeUTF(mensaje.substring(desde, fin));
+                cantidad++;
+            }
+            desde = fin + 1;
+        }
+
+        out.writeInt(9 + buffer.size());
+        out.writeByte(DELTA);
+        out.writeInt(particion);
+        out.writeInt(cantidad);
+        buffer.writeTo(out);
+    }
+
+    public static boolean leerSolicitud(DataInputStream in, Solicitud solicitud) throws IOException {
+        int largo;
+        try {
+            largo = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (largo < 1 || largo > MAXIMO_TRAMA) {
+            throw new IOException("Trama inválida: " + largo);
+        }
+
+        solicitud.opcode = in.readByte();
+        switch (solicitud.opcode) {
+            case CONSULTAR -> solicitud.cuenta = in.readInt();
+            case TRANSFERIR -> {
+                solicitud.cuenta = in.readInt();
+                solicitud.destino = in.readInt();
+                solicitud.monto = in.readLong();
+                solicitud.nivel = largo > 17 ? NivelConsistencia.values()[in.readByte()] : NivelConsistencia.ONE;
+            }
+            case ARQUEO -> {
+            }
+            case DELTA -> {
+                solicitud.particion = in.readInt();
+                int cantidad = in.readInt();
+                solicitud.deltas.clear();
+                for (int i = 0; i < cantidad; i++) {
+                    solicitud.deltas.add(in.readUTF());
+                }
+            }
+            default -> solicitud.texto = leerCadena(in, largo - 1);
+        }
+        return true;
+    }
+
+    public static void escribirSaldo(DataOutputStream out, long saldo) throws IOException {
+        out.writeInt(9);
+        out.writeByte(R_SALDO);
+        out.writeLong(saldo);
+    }
+
+    public static void escribirArqueo(DataOutputStream out, long total) throws IOException {
+        out.writeInt(9);
+        out.writeByte(R_ARQUEO);
+        out.writeLong(total);
+    }
+
+    public static void escribirConfirmacion(DataOutputStream out, boolean ack, int particion, long secuencia)
+            throws IOException {
+        out.writeInt(13);
+        out.writeByte(ack ? R_ACK : R_NACK);
+        out.writeInt(particion);
+        out.writeLong(secuencia);
+    }
+
+    public static void escribirRespuesta(DataOutputStream out, String respuesta) throws IOException {
+        if ("OK".equals(respuesta)) {
+            out.writeInt(1);
+            out.writeByte(R_OK);
+            return;
+        }
+        boolean error = respuesta.startsWith("ERROR|");
+        byte[] bytes = (error ? respuesta.substring(6) : respuesta).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(1 + bytes.length);
+        out.writeByte(error ? R_ERROR : R_TEXTO);
+        out.write(bytes);
+    }
+
+    public static String leerRespuesta(DataInputStream in) throws IOException {
+        int largo = in.readInt();
+        if (largo < 1 || largo > MAXIMO_TRAMA) {
+            throw new IOException("Trama inválida: " + largo);
+        }
+        byte opcode = in.readByte();
+        return switch (opcode) {
+            case R_SALDO -> Dinero.formatear(new StringBuilder(24).append("SALDO|"), in.readLong()).toString();
+            case R_OK -> "OK";
+            case R_ERROR -> "ERROR|" + leerCadena(in, largo - 1);
+            case R_ARQUEO -> Dinero.formatear(new StringBuilder(24).append("ARQUEO|"), in.readLong()).toString();
+            case R_ACK -> "ACK|" + in.readInt() + "|" + in.readLong();
+            case R_NACK -> "NACK|" + in.readInt() + "|" + in.readLong();
+            default -> leerCadena(in, largo - 1);
+        };
+    }
+
+    private static String leerCadena(DataInputStream in, int largo) throws IOException {
+        byte[] bytes = new byte[largo];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Con clave de idempotencia la transferencia va como texto; sin ella cabe en la trama fija, con o sin nivel.
+    private static boolean transferenciaSinClave(String mensaje) {
+        int separadores = contar(mensaje, '|');
+        if (separadores == 3)
+            return true;
+        if (separadores != 5)
+            return false;
+        String[] campos = mensaje.split("\\|", -1);
+        return campos[4].isEmpty() && NivelConsistencia.parsear(campos[5], null) != null;
+    }
+
+    private static int contar(String texto, char caracter) {
+        int total = 0;
+        for (int i = 0; i < texto.length(); i++) {
+            if (texto.charAt(i) == caracter)
+                total++;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RegistroEscritura implements AutoCloseable {
+    public enum PoliticaFsync {
+        SIEMPRE, GRUPO, NUNCA
+    }
+
+    private static final PoliticaFsync POLITICA = PoliticaFsync
+            .valueOf(System.getProperty("wal.fsync", PoliticaFsync.GRUPO.name()));
+
+    private final Path archivo;
+    private FileChannel canal;
+    private final Object monitorSync = new Object();
+    private long posicionEscrita;
+    private volatile long posicionDurable;
+    private int registros;
+    private long fsyncs;
+    private long registrosTotales;
+
+    public RegistroEscritura(Path archivo) throws IOException {
+        this.archivo = archivo;
+        this.canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    public synchronized List<String> leerRegistros() throws IOException {
+        List<String> lineas = new ArrayList<>();
+        byte[] contenido = Files.readAllBytes(archivo);
+        int inicio = 0;
+        for (int i = 0; i < contenido.length; i++) {
+            if (contenido[i] == '\n') {
+                lineas.add(new String(contenido, inicio, i - inicio, StandardCharsets.UTF_8));
+                inicio = i + 1;
+            }
+        }
+        if (inicio < contenido.length) {
+            System.err.println("Descartando registro incompleto al final de " + archivo);
+            canal.truncate(inicio);
+        }
+        posicionEscrita = inicio;
+        posicionDurable = inicio;
+        registros = lineas.size();
+        canal.position(posicionEscrita);
+        return lineas;
+    }
+
+    public synchronized long anexar(String registro) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((registro + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            posicionEscrita += canal.write(buffer);
+        }
+        registros++;
+        registrosTotales++;
+        if (POLITICA == PoliticaFsync.SIEMPRE) {
+            canal.force(false);
+            fsyncs++;
+            posicionDurable = posicionEscrita;
+        }
+        return posicionEscrita;
+    }
+
+    public void sincronizar() throws IOException {
+        long posicion;
+        synchronized (this) {
+            posicion = posicionEscrita;
+        }
+        sincronizar(posicion);
+    }
+
+    public void sincronizar(long posicion) throws IOException {
+        if (POLITICA != PoliticaFsync.GRUPO || posicionDurable >= posicion) {
+            return;
+        }
+        synchronized (monitorSync) {
+            if (posicionDurable >= posicion) {
+                return;
+            }
+            long objetivo;
+            synchronized (this) {
+                objetivo = posicionEscrita;
+            }
+            canal.force(false);
+            synchronized (this) {
+                fsyncs++;
+            }
+            posicionDurable = objetivo;
+        }
+    }
+
+    public synchronized void reiniciar() throws IOException {
+        canal.truncate(0);
+        canal.position(0);
+        canal.force(true);
+        posicionEscrita = 0;
+        posicionDurable = 0;
+        registros = 0;
+    }
+
+    /**
+     * Sustituye el contenido por {@code registros} sin truncar en sitio la única copia durable: los escribe en un
+     * temporal, lo fuerza, lo renombra encima y sincroniza el directorio antes de reabrir el canal.
+     */
+    public void reemplazar(List<String> nuevos) throws IOException {
+        synchronized (monitorSync) {
+            synchronized (this) {
+                Path temporal = archivo.resolveSibling(archivo.getFileName() + ".tmp");
+                long longitud = 0;
+                try (FileChannel salida = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (String registro : nuevos) {
+                        ByteBuffer buffer = ByteBuffer.wrap((registro + "\n").getBytes(StandardCharsets.UTF_8));
+                        while (buffer.hasRemaining()) {
+                            longitud += salida.write(buffer);
+                        }
+                    }
+                    salida.force(true);
+                }
+                canal.close();
+                Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                sincronizarDirectorio(archivo);
+                canal = FileChannel.open(archivo, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                canal.position(longitud);
+                posicionEscrita = longitud;
+                posicionDurable = longitud;
+                registros = nuevos.size();
+                fsyncs++;
+            }
+        }
+    }
+
+    /** Fuerza la entrada de directorio de {@code archivo}, para que un renombrado sobreviva a un corte de luz. */
+    public static void sincronizarDirectorio(Path archivo) throws IOException {
+        Path directorio = archivo.toAbsolutePath().getParent();
+        try (FileChannel canalDirectorio = FileChannel.open(directorio, StandardOpenOption.READ)) {
+            canalDirectorio.force(true);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        canal.close();
+    }
+
+    public synchronized int getRegistros() {
+        return registros;
+    }
+
+    public synchronized String resumen() {
+        return String.format("WAL|%s|politica=%s|pendientes=%d|registros=%d|fsyncs=%d",
+                archivo.getFileName(), POLITICA, registros, registrosTotales, fsyncs);
+    }
+}
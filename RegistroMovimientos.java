@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Diario de movimientos confirmados de una partición: un archivo de solo anexado con registros de tamaño fijo y, en
+ * memoria, la lista de números de registro de cada cuenta. Los registros se anexan en orden de secuencia, así que la
+ * lista de una cuenta está ordenada en el tiempo y una página de extracto se encuentra con una búsqueda binaria por
+ * fecha seguida de la lectura de los registros de la página. El diario se deriva del WAL: no se sincroniza en cada
+ * anexado y al arrancar se completa con lo que el WAL tenga por encima de su última secuencia. Si la partición se
+ * reemplaza sin pasar por sus deltas (importación o sincronización entera), al diario le faltan movimientos: queda
+ * marcado como incompleto con un archivo junto a él y no sirve extractos.
+ */
+public class RegistroMovimientos implements AutoCloseable {
+    static final int BYTES_POR_REGISTRO = 40;
+    private static final ByteOrder ORDEN = ByteOrder.LITTLE_ENDIAN;
+
+    private final Path archivo;
+    private final Path marcaIncompleto;
+    private final FileChannel canal;
+    private final Map<Integer, Posiciones> porCuenta = new HashMap<>();
+    private final ByteBuffer escritura = ByteBuffer.allocate(BYTES_POR_REGISTRO).order(ORDEN);
+    private int registros;
+    private long ultimaSecuencia;
+    private volatile boolean completo;
+
+    public record Movimiento(long secuencia, long id, int idOrigen, int idDestino, long monto, LocalDateTime fecha) {
+    }
+
+    private static final class Posiciones {
+        int[] datos = new int[4];
+        int tamano;
+
+        void agregar(int registro) {
+            if (tamano == datos.length) {
+                int[] mayor = new int[tamano * 2];
+                System.arraycopy(datos, 0, mayor, 0, tamano);
+                datos = mayor;
+            }
+            datos[tamano++] = registro;
+        }
+    }
+
+    public RegistroMovimientos(Path archivo) throws IOException {
+        this.archivo = archivo;
+        this.marcaIncompleto = archivo.resolveSibling(archivo.getFileName() + ".incompleto");
+        this.completo = !Files.exists(marcaIncompleto);
+        this.canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Un registro a medias tras una caída se descarta; el WAL lo vuelve a aportar.
+        long completos = canal.size() / BYTES_POR_REGISTRO;
+        canal.truncate(completos * BYTES_POR_REGISTRO);
+
+        ByteBuffer lectura = ByteBuffer.allocate(BYTES_POR_REGISTRO * 1024).order(ORDEN);
+        long posicion = 0;
+        while (registros < completos) {
+            lectura.clear();
+            leerCompleto(lectura, posicion, (int) Math.min(lectura.capacity(),
+                    (completos - registros) * BYTES_POR_REGISTRO));
+            lectura.flip();
+            while (lectura.remaining() >= BYTES_POR_REGISTRO) {
+                Movimiento m = leer(lectura);
+                indexar(m, registros++);
+                ultimaSecuencia = Math.max(ultimaSecuencia, m.secuencia());
+            }
+            posicion = (long) registros * BYTES_POR_REGISTRO;
+        }
+    }
+
+    public synchronized long getUltimaSecuencia() {
+        return ultimaSecuencia;
+    }
+
+    public synchronized boolean estaVacio() {
+        return registros == 0;
+    }
+
+    public boolean estaCompleto() {
+        return completo;
+    }
+
+    public synchronized void marcarIncompleto() throws IOException {
+        if (completo) {
+            Files.write(marcaIncompleto, new byte[0]);
+            completo = false;
+        }
+    }
+
+    /**
+     * Anexa un movimiento si su secuencia es posterior a la última del diario. Los movimientos sin secuencia (0),
+     * de historiales anteriores al diario, solo se aceptan mientras este sigue vacío de movimientos con secuencia.
+     */
+    public synchronized boolean anexar(Movimiento m) throws IOException {
+        if (m.secuencia() > 0 ? m.secuencia() <= ultimaSecuencia : ultimaSecuencia > 0)
+            return false;
+        escritura.clear();
+        escritura.putLong(micros(m.fecha()))
+                .putLong(m.secuencia())
+                .putInt((int) m.id())
+                .putInt(m.idOrigen())
+                .putInt(m.idDestino())
+                .putInt((int) (m.id() >>> 32))
+                .putLong(m.monto());
+        escritura.flip();
+        long posicion = (long) registros * BYTES_POR_REGISTRO;
+        while (escritura.hasRemaining()) {
+            posicion += canal.write(escritura, posicion);
+        }
+        indexar(m, registros++);
+        ultimaSecuencia = Math.max(ultimaSecuencia, m.secuencia());
+        return true;
+    }
+
+    /**
+     * Movimientos de la cuenta desde {@code desde} y anteriores a ({@code hasta}, {@code hastaId}), del más reciente
+     * al más antiguo por fecha e id y como mucho {@code limite}. Cualquiera de las fechas puede ser null; con
+     * hastaId Long.MIN_VALUE se excluye todo lo de la fecha hasta, y con el id del último movimiento de una página se
+     * obtiene la siguiente sin perder los que comparten fecha con él.
+     */
+    public List<Movimiento> consultar(int idCuenta, LocalDateTime desde, LocalDateTime hasta, long hastaId,
+            int limite) throws IOException {
+        int[] datos;
+        int tamano;
+        synchronized (this) {
+            Posiciones posiciones = porCuenta.get(idCuenta);
+            if (posiciones == null)
+                return List.of();
+            // Las posiciones publicadas ya están escritas y el arreglo solo crece por copia: se puede leer fuera.
+            datos = posiciones.datos;
+            tamano = posiciones.tamano;
+        }
+
+        int fin = tamano;
+        long hastaMicros = hasta != null ? micros(hasta) : Long.MAX_VALUE;
+        if (hasta != null) {
+            int bajo = 0;
+            int alto = tamano;
+            while (bajo < alto) {
+                int medio = (bajo + alto) >>> 1;
+                if (leerMicros(datos[medio]) <= hastaMicros) {
+                    bajo = medio + 1;
+                } else {
+                    alto = medio;
+                }
+            }
+            fin = bajo;
+        }
+
+        // Los movimientos con la misma fecha se juntan antes de pasarlos a la página, para ordenarlos por id y que
+        // el corte de la página caiga siempre en el mismo sitio en cualquier réplica.
+        long desdeMicros = desde != null ? micros(desde) : Long.MIN_VALUE;
+        List<Movimiento> pagina = new ArrayList<>(Math.min(limite, fin));
+        List<Movimiento> empatados = new ArrayList<>();
+        ByteBuffer lectura = ByteBuffer.allocate(BYTES_POR_REGISTRO).order(ORDEN);
+        for (int i = fin - 1; i >= 0 && pagina.size() < limite; i--) {
+            lectura.clear();
+            leerCompleto(lectura, (long) datos[i] * BYTES_POR_REGISTRO, BYTES_POR_REGISTRO);
+            lectura.flip();
+            Movimiento m = leer(lectura);
+            long fecha = micros(m.fecha());
+            if (fecha < desdeMicros)
+                break;
+            if (!empatados.isEmpty() && micros(empatados.get(0).fecha()) != fecha) {
+                pasarEmpatados(empatados, pagina, limite);
+            }
+            if (fecha == hastaMicros && m.id() >= hastaId)
+                continue;
+            empatados.add(m);
+        }
+        pasarEmpatados(empatados, pagina, limite);
+        return pagina;
+    }
+
+    private static void pasarEmpatados(List<Movimiento> empatados, List<Movimiento> pagina, int limite) {
+        empatados.sort((a, b) -> Long.compare(b.id(), a.id()));
+        for (Movimiento m : empatados) {
+            if (pagina.size() == limite)
+                break;
+            pagina.add(m);
+        }
+        empatados.clear();
+    }
+
+    public void sincronizar() throws IOException {
+        canal.force(false);
+    }
+
+    public synchronized void reiniciar() throws IOException {
+        canal.truncate(0);
+        canal.force(true);
+        porCuenta.clear();
+        registros = 0;
+        ultimaSecuencia = 0;
+    }
+
+    public synchronized String resumen() {
+        return String.format("MOVIMIENTOS|archivo=%s|registros=%d|cuentas=%d|ultimaSecuencia=%d|completo=%b",
+                archivo.getFileName(), registros, porCuenta.size(), ultimaSecuencia, completo);
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+
+    private void indexar(Movimiento m, int registro) {
+        porCuenta.computeIfAbsent(m.idOrigen(), c -> new Posiciones()).agregar(registro);
+        if (m.idDestino() != m.idOrigen()) {
+            porCuenta.computeIfAbsent(m.idDestino(), c -> new Posiciones()).agregar(registro);
+        }
+    }
+
+    private long leerMicros(int registro) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).order(ORDEN);
+        leerCompleto(buffer, (long) registro * BYTES_POR_REGISTRO, Long.BYTES);
+        return buffer.getLong(0);
+    }
+
+    private void leerCompleto(ByteBuffer buffer, long posicion, int bytes) throws IOException {
+        buffer.limit(buffer.position() + bytes);
+        while (buffer.hasRemaining()) {
+            if (canal.read(buffer, posicion + buffer.position()) < 0) {
+                throw new IOException("Diario de movimientos truncado: " + archivo);
+            }
+        }
+    }
+
+    private static Movimiento leer(ByteBuffer buffer) {
+        long micros = buffer.getLong();
+        long secuencia = buffer.getLong();
+        long idBajo = buffer.getInt() & 0xFFFFFFFFL;
+        int origen = buffer.getInt();
+        int destino = buffer.getInt();
+        long id = (long) buffer.getInt() << 32 | idBajo;
+        long monto = buffer.getLong();
+        return new Movimiento(secuencia, id, origen, destino, monto, fecha(micros));
+    }
+
+    private static long micros(LocalDateTime fecha) {
+        return fecha.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + fecha.getNano() / 1000;
+    }
+
+    private static LocalDateTime fecha(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+                Math.floorMod(micros, 1_000_000) * 1000, ZoneOffset.UTC);
+    }
+}
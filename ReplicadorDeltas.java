@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplicadorDeltas {
+    private static final long MAXIMO_RETRASO = Long.getLong("deltas.maximoRetraso", 5000);
+    private static final int TIMEOUT_MS = Integer.getInteger("deltas.timeoutMs", 2000);
+    private static final int TIMEOUT_INSTANTANEA_MS = 10000;
+    private static final int MAXIMO_INTENTOS = 3;
+
+    private final Map<String, PoolConexiones> pools = new ConcurrentHashMap<>();
+    private final Map<String, Long> confirmadas = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Long>> envios = new ConcurrentHashMap<>();
+    private final ExecutorService ejecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicLong lotes = new AtomicLong(0);
+    private final AtomicLong deltasEnviados = new AtomicLong(0);
+    private final AtomicLong instantaneas = new AtomicLong(0);
+    private final AtomicLong nacks = new AtomicLong(0);
+    private final AtomicLong conflictos = new AtomicLong(0);
+    private final AtomicLong errores = new AtomicLong(0);
+
+    public boolean replicar(int particionId, Particion particion, String ip, int puerto) {
+        return enviar(particionId, particion, ip, puerto) >= particion.getSecuencia();
+    }
+
+    /**
+     * Replica en segundo plano y devuelve la secuencia que la réplica confirma, o -1 si falla. Los envíos a una misma
+     * réplica de una partición se encadenan, así que cada uno manda lo que los anteriores no llegaron a mandar y,
+     * si ya no queda nada, termina sin salir del nodo.
+     */
+    public CompletableFuture<Long> replicarAsincrono(int particionId, Particion particion, String ip, int puerto) {
+        return envios.compute(particionId + "@" + ip + ":" + puerto, (clave, anterior) -> {
+            CompletableFuture<Long> previo = anterior != null ? anterior : CompletableFuture.completedFuture(0L);
+            return previo.handleAsync((seq, error) -> enviar(particionId, particion, ip, puerto), ejecutor);
+        });
+    }
+
+    private long enviar(int particionId, Particion particion, String ip, int puerto) {
+        String destino = ip + ":" + puerto;
+        String clave = particionId + "@" + destino;
+        PoolConexiones pool = pools.computeIfAbsent(destino, k -> new PoolConexiones(ip, puerto));
+        try {
+            Long confirmada = confirmadas.get(clave);
+            if (confirmada == null) {
+                confirmada = leerSecuencia(pool.enviar("DELTA|" + particionId + "|", TIMEOUT_MS));
+            }
+
+            for (int intento = 0; intento < MAXIMO_INTENTOS; intento++) {
+                long actual = particion.getSecuencia();
+                // Una réplica por delante del primario tiene escrituras de otro primario: se le manda la partición.
+                if (confirmada > actual) {
+                    conflictos.incrementAndGet();
+                    confirmada = enviarInstantanea(pool, particionId, particion);
+                    continue;
+                }
+                if (confirmada == actual)
+                    break;
+
+                // El lote empieza en la última secuencia confirmada para que la réplica compruebe que es la misma
+                // transacción que la nuestra y no una que le dio otro primario con ese número.
+                List<String> pendientes = actual - confirmada > MAXIMO_RETRASO
+                        ? null
+                        : particion.deltasDesde(Math.max(confirmada, 1));
+                if (pendientes == null) {
+                    confirmada = enviarInstantanea(pool, particionId, particion);
+                    continue;
+                }
+
+                String respuesta = pool.enviar("DELTA|" + particionId + "|" + String.join(";", pendientes),
+                        TIMEOUT_MS);
+                lotes.incrementAndGet();
+                deltasEnviados.addAndGet(pendientes.size());
+                if (respuesta.startsWith("NACK|")) {
+                    nacks.incrementAndGet();
+                }
+                if ("ERROR|SECUENCIA_EN_CONFLICTO".equals(respuesta)) {
+                    conflictos.incrementAndGet();
+                    confirmada = enviarInstantanea(pool, particionId, particion);
+                    continue;
+                }
+                confirmada = leerSecuencia(respuesta);
+            }
+
+            confirmadas.put(clave, confirmada);
+            return confirmada;
+        } catch (IOException | TimeoutException e) {
+            confirmadas.remove(clave);
+            errores.incrementAndGet();
+            System.err.println("Error replicando partición " + particionId + " en " + destino + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    public void olvidar(int particionId, String destino) {
+        confirmadas.remove(particionId + "@" + destino);
+    }
+
+    private long enviarInstantanea(PoolConexiones pool, int particionId, Particion particion)
+            throws IOException, TimeoutException {
+        String sincronizacion = particion.obtenerSincronizacion();
+        String respuesta = pool.enviar("SINCRONIZAR|" + particionId + "|" + sincronizacion, TIMEOUT_INSTANTANEA_MS);
+        if (!"OK".equals(respuesta)) {
+            throw new IOException("Sincronización rechazada: " + respuesta);
+        }
+        instantaneas.incrementAndGet();
+        return Long.parseLong(sincronizacion.substring(sincronizacion.lastIndexOf('|') + 1));
+    }
+
+    private static long leerSecuencia(String respuesta) {
+        if (respuesta.startsWith("ACK|") || respuesta.startsWith("NACK|")) {
+            return Long.parseLong(respuesta.substring(respuesta.lastIndexOf('|') + 1));
+        }
+        return -1;
+    }
+
+    public String resumen() {
+        return String.format("REPLICACION|lotes=%d|deltas=%d|instantaneas=%d|nacks=%d|conflictos=%d|errores=%d",
+                lotes.get(), deltasEnviados.get(), instantaneas.get(), nacks.get(), conflictos.get(),
+                errores.get());
+    }
+}
@@ -1,8 +1,11 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -11,11 +14,29 @@ public class ServidorCentral {
     private final int port;
     private volatile boolean running;
     private final Map<Integer, NodoHandler> nodos = new ConcurrentHashMap<>();
-    private final Map<String, List<Integer>> replicas = new ConcurrentHashMap<>();
+    private volatile AnilloHash anillo = AnilloHash.vacio();
+    private final Map<Integer, PrintWriter> canalesNodos = new ConcurrentHashMap<>();
     private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
     private final ScheduledExecutorService heartbeatScheduler = Executors.newScheduledThreadPool(1);
     private final LoadBalancer loadBalancer = new LoadBalancer();
+    private final CacheSaldos cacheSaldos = new CacheSaldos();
+    private final LatenciasConsistencia latencias = new LatenciasConsistencia();
+    private volatile String ultimoArqueo = "ARQUEO|sin_datos";
     private final Map<Integer, Long> ultimoHeartbeat = new ConcurrentHashMap<>();
+    private final Coordinador2PC coordinador = new Coordinador2PC();
+    private final Rebalanceo rebalanceo = new Rebalanceo();
+    private static final int INACTIVIDAD_CLIENTE_MS = Integer.getInteger("cliente.inactividadMs", 30000);
+    private static final int MAXIMO_SOLICITUDES = Integer.getInteger("cliente.maximoSolicitudes", 10000);
+    private static final int MAXIMO_EN_VUELO = Integer.getInteger("cliente.maximoEnVuelo", 32);
+    private static final int MAXIMO_LOTE = Integer.getInteger("lote.maximo", 10000);
+    private static final int PARALELISMO_2PC = Integer.getInteger("lote.paralelismo2PC", 16);
+    private static final int LIMITE_MOVIMIENTOS = Integer.getInteger("movimientos.limiteMaximo", 1000);
+    private static final int LIMITE_MOVIMIENTOS_DEFECTO = Integer.getInteger("movimientos.limiteDefecto", 50);
+    private static final long ESPERA_TRASPASO_MS = Long.getLong("migracion.esperaTraspasoMs", 5000);
+    private static final NivelConsistencia ESCRITURA_DEFECTO = NivelConsistencia
+            .valueOf(System.getProperty("consistencia.escritura", "ONE"));
+    private static final NivelConsistencia LECTURA_DEFECTO = NivelConsistencia
+            .valueOf(System.getProperty("consistencia.lectura", "ONE"));
 
     public ServidorCentral(int port) {
         this.port = port;
@@ -78,29 +99,29 @@ public class ServidorCentral {
     private void procesarMensajeNodo(String mensaje, PrintWriter out) {
         String[] partes = mensaje.split("\\|");
 
-        if ("REGISTRO".equals(partes[0]) && partes.length >= 5) {
+        if ("REGISTRO".equals(partes[0]) && partes.length >= 4) {
             int nodoId = Integer.parseInt(partes[1]);
             String ipNodo = partes[2];
             int puertoNodo = Integer.parseInt(partes[3]);
 
-            Arrays.stream(partes[4].split(",")).forEach(t -> {
-                String[] datos = t.split(":");
-                if (datos.length == 2) {
-                    String tabla = datos[0];
-                    int particion = Integer.parseInt(datos[1]);
-                    String key = tabla + "_" + particion;
-                    replicas.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(nodoId);
-                    loadBalancer.addNodo(key, nodoId);
-                }
-            });
-
             NodoHandler nuevoNodo = new NodoHandler(nodoId, ipNodo, puertoNodo);
-            nodos.put(nodoId, nuevoNodo);
+            NodoHandler anterior = nodos.put(nodoId, nuevoNodo);
+            if (anterior != null) {
+                anterior.cerrar();
+            }
             loadBalancer.actualizarMetricas(nodoId, nuevoNodo);
             ultimoHeartbeat.put(nodoId, System.currentTimeMillis());
+            canalesNodos.put(nodoId, out);
             out.println("REGISTRO_EXITOSO");
+            incorporarAlAnillo(nodoId, ipNodo + ":" + puertoNodo, out);
             System.out.printf("[Servidor] Nodo %d registrado (IP: %s, Puerto: %d)%n", nodoId, ipNodo, puertoNodo);
 
+        } else if ("ESTADO_TX".equals(partes[0]) && partes.length >= 2) {
+            out.println("DECISION|" + partes[1] + "|" + coordinador.estado(partes[1]));
+
+        } else if ("INVALIDAR".equals(partes[0]) && partes.length >= 2) {
+            cacheSaldos.invalidarParticion(Integer.parseInt(partes[1]));
+
         } else if ("HEARTBEAT".equals(partes[0]) && partes.length >= 2) {
             int nodoId = Integer.parseInt(partes[1]);
             ultimoHeartbeat.put(nodoId, System.currentTimeMillis());
@@ -111,6 +132,33 @@ public class ServidorCentral {
         }
     }
 
+    // El nodo recibe el anillo vigente para conocer a los demás; solo entra en él cuando el rebalanceo ha copiado
+    // sus particiones.
+    private void incorporarAlAnillo(int nodoId, String direccion, PrintWriter out) {
+        out.println(anillo.serializar());
+        rebalanceo.planificar(nodoId, direccion);
+    }
+
+    // Tras el cambio de rutas se entrega el anillo también por la conexión de peticiones, que no espera al sondeo
+    // del canal de registro, para que los primarios nuevos repliquen cuanto antes a sus réplicas nuevas.
+    private void publicarAnillo(AnilloHash nuevo) {
+        anillo = nuevo;
+        System.out.println("[Servidor] " + nuevo.resumen());
+        String publicacion = nuevo.serializar();
+        nodos.values().stream()
+                .filter(NodoHandler::estaActivo)
+                .map(nodo -> CompletableFuture.runAsync(() -> {
+                    try {
+                        nodo.enviarYRecibir(publicacion, 5);
+                    } catch (TimeoutException e) {
+                        System.err.println("[Servidor] Nodo " + nodo.id + " no recibió el anillo");
+                    }
+                }, executor))
+                .toList()
+                .forEach(CompletableFuture::join);
+        canalesNodos.values().forEach(canal -> canal.println(publicacion));
+    }
+
     private void iniciarHeartbeat() {
         heartbeatScheduler.scheduleAtFixedRate(() -> {
             System.out.println("[Servidor] Verificando heartbeats...");
@@ -125,6 +173,8 @@ public class ServidorCentral {
                     }
                 }
             });
+            nodos.values().forEach(nodo -> nodo.pool.desalojarInactivas());
+            coordinador.reintentarPendientes();
         }, 0, 10, TimeUnit.SECONDS);
     }
 
@@ -133,7 +183,9 @@ public class ServidorCentral {
             try {
                 Thread.sleep(5000);
 
-                replicas.forEach((particion, nodosLista) -> {
+                AnilloHash actual = anillo;
+                for (int particionId = 1; particionId <= actual.getParticiones(); particionId++) {
+                    List<Integer> nodosLista = actual.replicas(particionId);
                     if (nodosLista.contains(nodoFallido)) {
                         List<Integer> nodosSanos = nodosLista.stream()
                                 .filter(id -> id != nodoFallido && nodos.get(id).estaActivo())
@@ -141,7 +193,6 @@ public class ServidorCentral {
 
                         if (!nodosSanos.isEmpty()) {
                             try {
-                                int particionId = Integer.parseInt(particion.split("_")[1]);
                                 NodoHandler nodoSano = nodos.get(nodosSanos.get(0));
                                 String datos = nodoSano.enviarYRecibir("OBTENER_PARTICION|" + particionId, 10);
 
@@ -159,7 +210,7 @@ public class ServidorCentral {
                             }
                         }
                     }
-                });
+                }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
@@ -167,178 +218,638 @@ public class ServidorCentral {
     }
 
     private void manejarCliente(Socket socket) {
+        Semaphore enVuelo = new Semaphore(MAXIMO_EN_VUELO);
+        Sesion sesion = new Sesion();
         try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), false)) {
 
-            socket.setSoTimeout(30000);
+            socket.setSoTimeout(INACTIVIDAD_CLIENTE_MS);
 
+            int atendidas = 0;
             String mensaje;
-            while ((mensaje = in.readLine()) != null && !mensaje.isEmpty()) {
-                System.out.println("[Servidor] Solicitud cliente: " + mensaje);
-                String[] partes = mensaje.split("\\|", 4);
+            try {
+                while ((mensaje = in.readLine()) != null && !mensaje.isEmpty()) {
+                    if (++atendidas > MAXIMO_SOLICITUDES) {
+                        responder(out, "ERROR|LIMITE_SOLICITUDES");
+                        break;
+                    }
 
-                try {
-                    switch (partes[0]) {
-                        case "CONSULTAR_SALDO" -> {
-                            if (partes.length >= 2) {
-                                consultarSaldoConFailover(partes[1], out);
-                            } else {
-                                out.println("ERROR|FORMATO_INVALIDO");
-                            }
-                        }
-                        case "TRANSFERIR_FONDOS" -> {
-                            if (partes.length >= 4) {
-                                transferirFondosConConsistencia(partes[1], partes[2], partes[3], out);
-                            } else {
-                                out.println("ERROR|FORMATO_INVALIDO");
+                    if (mensaje.startsWith("#")) {
+                        int separador = mensaje.indexOf('|');
+                        String etiqueta = separador > 0 ? mensaje.substring(0, separador) : mensaje;
+                        String solicitud = separador > 0 ? mensaje.substring(separador + 1) : "";
+                        enVuelo.acquire();
+                        executor.execute(() -> {
+                            try {
+                                responder(out, etiqueta + "|" + procesarSolicitud(solicitud, sesion));
+                            } finally {
+                                enVuelo.release();
                             }
-                        }
-                        case "ARQUEO" -> arqueoGlobal(out);
-                        default -> out.println("ERROR|OPERACION_NO_SOPORTADA");
+                        });
+                    } else {
+                        responder(out, procesarSolicitud(mensaje, sesion));
                     }
-                } catch (Exception e) {
-                    System.err.println("[Servidor] Error procesando solicitud: " + e.getMessage());
-                    out.println("ERROR|ERROR_INTERNO");
                 }
-
-                out.flush();
-                break;
+            } catch (SocketTimeoutException e) {
+                System.out.println("[Servidor] Sesión inactiva cerrada: " + socket.getInetAddress());
             }
+            enVuelo.acquire(MAXIMO_EN_VUELO);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             System.err.println("Error con cliente: " + e.getMessage());
         }
     }
 
-    private void consultarSaldoConFailover(String idCuenta, PrintWriter out) {
+    private void responder(PrintWriter out, String respuesta) {
+        synchronized (out) {
+            out.println(respuesta);
+            out.flush();
+        }
+    }
+
+    private String procesarSolicitud(String mensaje, Sesion sesion) {
+        System.out.println("[Servidor] Solicitud cliente: " + mensaje);
+        String[] partes = mensaje.split("\\|", 4);
+
+        try {
+            return switch (partes[0]) {
+                case "CONSULTAR_SALDO" -> partes.length >= 2
+                        ? latencias.medir(false, sesion.lectura, () -> consultarSaldoConFailover(partes[1], sesion))
+                        : "ERROR|FORMATO_INVALIDO";
+                case "TRANSFERIR_FONDOS" -> partes.length >= 4
+                        ? latencias.medir(true, sesion.escritura,
+                                () -> transferirFondosConConsistencia(partes[1], partes[2], partes[3], sesion))
+                        : "ERROR|FORMATO_INVALIDO";
+                case "CONSULTAR_SALDOS" -> partes.length >= 2
+                        ? consultarSaldos(partes[1], sesion)
+                        : "ERROR|FORMATO_INVALIDO";
+                case "TRANSFERIR_LOTE" -> partes.length >= 2
+                        ? transferirLote(partes[1], sesion)
+                        : "ERROR|FORMATO_INVALIDO";
+                case "MOVIMIENTOS" -> partes.length >= 2
+                        ? consultarMovimientos(mensaje.split("\\|", -1), sesion)
+                        : "ERROR|FORMATO_INVALIDO";
+                case "CONSISTENCIA" -> partes.length >= 2
+                        ? fijarConsistencia(mensaje.split("\\|", -1), sesion)
+                        : "ERROR|FORMATO_INVALIDO";
+                case "ARQUEO" -> arqueoGlobal();
+                case "METRICAS" -> obtenerMetricas();
+                default -> "ERROR|OPERACION_NO_SOPORTADA";
+            };
+        } catch (Exception e) {
+            System.err.println("[Servidor] Error procesando solicitud: " + e.getMessage());
+            return "ERROR|ERROR_INTERNO";
+        }
+    }
+
+    // La réplica la elige el LoadBalancer, que cubre la lectura con otra réplica si tarda; si ninguna de las dos
+    // responde o van por detrás de lo que esta sesión ya escribió, se recorren las demás empezando por el primario.
+    private String consultarSaldoConFailover(String idCuenta, Sesion sesion) {
         int particion = hashParticion(idCuenta);
-        List<Integer> nodosReplica = replicas.get("CUENTA_" + particion);
+        List<Integer> nodosReplica = anillo.replicas(particion);
 
-        if (nodosReplica == null || nodosReplica.isEmpty()) {
+        if (nodosReplica.isEmpty()) {
             System.err.println("[ERROR] No hay réplicas para partición CUENTA_" + particion);
-            out.println("ERROR|PARTICION_NO_ENCONTRADA");
-            return;
+            return "ERROR|PARTICION_NO_ENCONTRADA";
+        }
+
+        if (sesion.lectura != NivelConsistencia.ONE) {
+            return leerConQuorum(idCuenta, particion, nodosReplica, sesion);
+        }
+        String cacheado = cacheSaldos.obtener(idCuenta);
+        if (cacheado != null) {
+            return cacheado;
         }
+        CacheSaldos.Entrada reserva = cacheSaldos.reservar(idCuenta, particion);
 
+        long minima = Math.max(sesion.secuenciaMinima(particion), reserva.getSecuenciaMinima());
+        String consulta = minima > 0 ? "CONSULTAR|" + idCuenta + "|" + minima : "CONSULTAR|" + idCuenta;
+        return guardarSaldo(idCuenta, reserva, leerConFailover(particion, nodosReplica, consulta));
+    }
+
+    /**
+     * Lectura QUORUM o ALL: se pregunta a la vez a las réplicas activas y, en cuanto contestan las que pide el nivel,
+     * se devuelve el saldo de la más adelantada en secuencia. No pasa por la caché. Si lo devuelto es anterior a lo
+     * que la sesión ya escribió, se lee con failover esperando a esa secuencia.
+     */
+    private String leerConQuorum(String idCuenta, int particion, List<Integer> nodosReplica, Sesion sesion) {
+        int requeridas = sesion.lectura.requeridas(nodosReplica.size());
+        BlockingQueue<String> respuestas = new LinkedBlockingQueue<>();
+        int lanzadas = 0;
         for (Integer nodoId : nodosReplica) {
             NodoHandler nodo = nodos.get(nodoId);
             if (nodo != null && nodo.estaActivo()) {
-                try {
-                    String respuesta = nodo.enviarYRecibir("CONSULTAR|" + idCuenta, 5);
-                    System.out.println("[Servidor] Respuesta nodo " + nodoId + ": " + respuesta);
-                    out.println(respuesta);
-                    return;
-                } catch (TimeoutException e) {
-                    System.err.println("[ERROR] Timeout consultando nodo " + nodoId);
-                    nodo.setActivo(false);
+                lanzadas++;
+                executor.execute(() -> {
+                    String respuesta = loadBalancer.leer(nodo, "CONSULTAR_VERSION|" + idCuenta);
+                    respuestas.add(respuesta != null ? respuesta : "ERROR|SIN_RESPUESTA");
+                });
+            }
+        }
+        if (lanzadas < requeridas) {
+            return "ERROR|REPLICAS_INSUFICIENTES";
+        }
+
+        String mejor = null;
+        long mejorSecuencia = -1;
+        int validas = 0;
+        try {
+            for (int recibidas = 0; recibidas < lanzadas && validas < requeridas; recibidas++) {
+                String respuesta = respuestas.take();
+                if (!respuesta.startsWith("SALDO|") && !respuesta.startsWith("ERROR|CUENTA_NO_EXISTE|"))
                     continue;
+                validas++;
+                int separador = respuesta.lastIndexOf('|');
+                long secuencia = Long.parseLong(respuesta.substring(separador + 1));
+                if (secuencia > mejorSecuencia) {
+                    mejorSecuencia = secuencia;
+                    mejor = respuesta.substring(0, separador);
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (validas < requeridas) {
+            return "ERROR|REPLICAS_INSUFICIENTES";
+        }
+        long minima = sesion.secuenciaMinima(particion);
+        if (mejorSecuencia < minima) {
+            return leerConFailover(particion, nodosReplica, "CONSULTAR|" + idCuenta + "|" + minima);
+        }
+        return mejor;
+    }
+
+    // CONSISTENCIA|escritura|lectura fija los niveles de la sesión; un campo vacío o ausente deja el que había.
+    private String fijarConsistencia(String[] campos, Sesion sesion) {
+        NivelConsistencia escritura = NivelConsistencia.parsear(campos[1], sesion.escritura);
+        NivelConsistencia lectura = NivelConsistencia.parsear(campos.length > 2 ? campos[2] : null, sesion.lectura);
+        if (escritura == null || lectura == null) {
+            return "ERROR|NIVEL_INVALIDO";
+        }
+        sesion.escritura = escritura;
+        sesion.lectura = lectura;
+        return "CONSISTENCIA|" + escritura + "|" + lectura;
+    }
+
+    private String leerConFailover(int particion, List<Integer> nodosReplica, String consulta) {
+        Set<Integer> consultados = ConcurrentHashMap.newKeySet();
+        NodoHandler elegido = loadBalancer.seleccionarNodo(particion);
+        String respuesta = elegido != null ? loadBalancer.leerCubierta(elegido, particion, consulta, consultados) : null;
+        if (loadBalancer.valida(respuesta)) {
+            return respuesta;
+        }
+
+        for (Integer nodoId : nodosReplica) {
+            NodoHandler nodo = nodos.get(nodoId);
+            if (nodo != null && !consultados.contains(nodoId) && nodo.estaActivo()) {
+                String alternativa = loadBalancer.leer(nodo, consulta);
+                if (loadBalancer.valida(alternativa)) {
+                    return alternativa;
+                }
+                respuesta = alternativa != null ? alternativa : respuesta;
+            }
+        }
+        if (respuesta != null) {
+            return respuesta;
         }
         System.err.println("[ERROR] Todos los nodos inactivos para CUENTA_" + particion);
-        out.println("ERROR|TODOS_LOS_NODOS_INACTIVOS");
+        return "ERROR|TODOS_LOS_NODOS_INACTIVOS";
+    }
+
+    /**
+     * Extracto de una cuenta: MOVIMIENTOS|cuenta|desde|hasta|limite, con fechas ISO y extremos opcionales (vacíos o
+     * -), desde incluido y hasta excluido. La réplica que lo sirve busca en su diario por fecha y lee solo la página,
+     * así que pedir lo reciente no depende del tamaño del historial. Para la página siguiente se repite la consulta
+     * con el campo siguiente de la respuesta, un cursor fecha/id, como hasta. Solo responden las réplicas con el
+     * diario completo; las que recibieron la partición sin sus deltas contestan DIARIO_INCOMPLETO y se pasa a otra.
+     */
+    private String consultarMovimientos(String[] campos, Sesion sesion) {
+        String idCuenta = campos[1];
+        String desde = campos.length > 2 && !campos[2].isEmpty() ? campos[2] : "-";
+        String hasta = campos.length > 3 && !campos[3].isEmpty() ? campos[3] : "-";
+        int limite;
+        try {
+            Integer.parseInt(idCuenta);
+            if (!"-".equals(desde))
+                LocalDateTime.parse(desde);
+            if (!"-".equals(hasta)) {
+                int barra = hasta.indexOf('/');
+                LocalDateTime.parse(barra >= 0 ? hasta.substring(0, barra) : hasta);
+                if (barra >= 0)
+                    Long.parseLong(hasta.substring(barra + 1));
+            }
+        } catch (RuntimeException e) {
+            return "ERROR|FORMATO_INVALIDO";
+        }
+        try {
+            limite = campos.length > 4 && !campos[4].isEmpty() ? Integer.parseInt(campos[4])
+                    : LIMITE_MOVIMIENTOS_DEFECTO;
+        } catch (NumberFormatException e) {
+            return "ERROR|LIMITE_INVALIDO";
+        }
+        if (limite <= 0 || limite > LIMITE_MOVIMIENTOS) {
+            return "ERROR|LIMITE_INVALIDO";
+        }
+
+        int particion = hashParticion(idCuenta);
+        List<Integer> nodosReplica = anillo.replicas(particion);
+        if (nodosReplica.isEmpty()) {
+            return "ERROR|PARTICION_NO_ENCONTRADA";
+        }
+        return leerConFailover(particion, nodosReplica, "MOVIMIENTOS|" + idCuenta + "|" + desde + "|" + hasta + "|"
+                + limite + "|" + sesion.secuenciaMinima(particion));
+    }
+
+    private String guardarSaldo(String idCuenta, CacheSaldos.Entrada reserva, String respuesta) {
+        if (respuesta.startsWith("SALDO|")) {
+            cacheSaldos.llenar(idCuenta, reserva, respuesta);
+        }
+        return respuesta;
+    }
+
+    // TRANSFERIR_FONDOS|origen|destino|monto[|clave]: con clave de idempotencia, el nodo que guarda el origen responde
+    // a un reintento con el resultado de la primera ejecución.
+    private String transferirFondosConConsistencia(String origen, String destino, String montoYClave,
+            Sesion sesion) {
+        int separador = montoYClave.indexOf('|');
+        String montoTexto = separador >= 0 ? montoYClave.substring(0, separador) : montoYClave;
+        String clave = separador >= 0 ? montoYClave.substring(separador + 1) : null;
+        if (clave != null && !TablaIdempotencia.claveValida(clave)) {
+            return "ERROR|CLAVE_INVALIDA";
+        }
+        long centavos;
+        try {
+            centavos = Dinero.parsear(montoTexto);
+        } catch (NumberFormatException | ArithmeticException e) {
+            return "ERROR|MONTO_INVALIDO";
+        }
+        if (centavos <= 0) {
+            return "ERROR|MONTO_INVALIDO";
+        }
+        String monto = Dinero.formatear(centavos);
+
+        // Durante el traspaso de una partición el primario saliente rechaza escrituras hasta que se publica el anillo
+        // nuevo; se reintenta contra él.
+        long limite = System.currentTimeMillis() + ESPERA_TRASPASO_MS;
+        String respuesta = transferirEnParticiones(origen, destino, monto, clave, sesion);
+        while ("ERROR|PARTICION_MOVIDA".equals(respuesta) && System.currentTimeMillis() < limite) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            respuesta = transferirEnParticiones(origen, destino, monto, clave, sesion);
+        }
+        return respuesta;
     }
 
-    private void transferirFondosConConsistencia(String origen, String destino, String monto, PrintWriter out) {
+    // Los nodos responden OK|secuencia; la secuencia queda en la sesión para sus lecturas posteriores y el cliente
+    // recibe solo OK. La caché se invalida sea cual sea el resultado, porque un timeout no descarta la escritura.
+    private String transferirEnParticiones(String origen, String destino, String monto, String clave,
+            Sesion sesion) {
         int particionOrigen = hashParticion(origen);
         int particionDestino = hashParticion(destino);
 
         if (particionOrigen == particionDestino) {
-            List<Integer> nodosOrigen = replicas.get("CUENTA_" + particionOrigen);
-            if (nodosOrigen == null || nodosOrigen.isEmpty()) {
-                out.println("ERROR|PARTICION_NO_ENCONTRADA");
-                return;
+            List<Integer> nodosOrigen = anillo.replicas(particionOrigen);
+            if (nodosOrigen.isEmpty()) {
+                return "ERROR|PARTICION_NO_ENCONTRADA";
             }
 
             for (Integer nodoId : nodosOrigen) {
                 NodoHandler nodo = nodos.get(nodoId);
                 if (nodo != null && nodo.estaActivo()) {
                     try {
-                        String respuesta = nodo.enviarYRecibir("TRANSFERIR|" + origen + "|" + destino + "|" + monto,
-                                10);
-                        out.println(respuesta);
-                        return;
-                    } catch (TimeoutException e) {
-                        nodo.setActivo(false);
+                        String respuesta = nodo.enviarEscritura("TRANSFERIR|" + origen + "|" + destino + "|" + monto
+                                + sufijoTransferencia(clave, sesion.escritura), 10);
+                        invalidarCuentas(origen, destino, particionOrigen, particionDestino, respuesta, 1);
+                        if (!respuesta.startsWith("OK"))
+                            return respuesta;
+                        sesion.registrarEscritura(particionOrigen, respuesta, 1);
+                        return "OK";
+                    } catch (PoolConexiones.NoEnviado e) {
+                        // No llegó al nodo: la réplica siguiente puede ejecutarla sin que se aplique dos veces.
                         continue;
+                    } catch (TimeoutException e) {
+                        // Salió y no hubo respuesta, así que pudo aplicarse; en otra réplica se aplicaría de nuevo. El
+                        // cliente decide: consultar o repetirla con su clave, que el nodo de origen reconocerá.
+                        invalidarCuentas(origen, destino, particionOrigen, particionDestino, "", 1);
+                        return "ERROR|RESULTADO_INCIERTO";
                     }
                 }
             }
-            out.println("ERROR|NODOS_NO_DISPONIBLES");
+            return "ERROR|NODOS_NO_DISPONIBLES";
         } else {
-            out.println("ERROR|TRANSFERENCIA_ENTRE_PARTICIONES_NO_SOPORTADA");
+            String respuesta = coordinador.transferir(origen, destino, monto, clave, sesion.escritura,
+                    particionOrigen, particionDestino);
+            invalidarCuentas(origen, destino, particionOrigen, particionDestino, respuesta, 2);
+            if (!respuesta.startsWith("OK"))
+                return respuesta;
+            sesion.registrarEscritura(particionOrigen, respuesta, 1);
+            sesion.registrarEscritura(particionDestino, respuesta, 2);
+            return "OK";
         }
     }
 
-    private void arqueoGlobal(PrintWriter out) {
+    // Campos opcionales de TRANSFERIR: |clave|nivel, con la clave vacía si solo hace falta el nivel. Con ONE y sin
+    // clave no se añade nada y la transferencia viaja en la trama binaria fija.
+    private static String sufijoTransferencia(String clave, NivelConsistencia nivel) {
+        if (nivel == NivelConsistencia.ONE)
+            return clave != null ? "|" + clave : "";
+        return "|" + (clave != null ? clave : "") + "|" + nivel;
+    }
+
+    private void invalidarCuentas(String origen, String destino, int particionOrigen, int particionDestino,
+            String respuesta, int campoDestino) {
+        cacheSaldos.invalidar(origen, particionOrigen, Sesion.secuencia(respuesta, 1));
+        cacheSaldos.invalidar(destino, particionDestino, Sesion.secuencia(respuesta, campoDestino));
+    }
+
+    /**
+     * Consulta varias cuentas con un solo mensaje por nodo. Los aciertos de caché se responden sin salir del
+     * servidor y el resto se agrupa por la réplica que el LoadBalancer elige para su partición. Lo que el nodo no
+     * pudo servir (réplica atrasada, nodo caído, nodo sin soporte de lotes) se repite uno a uno con failover.
+     * Responde SALDOS|id,OK,saldo;id,ERROR,CODIGO;... en el orden de la petición.
+     */
+    private String consultarSaldos(String lista, Sesion sesion) {
+        String[] ids = lista.split(",");
+        if (ids.length > MAXIMO_LOTE) {
+            return "ERROR|LOTE_DEMASIADO_GRANDE";
+        }
+        String[] resultados = new String[ids.length];
+        CacheSaldos.Entrada[] reservas = new CacheSaldos.Entrada[ids.length];
+        Map<NodoHandler, List<Integer>> porNodo = new HashMap<>();
+        // Por encima de ONE cada cuenta compara sus réplicas: todas van por la lectura individual del final.
+        for (int i = 0; i < ids.length && sesion.lectura == NivelConsistencia.ONE; i++) {
+            String cacheado = cacheSaldos.obtener(ids[i]);
+            if (cacheado != null) {
+                resultados[i] = elementoSaldo(ids[i], cacheado);
+                continue;
+            }
+            int particion = hashParticion(ids[i]);
+            NodoHandler nodo = loadBalancer.seleccionarNodo(particion);
+            if (nodo != null) {
+                reservas[i] = cacheSaldos.reservar(ids[i], particion);
+                porNodo.computeIfAbsent(nodo, n -> new ArrayList<>()).add(i);
+            }
+        }
+
+        porNodo.entrySet().stream()
+                .map(e -> CompletableFuture.runAsync(
+                        () -> consultarEnNodo(e.getKey(), e.getValue(), ids, reservas, resultados, sesion), executor))
+                .toList()
+                .forEach(CompletableFuture::join);
+
+        for (int i = 0; i < ids.length; i++) {
+            if (resultados[i] == null) {
+                resultados[i] = elementoSaldo(ids[i], consultarSaldoConFailover(ids[i], sesion));
+            }
+        }
+        return "SALDOS|" + String.join(";", resultados);
+    }
+
+    private void consultarEnNodo(NodoHandler nodo, List<Integer> indices, String[] ids,
+            CacheSaldos.Entrada[] reservas, String[] resultados, Sesion sesion) {
+        StringJoiner lista = new StringJoiner(",");
+        Map<Integer, Long> minimas = new HashMap<>();
+        for (int i : indices) {
+            lista.add(ids[i]);
+            int particion = hashParticion(ids[i]);
+            long minima = Math.max(sesion.secuenciaMinima(particion), reservas[i].getSecuenciaMinima());
+            if (minima > 0) {
+                minimas.merge(particion, minima, Math::max);
+            }
+        }
+        StringJoiner secuencias = new StringJoiner(",");
+        minimas.forEach((particion, secuencia) -> secuencias.add(particion + ":" + secuencia));
+
+        String respuesta;
         try {
-            bloquearOperaciones();
-            double total = calcularTotalGlobal();
-            out.printf("ARQUEO|%.2f%n", total);
+            respuesta = nodo.enviarYRecibir("CONSULTAR_LOTE|" + lista + "|" + secuencias, 10);
         } catch (TimeoutException e) {
-            out.println("ERROR|ARQUEO_FALLIDO");
-        } finally {
-            desbloquearOperaciones();
+            return;
+        }
+        if (!respuesta.startsWith("SALDOS|")) {
+            return;
+        }
+        String[] elementos = respuesta.substring("SALDOS|".length()).split(";");
+        for (int k = 0; k < indices.size() && k < elementos.length; k++) {
+            int i = indices.get(k);
+            String[] campos = elementos[k].split(",", 3);
+            if (campos.length < 3 || "REPLICA_ATRASADA".equals(campos[2]) || "PARTICION_NO_LOCAL".equals(campos[2]))
+                continue;
+            if ("OK".equals(campos[1])) {
+                cacheSaldos.llenar(ids[i], reservas[i], "SALDO|" + campos[2]);
+            }
+            resultados[i] = elementos[k];
         }
     }
 
-    private double calcularTotalGlobal() throws TimeoutException {
-        return replicas.keySet().parallelStream()
-                .filter(k -> k.startsWith("CUENTA_"))
-                .mapToDouble(k -> {
-                    List<Integer> nodosParticion = replicas.get(k);
-                    for (Integer nodoId : nodosParticion) {
-                        NodoHandler nodo = nodos.get(nodoId);
-                        if (nodo != null && nodo.estaActivo()) {
-                            try {
-                                String respuesta = nodo.enviarYRecibir("ARQUEO", 10);
-                                return Double.parseDouble(respuesta.split("\\|")[1]);
-                            } catch (Exception e) {
-                                continue;
-                            }
-                        }
-                    }
-                    return 0.0;
-                }).sum();
+    private static String elementoSaldo(String idCuenta, String respuesta) {
+        int separador = respuesta.indexOf('|');
+        return idCuenta + (respuesta.startsWith("SALDO|") ? ",OK," : ",ERROR,") + respuesta.substring(separador + 1);
     }
 
-    private void bloquearOperaciones() throws TimeoutException {
-        for (String key : replicas.keySet()) {
-            List<Integer> nodosParticion = replicas.get(key);
-            for (Integer nodoId : nodosParticion) {
-                NodoHandler nodo = nodos.get(nodoId);
-                if (nodo != null && nodo.estaActivo()) {
-                    try {
-                        nodo.enviarYRecibir("BLOQUEAR_ARQUEO", 5);
-                        break;
-                    } catch (TimeoutException e) {
-                        continue;
-                    }
+    /**
+     * Transferencias en lote. Las que no salen de una partición se agrupan por su primario y viajan en un solo
+     * mensaje por nodo, que las aplica en orden y espera la durabilidad una vez; las que cruzan particiones pasan
+     * una a una por el coordinador 2PC, como mucho PARALELISMO_2PC a la vez. Lo rechazado por un traspaso en curso
+     * o por un nodo sin soporte de lotes se repite por la ruta individual. Responde
+     * LOTE|exitosas|fallidas|0,OK;1,ERROR,CODIGO;... en el orden de la petición.
+     */
+    private String transferirLote(String lote, Sesion sesion) {
+        String[] elementos = lote.split(";");
+        if (elementos.length > MAXIMO_LOTE) {
+            return "ERROR|LOTE_DEMASIADO_GRANDE";
+        }
+        String[] resultados = new String[elementos.length];
+        String[][] transferencias = new String[elementos.length][];
+        Map<NodoHandler, List<Integer>> porNodo = new HashMap<>();
+        List<Integer> cruzadas = new ArrayList<>();
+        for (int i = 0; i < elementos.length; i++) {
+            String[] campos = elementos[i].split(",");
+            if (campos.length != 3) {
+                resultados[i] = "ERROR,FORMATO_INVALIDO";
+                continue;
+            }
+            try {
+                long centavos = Dinero.parsear(campos[2]);
+                if (centavos <= 0) {
+                    resultados[i] = "ERROR,MONTO_INVALIDO";
+                    continue;
                 }
+                campos[2] = Dinero.formatear(centavos);
+            } catch (NumberFormatException | ArithmeticException e) {
+                resultados[i] = "ERROR,MONTO_INVALIDO";
+                continue;
+            }
+            transferencias[i] = campos;
+
+            int particion = hashParticion(campos[0]);
+            if (particion != hashParticion(campos[1])) {
+                cruzadas.add(i);
+                continue;
+            }
+            NodoHandler primario = seleccionarParticipante(particion);
+            if (primario == null) {
+                resultados[i] = "ERROR,NODOS_NO_DISPONIBLES";
+                continue;
             }
+            porNodo.computeIfAbsent(primario, n -> new ArrayList<>()).add(i);
         }
+
+        List<CompletableFuture<Void>> envios = new ArrayList<>();
+        porNodo.forEach((nodo, indices) -> envios.add(CompletableFuture.runAsync(
+                () -> transferirEnNodo(nodo, indices, transferencias, resultados, sesion), executor)));
+        Semaphore cupo = new Semaphore(PARALELISMO_2PC);
+        for (int i : cruzadas) {
+            String[] t = transferencias[i];
+            envios.add(CompletableFuture.runAsync(() -> {
+                cupo.acquireUninterruptibly();
+                try {
+                    resultados[i] = elementoLote(transferirEnParticiones(t[0], t[1], t[2], null, sesion));
+                } finally {
+                    cupo.release();
+                }
+            }, executor));
+        }
+        envios.forEach(CompletableFuture::join);
+
+        int exitosas = 0;
+        StringJoiner detalle = new StringJoiner(";");
+        for (int i = 0; i < resultados.length; i++) {
+            String resultado = resultados[i];
+            if (resultado == null || "ERROR,PARTICION_MOVIDA".equals(resultado)
+                    || "ERROR,PARTICION_NO_LOCAL".equals(resultado)) {
+                String[] t = transferencias[i];
+                resultado = elementoLote(transferirFondosConConsistencia(t[0], t[1], t[2], sesion));
+            }
+            if ("OK".equals(resultado)) {
+                exitosas++;
+            }
+            detalle.add(i + "," + resultado);
+        }
+        return "LOTE|" + exitosas + "|" + (resultados.length - exitosas) + "|" + detalle;
     }
 
-    private void desbloquearOperaciones() {
-        replicas.keySet().forEach(key -> {
-            List<Integer> nodosParticion = replicas.get(key);
-            for (Integer nodoId : nodosParticion) {
-                NodoHandler nodo = nodos.get(nodoId);
-                if (nodo != null && nodo.estaActivo()) {
-                    try {
-                        nodo.enviarYRecibir("DESBLOQUEAR_ARQUEO", 5);
-                        break;
-                    } catch (TimeoutException e) {
-                        continue;
+    // Los elementos que el nodo no llegó a contestar quedan a null para que se repitan uno a uno.
+    private void transferirEnNodo(NodoHandler nodo, List<Integer> indices, String[][] transferencias,
+            String[] resultados, Sesion sesion) {
+        StringJoiner lote = new StringJoiner(";");
+        for (int i : indices) {
+            lote.add(String.join(",", transferencias[i]));
+        }
+        String respuesta;
+        try {
+            respuesta = nodo.enviarYRecibir("TRANSFERIR_LOTE|" + lote
+                    + (sesion.escritura != NivelConsistencia.ONE ? "|" + sesion.escritura : ""), 30);
+        } catch (TimeoutException e) {
+            respuesta = "ERROR|TIMEOUT";
+        }
+
+        String[] partes = respuesta.split("\\|", 3);
+        boolean valida = partes.length == 3 && "LOTE".equals(partes[0]);
+        Map<Integer, Long> secuencias = new HashMap<>();
+        if (valida && !partes[1].isEmpty()) {
+            for (String secuencia : partes[1].split(",")) {
+                int dosPuntos = secuencia.indexOf(':');
+                int particion = Integer.parseInt(secuencia.substring(0, dosPuntos));
+                long valor = Long.parseLong(secuencia.substring(dosPuntos + 1));
+                secuencias.put(particion, valor);
+                sesion.registrarSecuencia(particion, valor);
+            }
+        }
+        String[] elementos = valida ? partes[2].split(";") : new String[0];
+        for (int k = 0; k < indices.size(); k++) {
+            int i = indices.get(k);
+            String[] t = transferencias[i];
+            int particion = hashParticion(t[0]);
+            long secuencia = secuencias.getOrDefault(particion, 0L);
+            cacheSaldos.invalidar(t[0], particion, secuencia);
+            cacheSaldos.invalidar(t[1], particion, secuencia);
+            if (k < elementos.length) {
+                resultados[i] = elementos[k];
+            } else if (!valida && !"ERROR|COMANDO_INVALIDO".equals(respuesta)
+                    && !"ERROR|NODO_SATURADO".equals(respuesta)) {
+                resultados[i] = elementoLote(respuesta);
+            }
+        }
+    }
+
+    private static String elementoLote(String respuesta) {
+        return respuesta.replace('|', ',');
+    }
+
+    /**
+     * Arqueo sobre un corte consistente sin detener las transferencias. Con las decisiones de 2PC congeladas se pide
+     * a cada primario, en paralelo, la suma de su partición y sus reservas sin resolver. Una transferencia confirmada
+     * antes del corte tiene sus dos mitades preparadas o ya aplicadas en todas las particiones, así que basta con dar
+     * por aplicadas las reservas pendientes de las confirmadas; las demás no han movido dinero todavía.
+     */
+    private String arqueoGlobal() {
+        long inicio = System.nanoTime();
+        AnilloHash actual = anillo;
+        String[] cortes = new String[actual.getParticiones()];
+        Set<String> confirmadas = coordinador.sinDecisiones(() -> IntStream.rangeClosed(1, cortes.length)
+                .mapToObj(particion -> CompletableFuture.runAsync(
+                        () -> cortes[particion - 1] = pedirCorte(actual, particion), executor))
+                .toList()
+                .forEach(CompletableFuture::join));
+
+        long total = 0;
+        long enVuelo = 0;
+        for (String corte : cortes) {
+            if (corte == null || !corte.startsWith("CORTE|")) {
+                ultimoArqueo = "ARQUEO|fallido=" + corte;
+                return "ERROR|ARQUEO_FALLIDO";
+            }
+            String[] partes = corte.split("\\|", -1);
+            total += Long.parseLong(partes[3]);
+            if (partes.length > 4 && !partes[4].isEmpty()) {
+                for (String reserva : partes[4].split(",")) {
+                    String[] campos = reserva.split(":");
+                    if (confirmadas.contains(campos[0])) {
+                        long monto = Long.parseLong(campos[2]);
+                        total += "O".equals(campos[1]) ? -monto : monto;
+                        enVuelo++;
                     }
                 }
             }
-        });
+        }
+        ultimoArqueo = String.format("ARQUEO|total=%s|enVuelo=%d|duracion=%.3fms", Dinero.formatear(total), enVuelo,
+                (System.nanoTime() - inicio) / 1e6);
+        return "ARQUEO|" + Dinero.formatear(total);
+    }
+
+    private String pedirCorte(AnilloHash actual, int particion) {
+        NodoHandler primario = primerActivo(actual.replicas(particion));
+        if (primario == null) {
+            return "ERROR|NODOS_NO_DISPONIBLES";
+        }
+        try {
+            return primario.enviarYRecibir("ARQUEO_PARTICION|" + particion, 10);
+        } catch (TimeoutException e) {
+            return "ERROR|TIMEOUT";
+        }
+    }
+
+    private String obtenerMetricas() {
+        StringBuilder sb = new StringBuilder("METRICAS;").append(coordinador.resumen())
+                .append(';').append(anillo.resumen())
+                .append(';').append(rebalanceo.resumen())
+                .append(';').append(loadBalancer.resumen())
+                .append(';').append(cacheSaldos.resumen())
+                .append(';').append(latencias.resumen())
+                .append(';').append(ultimoArqueo);
+        nodos.values().forEach(nodo -> sb.append(';').append(nodo.pool.resumen()));
+        return sb.toString();
     }
 
     private int hashParticion(String id) {
         try {
-            int clienteId = Integer.parseInt(id) - 100;
-            return (Math.abs(clienteId) % 3) + 1;
+            return anillo.particion(Integer.parseInt(id));
         } catch (NumberFormatException e) {
             return 1;
         }
@@ -351,27 +862,37 @@ public class ServidorCentral {
         private volatile boolean activo;
         private final AtomicInteger carga = new AtomicInteger(0);
         private final AtomicLong ultimaRespuesta = new AtomicLong(System.currentTimeMillis());
+        private final PoolConexiones pool;
 
         public NodoHandler(int id, String ip, int puerto) {
             this.id = id;
             this.ip = ip;
             this.puerto = puerto;
             this.activo = true;
+            this.pool = new PoolConexiones(ip, puerto);
         }
 
         public String enviarYRecibir(String mensaje, int timeout) throws TimeoutException {
-            carga.incrementAndGet();
-            try (Socket socket = new Socket()) {
-                socket.connect(new InetSocketAddress(ip, puerto), timeout * 1000);
-                socket.setSoTimeout(timeout * 1000);
-
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            try {
+                return enviarEscritura(mensaje, timeout);
+            } catch (PoolConexiones.NoEnviado e) {
+                throw new TimeoutException();
+            }
+        }
 
-                out.println(mensaje);
-                String respuesta = in.readLine();
+        // Como enviarYRecibir, pero separa la solicitud que no llegó a salir (NoEnviado) de la que salió y se quedó
+        // sin respuesta (TimeoutException), que el nodo puede haber aplicado.
+        public String enviarEscritura(String mensaje, int timeout) throws TimeoutException, PoolConexiones.NoEnviado {
+            carga.incrementAndGet();
+            try {
+                String respuesta = pool.enviar(mensaje, timeout * 1000);
                 ultimaRespuesta.set(System.currentTimeMillis());
                 return respuesta;
+            } catch (TimeoutException e) {
+                return "ERROR|NODO_SATURADO";
+            } catch (PoolConexiones.NoEnviado e) {
+                activo = false;
+                throw e;
             } catch (SocketTimeoutException e) {
                 activo = false;
                 throw new TimeoutException();
@@ -383,6 +904,10 @@ public class ServidorCentral {
             }
         }
 
+        public void cerrar() {
+            pool.cerrar();
+        }
+
         public void actualizarMetricas() {
         }
 
@@ -395,24 +920,523 @@ public class ServidorCentral {
         }
     }
 
+    private NodoHandler seleccionarParticipante(int particion) {
+        return primerActivo(anillo.replicas(particion));
+    }
+
+    private NodoHandler primerActivo(List<Integer> nodosParticion) {
+        for (Integer nodoId : nodosParticion) {
+            NodoHandler nodo = nodos.get(nodoId);
+            if (nodo != null && nodo.estaActivo())
+                return nodo;
+        }
+        return null;
+    }
+
+    private class Coordinador2PC {
+        private static final String RUTA_REGISTRO = System.getProperty("coordinador.registro", "coordinador_2pc.wal");
+        private static final long REINTENTO_MS = 5000;
+        private static final int COMPACTAR_CADA = 10000;
+
+        private RegistroEscritura registro;
+        private final Map<String, Decision> pendientes = new ConcurrentHashMap<>();
+        private final Set<String> enCurso = ConcurrentHashMap.newKeySet();
+        private final AtomicLong contador = new AtomicLong(0);
+        private final String prefijo = Long.toString(System.currentTimeMillis(), 36);
+        private final AtomicLong confirmadas = new AtomicLong(0);
+        private final AtomicLong abortadas = new AtomicLong(0);
+        private final AtomicLong latenciaTotalNanos = new AtomicLong(0);
+        private final ReentrantReadWriteLock corte = new ReentrantReadWriteLock();
+
+        Coordinador2PC() {
+            try {
+                registro = new RegistroEscritura(Paths.get(RUTA_REGISTRO));
+                for (String linea : registro.leerRegistros()) {
+                    String[] partes = linea.split("\\|");
+                    if ("DECISION".equals(partes[0])) {
+                        pendientes.put(partes[1], new Decision(partes[1], true,
+                                Integer.parseInt(partes[2]), Integer.parseInt(partes[3]), 0));
+                    } else if ("FIN".equals(partes[0])) {
+                        pendientes.remove(partes[1]);
+                    }
+                }
+                if (!pendientes.isEmpty()) {
+                    System.out.println("[Coordinador] " + pendientes.size() + " decisiones pendientes de entrega");
+                }
+            } catch (IOException e) {
+                System.err.println("[Coordinador] Error abriendo registro: " + e.getMessage());
+            }
+        }
+
+        // Una clave ya usada hace que el origen vote con la respuesta guardada (OK|secuencia): se aborta lo preparado
+        // en el destino y esa respuesta es la de la transferencia.
+        String transferir(String origen, String destino, String monto, String clave, NivelConsistencia nivel,
+                int particionOrigen, int particionDestino) {
+            long inicio = System.nanoTime();
+            NodoHandler nodoOrigen = seleccionarParticipante(particionOrigen);
+            NodoHandler nodoDestino = seleccionarParticipante(particionDestino);
+            if (nodoOrigen == null || nodoDestino == null) {
+                return "ERROR|NODOS_NO_DISPONIBLES";
+            }
+
+            String txId = prefijo + "-" + contador.incrementAndGet();
+            String cuerpo = txId + "|" + origen + "|" + destino + "|" + monto;
+            String votoOrigen;
+            String votoDestino;
+            Decision decision;
+            enCurso.add(txId);
+            try {
+                CompletableFuture<String> futuroOrigen = CompletableFuture
+                        .supplyAsync(() -> solicitar(nodoOrigen, "PREPARAR|" + cuerpo + "|ORIGEN"
+                                + (clave != null ? "|" + clave : "")), executor);
+                CompletableFuture<String> futuroDestino = CompletableFuture
+                        .supplyAsync(() -> solicitar(nodoDestino, "PREPARAR|" + cuerpo + "|DESTINO"), executor);
+                votoOrigen = futuroOrigen.join();
+                votoDestino = futuroDestino.join();
+
+                corte.readLock().lock();
+                try {
+                    boolean confirmar = "LISTO".equals(votoOrigen) && "LISTO".equals(votoDestino);
+                    decision = new Decision(txId, confirmar, nodoOrigen.id, nodoDestino.id,
+                            System.currentTimeMillis());
+                    if (confirmar && !registrarDecision(decision)) {
+                        decision = new Decision(txId, false, nodoOrigen.id, nodoDestino.id,
+                                System.currentTimeMillis());
+                        votoOrigen = "ERROR|COORDINADOR_NO_DISPONIBLE";
+                    }
+                    pendientes.put(txId, decision);
+                } finally {
+                    corte.readLock().unlock();
+                }
+            } finally {
+                enCurso.remove(txId);
+            }
+
+            String[] entregas = difundir(decision, nivel);
+            latenciaTotalNanos.addAndGet(System.nanoTime() - inicio);
+            if (decision.confirmar) {
+                confirmadas.incrementAndGet();
+                // Confirmada y aplicada, pero sin las réplicas que pedía el nivel en alguna de las dos particiones.
+                for (String entrega : entregas) {
+                    if ("ERROR|REPLICAS_INSUFICIENTES".equals(entrega))
+                        return entrega;
+                }
+                return "OK|" + secuenciaDe(entregas, particionOrigen) + "|" + secuenciaDe(entregas, particionDestino);
+            }
+            abortadas.incrementAndGet();
+            return !"LISTO".equals(votoOrigen) ? votoOrigen : votoDestino;
+        }
+
+        // Si las dos particiones están en el mismo nodo, cada CONFIRMAR resuelve la primera que encuentra; la
+        // respuesta OK|secuencia|particion dice cuál fue.
+        private long secuenciaDe(String[] entregas, int particion) {
+            for (String entrega : entregas) {
+                if (Sesion.secuencia(entrega, 2) == particion)
+                    return Sesion.secuencia(entrega, 1);
+            }
+            return 0;
+        }
+
+        /**
+         * Ejecuta la toma del corte sin que se tome ninguna decisión nueva y devuelve los txId confirmados en ese
+         * momento. Mientras dura, la fase de preparación y la entrega de decisiones siguen; solo esperan las
+         * transferencias entre particiones que van a decidir.
+         */
+        Set<String> sinDecisiones(Runnable tomarCorte) {
+            corte.writeLock().lock();
+            try {
+                Set<String> confirmadasAhora = new HashSet<>();
+                pendientes.values().forEach(d -> {
+                    if (d.confirmar)
+                        confirmadasAhora.add(d.txId);
+                });
+                tomarCorte.run();
+                return confirmadasAhora;
+            } finally {
+                corte.writeLock().unlock();
+            }
+        }
+
+        String estado(String txId) {
+            Decision decision = pendientes.get(txId);
+            if (decision != null)
+                return decision.confirmar ? "CONFIRMAR" : "ABORTAR";
+            if (enCurso.contains(txId))
+                return "PENDIENTE";
+            return "ABORTAR";
+        }
+
+        void reintentarPendientes() {
+            long limite = System.currentTimeMillis() - REINTENTO_MS;
+            pendientes.values().stream()
+                    .filter(d -> d.fecha < limite)
+                    .forEach(d -> executor.execute(() -> {
+                        difundir(d, NivelConsistencia.ONE);
+                        // La decisión solo guarda los nodos, no las cuentas: se descarta la caché entera.
+                        if (d.confirmar) {
+                            cacheSaldos.vaciar();
+                        }
+                    }));
+        }
+
+        private String solicitar(NodoHandler nodo, String mensaje) {
+            try {
+                String respuesta = nodo.enviarYRecibir(mensaje, 10);
+                return respuesta != null ? respuesta : "ERROR|SIN_RESPUESTA";
+            } catch (TimeoutException e) {
+                return "ERROR|TIMEOUT";
+            }
+        }
+
+        // El nivel de la transferencia se aplica al confirmar: cada participante espera a las réplicas de su partición.
+        private String[] difundir(Decision decision, NivelConsistencia nivel) {
+            String mensaje = (decision.confirmar ? "CONFIRMAR|" : "ABORTAR|") + decision.txId
+                    + (decision.confirmar && nivel != NivelConsistencia.ONE ? "|" + nivel : "");
+            CompletableFuture<String> envioOrigen = CompletableFuture
+                    .supplyAsync(() -> enviarDecision(decision.nodoOrigen, mensaje), executor);
+            CompletableFuture<String> envioDestino = CompletableFuture
+                    .supplyAsync(() -> enviarDecision(decision.nodoDestino, mensaje), executor);
+
+            String[] entregas = { envioOrigen.join(), envioDestino.join() };
+            if (entregas[0].startsWith("OK") && entregas[1].startsWith("OK")
+                    && pendientes.remove(decision.txId) != null && decision.confirmar) {
+                registrarFin(decision.txId);
+            }
+            return entregas;
+        }
+
+        private String enviarDecision(int nodoId, String mensaje) {
+            NodoHandler nodo = nodos.get(nodoId);
+            return nodo != null ? solicitar(nodo, mensaje) : "ERROR|NODO_DESCONOCIDO";
+        }
+
+        private boolean registrarDecision(Decision decision) {
+            if (registro == null)
+                return false;
+            try {
+                long posicion;
+                synchronized (this) {
+                    posicion = registro.anexar("DECISION|" + decision.txId + "|" + decision.nodoOrigen + "|"
+                            + decision.nodoDestino);
+                }
+                registro.sincronizar(posicion);
+                return true;
+            } catch (IOException e) {
+                System.err.println("[Coordinador] Error registrando decisión: " + e.getMessage());
+                return false;
+            }
+        }
+
+        private synchronized void registrarFin(String txId) {
+            try {
+                registro.anexar("FIN|" + txId);
+                if (registro.getRegistros() >= COMPACTAR_CADA && enCurso.isEmpty()) {
+                    List<String> vigentes = new ArrayList<>();
+                    for (Decision d : pendientes.values()) {
+                        if (d.confirmar) {
+                            vigentes.add("DECISION|" + d.txId + "|" + d.nodoOrigen + "|" + d.nodoDestino);
+                        }
+                    }
+                    registro.reemplazar(vigentes);
+                }
+            } catch (IOException e) {
+                System.err.println("[Coordinador] Error registrando fin: " + e.getMessage());
+            }
+        }
+
+        String resumen() {
+            long total = confirmadas.get() + abortadas.get();
+            return String.format("2PC|confirmadas=%d|abortadas=%d|pendientes=%d|enCurso=%d|latenciaMedia=%.3fms",
+                    confirmadas.get(), abortadas.get(), pendientes.size(), enCurso.size(),
+                    total == 0 ? 0.0 : latenciaTotalNanos.get() / 1e6 / total);
+        }
+    }
+
+    /**
+     * Altas de nodos en línea, de una en una. Para cada partición que el anillo nuevo asigna al nodo, este copia
+     * los datos de una réplica activa y sigue su cola de deltas; cuando todas están al día, los primarios salientes
+     * ceden sus particiones al primario nuevo y el anillo se publica de una vez. Si algo falla, el anillo no cambia.
+     */
+    private class Rebalanceo {
+        private static final long TIMEOUT_MIGRACION_MS = Long.getLong("migracion.timeoutMs", 600000);
+        private static final long SONDEO_MS = 500;
+
+        private final ExecutorService cola = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "rebalanceo");
+            t.setDaemon(true);
+            return t;
+        });
+        private final AtomicLong completados = new AtomicLong(0);
+        private final AtomicLong fallidos = new AtomicLong(0);
+        private final AtomicLong copias = new AtomicLong(0);
+        private final AtomicLong traspasos = new AtomicLong(0);
+        private volatile String estado = "inactivo";
+        private volatile long ultimaDuracionMs;
+
+        void planificar(int nodoId, String direccion) {
+            cola.execute(() -> incorporar(nodoId, direccion));
+        }
+
+        private void incorporar(int nodoId, String direccion) {
+            AnilloHash actual = anillo;
+            AnilloHash objetivo = actual.conNodo(nodoId, direccion);
+            if (objetivo == actual)
+                return;
+
+            long inicio = System.currentTimeMillis();
+            List<int[]> copiadas = new ArrayList<>();
+            List<int[]> cedidas = new ArrayList<>();
+            Set<Integer> sinSoporte = new HashSet<>();
+            boolean exito = true;
+            try {
+                for (int particion = 1; exito && particion <= objetivo.getParticiones(); particion++) {
+                    List<Integer> anteriores = actual.replicas(particion);
+                    NodoHandler fuente = primerActivo(anteriores);
+                    for (int nodo : objetivo.replicas(particion)) {
+                        if (anteriores.isEmpty() || anteriores.contains(nodo))
+                            continue;
+                        if (fuente == null) {
+                            exito = false;
+                            break;
+                        }
+                        estado = "copiando p" + particion + " a nodo " + nodo;
+                        String resultado = migrar(particion, nodo, actual.direccion(fuente.id), objetivo);
+                        if ("SIN_SOPORTE".equals(resultado)) {
+                            sinSoporte.add(nodo);
+                            continue;
+                        }
+                        copiadas.add(new int[] { particion, nodo });
+                        if (!"AL_DIA".equals(resultado)) {
+                            exito = false;
+                            break;
+                        }
+                    }
+                }
+
+                for (int particion = 1; exito && particion <= objetivo.getParticiones(); particion++) {
+                    NodoHandler primario = primerActivo(actual.replicas(particion));
+                    int nuevo = objetivo.replicas(particion).get(0);
+                    if (primario == null || primario.id == nuevo || sinSoporte.contains(nuevo))
+                        continue;
+                    estado = "cediendo p" + particion + " a nodo " + nuevo;
+                    exito = "OK".equals(primario.enviarYRecibir("CEDER|" + particion + "|"
+                            + objetivo.direccion(nuevo), 30));
+                    if (exito) {
+                        cedidas.add(new int[] { particion, primario.id });
+                    }
+                }
+            } catch (TimeoutException e) {
+                exito = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exito = false;
+            }
+
+            ultimaDuracionMs = System.currentTimeMillis() - inicio;
+            if (!exito) {
+                copiadas.forEach(c -> avisar(c[1], "CANCELAR_MIGRACION|" + c[0]));
+                cedidas.forEach(c -> avisar(c[1], "RETOMAR|" + c[0]));
+                fallidos.incrementAndGet();
+                System.err.println("[Rebalanceo] Alta del nodo " + nodoId + " fallida en: " + estado);
+                estado = "inactivo";
+                return;
+            }
+
+            publicarAnillo(objetivo);
+            completados.incrementAndGet();
+            copias.addAndGet(copiadas.size());
+            traspasos.addAndGet(cedidas.size());
+            estado = "inactivo";
+            System.out.printf("[Rebalanceo] Nodo %d incorporado: %d copias, %d traspasos en %dms%n", nodoId,
+                    copiadas.size(), cedidas.size(), ultimaDuracionMs);
+        }
+
+        private String migrar(int particion, int nodoId, String origen, AnilloHash objetivo)
+                throws TimeoutException, InterruptedException {
+            NodoHandler destino = nodos.get(nodoId);
+            if (destino == null)
+                return "FALLIDA";
+            String respuesta = destino.enviarYRecibir("MIGRAR|" + particion + "|" + origen + "|"
+                    + (objetivo.posicion(particion, nodoId) + 1), 10);
+            if ("ERROR|COMANDO_INVALIDO".equals(respuesta))
+                return "SIN_SOPORTE";
+            if (!"OK".equals(respuesta))
+                return "FALLIDA";
+
+            long limite = System.currentTimeMillis() + TIMEOUT_MIGRACION_MS;
+            while (System.currentTimeMillis() < limite) {
+                Thread.sleep(SONDEO_MS);
+                String[] partes = destino.enviarYRecibir("ESTADO_MIGRACION|" + particion, 5).split("\\|");
+                if (partes.length > 2 && !"COPIANDO".equals(partes[2]))
+                    return partes[2];
+            }
+            return "FALLIDA";
+        }
+
+        private void avisar(int nodoId, String mensaje) {
+            NodoHandler nodo = nodos.get(nodoId);
+            if (nodo == null)
+                return;
+            try {
+                nodo.enviarYRecibir(mensaje, 5);
+            } catch (TimeoutException e) {
+                System.err.println("[Rebalanceo] Nodo " + nodoId + " no respondió a " + mensaje);
+            }
+        }
+
+        String resumen() {
+            return String.format("REBALANCEO|estado=%s|completados=%d|fallidos=%d|copias=%d|traspasos=%d|"
+                    + "ultimaDuracion=%dms", estado, completados.get(), fallidos.get(), copias.get(),
+                    traspasos.get(), ultimaDuracionMs);
+        }
+    }
+
+    private static class Decision {
+        final String txId;
+        final boolean confirmar;
+        final int nodoOrigen;
+        final int nodoDestino;
+        final long fecha;
+
+        Decision(String txId, boolean confirmar, int nodoOrigen, int nodoDestino, long fecha) {
+            this.txId = txId;
+            this.confirmar = confirmar;
+            this.nodoOrigen = nodoOrigen;
+            this.nodoDestino = nodoDestino;
+            this.fecha = fecha;
+        }
+    }
+
     private class LoadBalancer {
-        private final Map<String, List<Integer>> nodosPorParticion = new ConcurrentHashMap<>();
         private final Map<Integer, NodoHandler> metricasNodos = new ConcurrentHashMap<>();
+        private final EnrutadorLecturas enrutador = new EnrutadorLecturas();
+        private final CoberturaLecturas cobertura = new CoberturaLecturas();
+        private final AtomicLong atrasadas = new AtomicLong(0);
 
-        public void addNodo(String particion, int nodoId) {
-            nodosPorParticion.computeIfAbsent(particion, k -> new CopyOnWriteArrayList<>()).add(nodoId);
+        public NodoHandler seleccionarNodo(int particion) {
+            return seleccionarNodo(particion, -1);
+        }
+
+        private NodoHandler seleccionarNodo(int particion, int excluido) {
+            List<Integer> sanas = anillo.replicas(particion).stream()
+                    .filter(nodoId -> nodoId != excluido && metricasNodos.containsKey(nodoId)
+                            && metricasNodos.get(nodoId).estaActivo())
+                    .toList();
+            int elegido = enrutador.elegir(sanas);
+            return elegido < 0 ? null : metricasNodos.get(elegido);
+        }
+
+        boolean valida(String respuesta) {
+            return respuesta != null && !respuesta.equals("ERROR|REPLICA_ATRASADA")
+                    && !respuesta.equals("ERROR|DIARIO_INCOMPLETO");
+        }
+
+        /**
+         * Lee de la réplica elegida y, si no ha respondido al cumplirse el umbral de cobertura, lanza la misma
+         * consulta a otra réplica sana y devuelve la primera respuesta válida. La lectura lenta sigue su curso en
+         * segundo plano para que su latencia cuente en el enrutador.
+         */
+        public String leerCubierta(NodoHandler primero, int particion, String consulta, Set<Integer> consultados) {
+            consultados.add(primero.id);
+            CompletableFuture<String> ganadora = new CompletableFuture<>();
+            AtomicInteger pendientes = new AtomicInteger(1);
+            lanzar(primero, consulta, ganadora, pendientes, false);
+            try {
+                return ganadora.get(cobertura.umbralNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                NodoHandler segundo = seleccionarNodo(particion, primero.id);
+                // Si la primera terminó entretanto sin respuesta válida, ganadora ya está resuelta.
+                if (segundo != null && cobertura.intentar() && pendientes.incrementAndGet() > 1) {
+                    consultados.add(segundo.id);
+                    lanzar(segundo, consulta, ganadora, pendientes, true);
+                }
+                return ganadora.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+
+        // La primera respuesta válida gana; si ninguna lo es, se entrega la última para que quien llama decida.
+        private void lanzar(NodoHandler nodo, String consulta, CompletableFuture<String> ganadora,
+                AtomicInteger pendientes, boolean esCobertura) {
+            executor.execute(() -> {
+                String respuesta = leer(nodo, consulta);
+                if (valida(respuesta)) {
+                    if (ganadora.complete(respuesta) && esCobertura) {
+                        cobertura.ganada();
+                    }
+                } else if (pendientes.decrementAndGet() == 0) {
+                    ganadora.complete(respuesta);
+                }
+            });
         }
 
-        public Integer seleccionarNodo(String particion) {
-            return nodosPorParticion.getOrDefault(particion, Collections.emptyList()).stream()
-                    .filter(nodoId -> metricasNodos.get(nodoId).estaActivo())
-                    .min(Comparator.comparingInt(n -> metricasNodos.get(n).carga.get()))
-                    .orElse(null);
+        // Devuelve null si el nodo no respondió, para que quien llama pase a otra réplica.
+        public String leer(NodoHandler nodo, String consulta) {
+            long inicio = enrutador.iniciar(nodo.id);
+            try {
+                String respuesta = nodo.enviarYRecibir(consulta, 5);
+                if ("ERROR|NODO_SATURADO".equals(respuesta)) {
+                    enrutador.fallo(nodo.id, inicio);
+                    return null;
+                }
+                enrutador.finalizar(nodo.id, inicio);
+                cobertura.observar(System.nanoTime() - inicio);
+                if ("ERROR|REPLICA_ATRASADA".equals(respuesta)) {
+                    atrasadas.incrementAndGet();
+                }
+                return respuesta;
+            } catch (TimeoutException e) {
+                enrutador.fallo(nodo.id, inicio);
+                System.err.println("[ERROR] Timeout consultando nodo " + nodo.id);
+                nodo.setActivo(false);
+                return null;
+            }
         }
 
         public void actualizarMetricas(int nodoId, NodoHandler handler) {
             metricasNodos.put(nodoId, handler);
         }
+
+        public String resumen() {
+            return enrutador.resumen() + "|atrasadas=" + atrasadas.get() + ";" + cobertura.resumen();
+        }
+    }
+
+    /**
+     * Estado de una conexión de cliente: la secuencia más alta que cada una de sus escrituras dejó en cada partición.
+     * Una lectura solo se sirve desde una réplica que ya la ha alcanzado.
+     */
+    private static class Sesion {
+        private final Map<Integer, Long> secuencias = new ConcurrentHashMap<>();
+        volatile NivelConsistencia escritura = ESCRITURA_DEFECTO;
+        volatile NivelConsistencia lectura = LECTURA_DEFECTO;
+
+        long secuenciaMinima(int particion) {
+            return secuencias.getOrDefault(particion, 0L);
+        }
+
+        void registrarEscritura(int particion, String respuesta, int campo) {
+            registrarSecuencia(particion, secuencia(respuesta, campo));
+        }
+
+        void registrarSecuencia(int particion, long secuencia) {
+            if (secuencia > 0) {
+                secuencias.merge(particion, secuencia, Math::max);
+            }
+        }
+
+        static long secuencia(String respuesta, int campo) {
+            String[] partes = respuesta.split("\\|");
+            try {
+                return partes.length > campo ? Long.parseLong(partes[campo]) : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
     }
 
     public static void main(String[] args) throws IOException {
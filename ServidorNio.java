@@ -0,0 +1,313 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ServidorNio {
+    private static final int HILOS_IO = Integer.getInteger("nio.hilosIo", 2);
+    private static final int TRABAJADORES = Integer.getInteger("nio.trabajadores", 32);
+    private static final int COLA_MAXIMA = Integer.getInteger("nio.colaMaxima", 1024);
+    private static final int MAXIMO_TRAMA = 64 * 1024 * 1024;
+    private static final byte[] SALUDO_OK = (ProtocoloBinario.SALUDO_OK + "\n").getBytes(StandardCharsets.UTF_8);
+
+    public interface Manejador {
+        String procesarLinea(String linea);
+
+        byte[] procesarTrama(byte[] trama) throws IOException;
+    }
+
+    private final int puerto;
+    private final Manejador manejador;
+    private final BucleIo[] bucles = new BucleIo[HILOS_IO];
+    private final ThreadPoolExecutor trabajadores;
+    private final AtomicInteger siguienteBucle = new AtomicInteger(0);
+    private final AtomicInteger conexiones = new AtomicInteger(0);
+    private final AtomicLong solicitudes = new AtomicLong(0);
+    private final AtomicLong rechazadas = new AtomicLong(0);
+    private volatile boolean running;
+
+    public ServidorNio(int puerto, Manejador manejador) {
+        this.puerto = puerto;
+        this.manejador = manejador;
+        AtomicInteger contador = new AtomicInteger(0);
+        this.trabajadores = new ThreadPoolExecutor(TRABAJADORES, TRABAJADORES, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(COLA_MAXIMA), r -> {
+                    Thread t = new Thread(r, "nio-trabajador-" + contador.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public void iniciar() throws IOException {
+        running = true;
+        for (int i = 0; i < bucles.length; i++) {
+            bucles[i] = new BucleIo();
+            Thread hilo = new Thread(bucles[i], "nio-io-" + i);
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+
+        try (ServerSocketChannel servidor = ServerSocketChannel.open()) {
+            servidor.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            servidor.bind(new InetSocketAddress(puerto), COLA_MAXIMA);
+            while (running) {
+                SocketChannel canal = servidor.accept();
+                canal.configureBlocking(false);
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                conexiones.incrementAndGet();
+                bucles[Math.floorMod(siguienteBucle.getAndIncrement(), bucles.length)].registrar(canal);
+            }
+        }
+    }
+
+    public void detener() {
+        running = false;
+        for (BucleIo bucle : bucles) {
+            if (bucle != null)
+                bucle.selector.wakeup();
+        }
+        trabajadores.shutdown();
+    }
+
+    public String resumen() {
+        return String.format("NIO|hilosIo=%d|trabajadores=%d|activos=%d|enCola=%d|conexiones=%d|solicitudes=%d"
+                + "|rechazadas=%d", HILOS_IO, TRABAJADORES, trabajadores.getActiveCount(),
+                trabajadores.getQueue().size(), conexiones.get(), solicitudes.get(), rechazadas.get());
+    }
+
+    private class BucleIo implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> nuevos = new ConcurrentLinkedQueue<>();
+        final Queue<Sesion> listas = new ConcurrentLinkedQueue<>();
+
+        BucleIo() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void registrar(SocketChannel canal) {
+            nuevos.add(canal);
+            selector.wakeup();
+        }
+
+        void completar(Sesion sesion) {
+            listas.add(sesion);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    SocketChannel canal;
+                    while ((canal = nuevos.poll()) != null) {
+                        Sesion sesion = new Sesion(canal, this);
+                        sesion.clave = canal.register(selector, SelectionKey.OP_READ, sesion);
+                    }
+                    Sesion lista;
+                    while ((lista = listas.poll()) != null) {
+                        lista.trasRespuesta();
+                    }
+
+                    Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+                    while (claves.hasNext()) {
+                        SelectionKey clave = claves.next();
+                        claves.remove();
+                        Sesion sesion = (Sesion) clave.attachment();
+                        try {
+                            if (clave.isValid() && clave.isReadable())
+                                sesion.leer();
+                            if (clave.isValid() && clave.isWritable())
+                                sesion.escribir();
+                        } catch (IOException e) {
+                            sesion.cerrar();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error en bucle NIO: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private class Sesion {
+        final SocketChannel canal;
+        final BucleIo bucle;
+        final Queue<ByteBuffer> salida = new ArrayDeque<>();
+        SelectionKey clave;
+        ByteBuffer entrada = ByteBuffer.allocate(4096);
+        boolean binario;
+        boolean ocupada;
+        boolean finEntrada;
+        volatile byte[] respuesta;
+
+        Sesion(SocketChannel canal, BucleIo bucle) {
+            this.canal = canal;
+            this.bucle = bucle;
+        }
+
+        void leer() throws IOException {
+            if (!entrada.hasRemaining()) {
+                ByteBuffer mayor = ByteBuffer.allocate(entrada.capacity() * 2);
+                entrada.flip();
+                mayor.put(entrada);
+                entrada = mayor;
+            }
+            if (canal.read(entrada) < 0) {
+                finEntrada = true;
+            }
+            despachar();
+        }
+
+        void despachar() throws IOException {
+            while (!ocupada && extraerSolicitud()) {
+            }
+            escribir();
+        }
+
+        boolean extraerSolicitud() throws IOException {
+            entrada.flip();
+            try {
+                if (binario) {
+                    if (entrada.remaining() < 4)
+                        return false;
+                    int largo = entrada.getInt(entrada.position());
+                    if (largo < 1 || largo > MAXIMO_TRAMA)
+                        throw new IOException("Trama inválida: " + largo);
+                    if (entrada.remaining() < 4 + largo) {
+                        if (entrada.capacity() < 4 + largo) {
+                            ByteBuffer mayor = ByteBuffer.allocate(4 + largo);
+                            mayor.put(entrada);
+                            mayor.flip();
+                            entrada = mayor;
+                        }
+                        return false;
+                    }
+                    byte[] trama = new byte[4 + largo];
+                    entrada.get(trama);
+                    enviarATrabajador(trama, null);
+                    return true;
+                }
+
+                int fin = -1;
+                for (int i = entrada.position(); i < entrada.limit(); i++) {
+                    if (entrada.get(i) == '\n') {
+                        fin = i;
+                        break;
+                    }
+                }
+                if (fin < 0)
+                    return false;
+
+                byte[] bytes = new byte[fin - entrada.position()];
+                entrada.get(bytes);
+                entrada.get();
+                int largo = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                String linea = new String(bytes, 0, largo, StandardCharsets.UTF_8);
+
+                if (ProtocoloBinario.SALUDO.equals(linea)) {
+                    binario = true;
+                    salida.add(ByteBuffer.wrap(SALUDO_OK));
+                    return true;
+                }
+                enviarATrabajador(null, linea);
+                return true;
+            } finally {
+                entrada.compact();
+            }
+        }
+
+        void enviarATrabajador(byte[] trama, String linea) {
+            ocupada = true;
+            solicitudes.incrementAndGet();
+            try {
+                trabajadores.execute(() -> {
+                    byte[] resultado;
+                    try {
+                        resultado = trama != null
+                                ? manejador.procesarTrama(trama)
+                                : (manejador.procesarLinea(linea) + "\n").getBytes(StandardCharsets.UTF_8);
+                    } catch (Exception e) {
+                        System.err.println("Error procesando solicitud NIO: " + e.getMessage());
+                        resultado = null;
+                    }
+                    respuesta = resultado;
+                    bucle.completar(this);
+                });
+            } catch (RejectedExecutionException e) {
+                rechazadas.incrementAndGet();
+                respuesta = saturado();
+                bucle.completar(this);
+            }
+        }
+
+        byte[] saturado() {
+            if (!binario) {
+                return "ERROR|NODO_SATURADO\n".getBytes(StandardCharsets.UTF_8);
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ProtocoloBinario.escribirRespuesta(new DataOutputStream(bytes), "ERROR|NODO_SATURADO");
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        void trasRespuesta() {
+            if (!canal.isOpen())
+                return;
+            ocupada = false;
+            byte[] resultado = respuesta;
+            respuesta = null;
+            try {
+                if (resultado == null) {
+                    cerrar();
+                    return;
+                }
+                salida.add(ByteBuffer.wrap(resultado));
+                despachar();
+            } catch (IOException e) {
+                cerrar();
+            }
+        }
+
+        void escribir() throws IOException {
+            while (!salida.isEmpty()) {
+                ByteBuffer buffer = salida.peek();
+                canal.write(buffer);
+                if (buffer.hasRemaining())
+                    break;
+                salida.poll();
+            }
+            if (salida.isEmpty() && finEntrada && !ocupada) {
+                cerrar();
+                return;
+            }
+            if (clave.isValid()) {
+                clave.interestOps((salida.isEmpty() ? 0 : SelectionKey.OP_WRITE)
+                        | (ocupada || finEntrada ? 0 : SelectionKey.OP_READ));
+            }
+        }
+
+        void cerrar() {
+            if (!canal.isOpen())
+                return;
+            conexiones.decrementAndGet();
+            try {
+                canal.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
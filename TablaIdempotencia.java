@@ -0,0 +1,88 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Resultados de las transferencias con clave de idempotencia de una partición, para que un reintento del cliente
+ * reciba la respuesta original en vez de ejecutarse otra vez. Las entradas caducan a las {@code
+ * idempotencia.vigenciaMs} de la transacción y, si se llega a {@code idempotencia.entradas}, se descartan las más
+ * antiguas. La tabla no se replica aparte: cada entrada sale de una línea TRANSACCION con clave, así que el WAL, los
+ * deltas y la compactación la reconstruyen en todas las réplicas.
+ */
+public class TablaIdempotencia {
+    private static final int MAXIMO_ENTRADAS = Integer.getInteger("idempotencia.entradas", 100000);
+    private static final long VIGENCIA_MS = Long.getLong("idempotencia.vigenciaMs", 24 * 3600 * 1000L);
+    // La clave viaja en líneas separadas por '|' y en deltas separados por ',' y ';'.
+    private static final Pattern CLAVE = Pattern.compile("[A-Za-z0-9._:-]{1,64}");
+
+    private record Entrada(String resultado, long instanteMs) {
+    }
+
+    // En orden de inserción, que es casi el de las transacciones: caducadas y sobrantes salen por el principio.
+    private final LinkedHashMap<String, Entrada> entradas = new LinkedHashMap<>();
+    private long aciertos;
+    private long caducadas;
+    private long descartadas;
+
+    public static boolean claveValida(String clave) {
+        return clave != null && CLAVE.matcher(clave).matches();
+    }
+
+    public synchronized String buscar(String clave) {
+        Entrada entrada = entradas.get(clave);
+        if (entrada == null)
+            return null;
+        if (entrada.instanteMs() < System.currentTimeMillis() - VIGENCIA_MS) {
+            entradas.remove(clave);
+            caducadas++;
+            return null;
+        }
+        aciertos++;
+        return entrada.resultado();
+    }
+
+    public synchronized void registrar(String clave, String resultado, long instanteMs) {
+        long limite = System.currentTimeMillis() - VIGENCIA_MS;
+        if (instanteMs < limite)
+            return;
+        entradas.put(clave, new Entrada(resultado, instanteMs));
+        Iterator<Entrada> it = entradas.values().iterator();
+        while (it.hasNext()) {
+            Entrada primera = it.next();
+            if (primera.instanteMs() < limite) {
+                caducadas++;
+            } else if (entradas.size() > MAXIMO_ENTRADAS) {
+                descartadas++;
+            } else {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    /** Entradas vigentes como líneas IDEMPOTENCIA|clave|instanteMs|resultado para guardarlas al compactar. */
+    public synchronized List<String> lineas() {
+        long limite = System.currentTimeMillis() - VIGENCIA_MS;
+        List<String> lineas = new ArrayList<>(entradas.size());
+        for (Map.Entry<String, Entrada> e : entradas.entrySet()) {
+            if (e.getValue().instanteMs() >= limite) {
+                lineas.add("IDEMPOTENCIA|" + e.getKey() + "|" + e.getValue().instanteMs() + "|"
+                        + e.getValue().resultado());
+            }
+        }
+        return lineas;
+    }
+
+    public synchronized void reiniciar() {
+        entradas.clear();
+    }
+
+    public synchronized String resumen(String particion) {
+        return String.format(
+                "IDEMPOTENCIA|particion=%s|entradas=%d|maximo=%d|vigenciaMs=%d|aciertos=%d|caducadas=%d|descartadas=%d",
+                particion, entradas.size(), MAXIMO_ENTRADAS, VIGENCIA_MS, aciertos, caducadas, descartadas);
+    }
+}
@@ -1,14 +1,14 @@
 import java.time.LocalDateTime;
 
 public class Transaccion {
-    private final int id;
+    private final long id;
     private final int idOrigen;
     private final int idDestino;
-    private final double monto;
+    private final long monto;
     private final LocalDateTime fechaHora;
     private String estado;
 
-    public Transaccion(int id, int idOrigen, int idDestino, double monto, String estado) {
+    public Transaccion(long id, int idOrigen, int idDestino, long monto, String estado) {
         this.id = id;
         this.idOrigen = idOrigen;
         this.idDestino = idDestino;
@@ -17,7 +17,7 @@ public class Transaccion {
         this.estado = estado;
     }
 
-    public Transaccion(int id, int idOrigen, int idDestino, double monto, LocalDateTime fechaHora, String estado) {
+    public Transaccion(long id, int idOrigen, int idDestino, long monto, LocalDateTime fechaHora, String estado) {
         this.id = id;
         this.idOrigen = idOrigen;
         this.idDestino = idDestino;
@@ -26,7 +26,7 @@ public class Transaccion {
         this.estado = estado;
     }
 
-    public int getId() {
+    public long getId() {
         return id;
     }
 
@@ -38,7 +38,7 @@ public class Transaccion {
         return idDestino;
     }
 
-    public double getMonto() {
+    public long getMonto() {
         return monto;
     }
 
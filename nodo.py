@@ -2,14 +2,82 @@ import json
 import socket
 import threading
 import time
-import hashlib
+import re
 from pathlib import Path
 import sys
+from datetime import datetime
+from decimal import Decimal, ROUND_HALF_EVEN
 
 FORMATO_FECHA = "%Y-%m-%d %H:%M:%S"
 TAMANO_PARTICIONES = 3
-REPLICAS = 3
 HEARTBEAT_INTERVAL = 5
+FORMATO_DATOS = "2"
+
+def a_centavos(texto):
+    return int((Decimal(texto) * 100).quantize(Decimal(1), rounding=ROUND_HALF_EVEN))
+
+def formatear_centavos(centavos):
+    signo = '-' if centavos < 0 else ''
+    centavos = abs(centavos)
+    return f"{signo}{centavos // 100}.{centavos % 100:02d}"
+
+class AnilloHash:
+    """Réplica en Python de AnilloHash.java: mismo hash y mismo orden (con signo) de los nodos virtuales."""
+
+    def __init__(self, version=0, particiones=TAMANO_PARTICIONES, virtuales=64, replicas=2, direcciones=None):
+        self.version = version
+        self.particiones = particiones
+        self.replicas_por_particion = replicas
+        self.direcciones = direcciones or {}
+        fichas = {}
+        for nodo in sorted(self.direcciones):
+            for v in range(virtuales):
+                fichas.setdefault(hash_anillo(f"nodo-{nodo}#{v}"), nodo)
+        self.fichas = sorted(fichas.items())
+
+    @staticmethod
+    def parsear(mensaje):
+        partes = mensaje.strip().split('|')
+        direcciones = {}
+        if partes[5]:
+            for nodo in partes[5].split(','):
+                nodo_id, direccion = nodo.split('@', 1)
+                direcciones[int(nodo_id)] = direccion
+        return AnilloHash(int(partes[1]), int(partes[2]), int(partes[3]), int(partes[4]), direcciones)
+
+    def particion(self, id_cuenta):
+        return (abs(int(id_cuenta) - 100) % self.particiones) + 1
+
+    def replicas(self, particion_id):
+        if not self.fichas:
+            return []
+        clave = hash_anillo(f"particion-{particion_id}")
+        inicio = next((i for i, (ficha, _) in enumerate(self.fichas) if ficha >= clave), 0)
+        nodos = []
+        for i in range(len(self.fichas)):
+            nodo = self.fichas[(inicio + i) % len(self.fichas)][1]
+            if nodo not in nodos:
+                nodos.append(nodo)
+            if len(nodos) == self.replicas_por_particion:
+                break
+        return nodos
+
+    def direccion(self, nodo_id):
+        ip, puerto = self.direcciones[nodo_id].rsplit(':', 1)
+        return ip, int(puerto)
+
+def hash_anillo(clave):
+    mascara = (1 << 64) - 1
+    h = 0xcbf29ce484222325
+    for b in clave.encode('utf-8'):
+        h ^= b
+        h = (h * 0x100000001b3) & mascara
+    h ^= h >> 33
+    h = (h * 0xff51afd7ed558ccd) & mascara
+    h ^= h >> 33
+    h = (h * 0xc4ceb9fe1a85ec53) & mascara
+    h ^= h >> 33
+    return h - (1 << 64) if h >= (1 << 63) else h
 
 class Particion:
     def __init__(self, id_particion, ruta_archivo):
@@ -28,9 +96,14 @@ class Particion:
                     self.ruta.touch()
                 
                 with open(self.ruta, 'r', encoding='utf-8') as f:
+                    legado = True
                     for linea in f:
                         if linea.strip():
                             partes = linea.strip().split('|')
+                            if partes[0] == 'FORMATO':
+                                legado = False
+                                continue
+                            importe = a_centavos if legado else int
                             if len(partes) >= 4:
                                 if partes[0] == 'CLIENTE':
                                     self.clientes[int(partes[1])] = {
@@ -43,7 +116,7 @@ class Particion:
                                     self.cuentas[int(partes[1])] = {
                                         'id': int(partes[1]),
                                         'id_cliente': int(partes[2]),
-                                        'saldo': float(partes[3]),
+                                        'saldo': importe(partes[3]),
                                         'tipo': partes[4]
                                     }
                                 elif partes[0] == 'TRANSACCION' and len(partes) >= 7:
@@ -51,7 +124,7 @@ class Particion:
                                         'id': int(partes[1]),
                                         'id_origen': int(partes[2]),
                                         'id_destino': int(partes[3]),
-                                        'monto': float(partes[4]),
+                                        'monto': importe(partes[4]),
                                         'fecha_hora': partes[5],
                                         'estado': partes[6]
                                     }
@@ -63,14 +136,15 @@ class Particion:
             with self.lock:
                 temp = self.ruta.with_suffix('.tmp')
                 with open(temp, 'w', encoding='utf-8') as f:
+                    f.write(f"FORMATO|{FORMATO_DATOS}\n")
                     for cliente_id, datos in self.clientes.items():
                         f.write(f"CLIENTE|{cliente_id}|{datos['nombre']}|{datos['email']}|{datos['telefono']}\n")
                     
                     for cuenta_id, datos in self.cuentas.items():
-                        f.write(f"CUENTA|{cuenta_id}|{datos['id_cliente']}|{datos['saldo']:.2f}|{datos['tipo']}\n")
+                        f.write(f"CUENTA|{cuenta_id}|{datos['id_cliente']}|{datos['saldo']}|{datos['tipo']}\n")
                     
                     for trans_id, datos in self.transacciones.items():
-                        f.write(f"TRANSACCION|{trans_id}|{datos['id_origen']}|{datos['id_destino']}|{datos['monto']:.2f}|{datos['fecha_hora']}|{datos['estado']}\n")
+                        f.write(f"TRANSACCION|{trans_id}|{datos['id_origen']}|{datos['id_destino']}|{datos['monto']}|{datos['fecha_hora']}|{datos['estado']}\n")
                 
                 temp.replace(self.ruta)
         except Exception as e:
@@ -85,6 +159,7 @@ class NodoTrabajador:
         self.puerto = puerto_nodo
         self.ruta_datos = Path(ruta_datos)
         self.particiones = {}
+        self.anillo = AnilloHash()
         self.activo = True
         self.cargar_particiones()
         
@@ -98,21 +173,28 @@ class NodoTrabajador:
     def cargar_particiones(self):
         self.ruta_datos.mkdir(parents=True, exist_ok=True)
         
-        if self.id == 1:
-            particiones_asignadas = [(1, [1, 2]), (2, [3]), (3, [1])]
-        else:
-            particiones_asignadas = [(1, [3]), (2, [1, 2]), (3, [2, 3])]
-        
-        for particion_id, replicas_list in particiones_asignadas:
-            for replica in replicas_list:
-                archivo = self.ruta_datos / f"particion_{particion_id}_rep{replica}.dat"
-                if particion_id not in self.particiones:
-                    self.particiones[particion_id] = Particion(particion_id, archivo)
-                    if not archivo.exists():
-                        self.particiones[particion_id].guardar_datos()
+        for archivo in sorted(self.ruta_datos.iterdir()):
+            m = re.fullmatch(r"particion_(\d+)_rep(\d+)\.dat", archivo.name)
+            if m and int(m.group(1)) not in self.particiones:
+                self.particiones[int(m.group(1))] = Particion(int(m.group(1)), archivo)
+
+    def aplicar_anillo(self, mensaje):
+        anillo = AnilloHash.parsear(mensaje)
+        if anillo.version < self.anillo.version:
+            return
+        self.anillo = anillo
+        for particion_id in range(1, anillo.particiones + 1):
+            replicas = anillo.replicas(particion_id)
+            if self.id in replicas and particion_id not in self.particiones:
+                archivo = self.ruta_datos / f"particion_{particion_id}_rep{replicas.index(self.id) + 1}.dat"
+                self.particiones[particion_id] = Particion(particion_id, archivo)
+                self.particiones[particion_id].guardar_datos()
+
+    def otras_replicas(self, particion_id):
+        return [self.anillo.direccion(n) for n in self.anillo.replicas(particion_id) if n != self.id]
 
     def hash_particion(self, id_cuenta):
-        return (abs(int(id_cuenta)) % TAMANO_PARTICIONES) + 1
+        return self.anillo.particion(id_cuenta)
 
     def conectar_servidor(self):
         try:
@@ -124,8 +206,19 @@ class NodoTrabajador:
 
     def registrar_en_servidor(self):
         particiones_str = ",".join([f"CUENTA:{p}" for p in self.particiones.keys()])
-        mensaje = f"REGISTRO|{self.id}|{self.ip}|{self.puerto}|{particiones_str}"
+        mensaje = f"REGISTRO|{self.id}|{self.ip}|{self.puerto}|{particiones_str}\n"
         self.sock_servidor.send(mensaje.encode('utf-8'))
+        self.sock_servidor.settimeout(5)
+        respuesta = ""
+        while "ANILLO|" not in respuesta or not respuesta.endswith("\n"):
+            datos = self.sock_servidor.recv(4096).decode('utf-8')
+            if not datos:
+                break
+            respuesta += datos
+        self.sock_servidor.settimeout(None)
+        for linea in respuesta.splitlines():
+            if linea.startswith("ANILLO|"):
+                self.aplicar_anillo(linea)
 
     def iniciar_servidor(self):
         with socket.socket(socket.AF_INET, socket.SOCK_STREAM) as s:
@@ -155,9 +248,13 @@ class NodoTrabajador:
             if partes[0] == 'CONSULTAR':
                 return self.consultar_saldo(int(partes[1]))
             elif partes[0] == 'TRANSFERIR':
-                return self.procesar_transferencia(int(partes[1]), int(partes[2]), float(partes[3]))
+                return self.procesar_transferencia(int(partes[1]), int(partes[2]), a_centavos(partes[3]))
             elif partes[0] == 'ARQUEO':
-                return f"ARQUEO|{self.calcular_arqueo():.2f}"
+                return f"ARQUEO|{formatear_centavos(self.calcular_arqueo())}"
+            elif partes[0] == 'ARQUEO_PARTICION':
+                return self.corte_arqueo(int(partes[1]))
+            elif partes[0] == 'MOVIMIENTOS':
+                return self.movimientos(int(partes[1]), partes[2], partes[3], int(partes[4]))
             elif partes[0] == 'BLOQUEAR_ARQUEO':
                 return "OK"
             elif partes[0] == 'DESBLOQUEAR_ARQUEO':
@@ -180,7 +277,7 @@ class NodoTrabajador:
         
         with self.particiones[particion_id].lock:
             cuenta = self.particiones[particion_id].cuentas.get(id_cuenta)
-            return f"SALDO|{cuenta['saldo']}" if cuenta else "ERROR|CUENTA_NO_EXISTE"
+            return f"SALDO|{formatear_centavos(cuenta['saldo'])}" if cuenta else "ERROR|CUENTA_NO_EXISTE"
 
     def procesar_transferencia(self, origen, destino, monto):
         particion_id = self.hash_particion(origen)
@@ -215,12 +312,49 @@ class NodoTrabajador:
             return "OK"
 
     def calcular_arqueo(self):
-        total = 0.0
+        total = 0
         for particion in self.particiones.values():
             with particion.lock:
                 total += sum(c['saldo'] for c in particion.cuentas.values())
         return total
 
+    def corte_arqueo(self, particion_id):
+        # Este nodo no participa en 2PC: el corte no lleva reservas.
+        if particion_id not in self.particiones:
+            return "ERROR|PARTICION_NO_EXISTE"
+        particion = self.particiones[particion_id]
+        with particion.lock:
+            return f"CORTE|{particion_id}|0|{sum(c['saldo'] for c in particion.cuentas.values())}|"
+
+    def movimientos(self, id_cuenta, desde, hasta, limite):
+        # Este nodo no mantiene diario: recorre las transacciones de la partición.
+        particion_id = self.hash_particion(id_cuenta)
+        if particion_id not in self.particiones:
+            return "ERROR|PARTICION_NO_LOCAL"
+        particion = self.particiones[particion_id]
+        desde = None if desde == '-' else datetime.fromisoformat(desde)
+        # hasta es una fecha o el cursor fecha/id de la página anterior.
+        fecha_hasta, _, id_hasta = hasta.partition('/')
+        hasta = None if hasta == '-' else datetime.fromisoformat(fecha_hasta)
+        id_hasta = int(id_hasta) if id_hasta else None
+        with particion.lock:
+            if id_cuenta not in particion.cuentas:
+                return "ERROR|CUENTA_NO_EXISTE"
+            encontrados = []
+            for t in particion.transacciones.values():
+                fecha = datetime.fromisoformat(t['fecha_hora'])
+                if (t['estado'] == 'CONFIRMADA' and id_cuenta in (t['id_origen'], t['id_destino'])
+                        and (desde is None or fecha >= desde)
+                        and (hasta is None or fecha < hasta
+                             or (fecha == hasta and id_hasta is not None and t['id'] < id_hasta))):
+                    encontrados.append((fecha, t))
+        encontrados.sort(key=lambda e: (e[0], e[1]['id']), reverse=True)
+        pagina = encontrados[:limite]
+        siguiente = f"{pagina[-1][0].isoformat()}/{pagina[-1][1]['id']}" if len(pagina) == limite else '-'
+        elementos = ';'.join(f"{t['id']},{fecha.isoformat()},{t['id_origen']},{t['id_destino']},"
+                             f"{formatear_centavos(t['monto'])}" for fecha, t in pagina)
+        return f"MOVIMIENTOS|{len(pagina)}|{siguiente}|{elementos}"
+
     def obtener_particion(self, particion_id):
         if particion_id not in self.particiones:
             return "ERROR|PARTICION_NO_EXISTE"
@@ -242,31 +376,28 @@ class NodoTrabajador:
             return f"ERROR|{str(e)}"
     
     def sincronizar_replica(self, particion_id):
-        try:
-            otro_nodo = 2 if self.id == 1 else 1
-            ip_otro = "localhost"
-            puerto_otro = 6000 if otro_nodo == 1 else 6001
-            
-            datos = json.dumps(self.particiones[particion_id].cuentas)
-            mensaje = f"SINCRONIZAR|{particion_id}|{datos}"
-            
-            sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-            sock.settimeout(3)
-            sock.connect((ip_otro, puerto_otro))
-            sock.send(mensaje.encode('utf-8'))
-            sock.close()
-        except Exception as e:
-            print(f"Error sincronizando con nodo {otro_nodo}: {str(e)}")
+        datos = json.dumps(self.particiones[particion_id].cuentas)
+        mensaje = f"SINCRONIZAR|{particion_id}|{datos}"
+        for ip_otro, puerto_otro in self.otras_replicas(particion_id):
+            try:
+                sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+                sock.settimeout(3)
+                sock.connect((ip_otro, puerto_otro))
+                sock.send(mensaje.encode('utf-8'))
+                sock.close()
+            except Exception as e:
+                print(f"Error sincronizando con {ip_otro}:{puerto_otro}: {str(e)}")
     
     def verificar_y_reparar_replicas(self):
         while self.activo:
             try:
                 time.sleep(30)
-                otro_nodo = 2 if self.id == 1 else 1
-                ip_otro = "localhost"
-                puerto_otro = 6000 if otro_nodo == 1 else 6001
                 
-                for particion_id in self.particiones.keys():
+                for particion_id in list(self.particiones.keys()):
+                    otras = self.otras_replicas(particion_id)
+                    if not otras:
+                        continue
+                    ip_otro, puerto_otro = otras[0]
                     try:
                         sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
                         sock.settimeout(5)
@@ -293,7 +424,7 @@ class NodoTrabajador:
     def enviar_heartbeat(self):
         while self.activo:
             try:
-                self.sock_servidor.send(f"HEARTBEAT|{self.id}".encode('utf-8'))
+                self.sock_servidor.send(f"HEARTBEAT|{self.id}\n".encode('utf-8'))
                 time.sleep(HEARTBEAT_INTERVAL)
             except Exception as e:
                 print(f"Error enviando heartbeat: {str(e)}")